@@ -0,0 +1,62 @@
+(ns boot.aether-bench
+  "Compares cold resolution of a generated repo with sequential and
+  concurrent transfers. The repo is served by an embedded HTTP server that
+  adds latency to every request. Run with `lein bench-resolve`."
+  (:require
+    [clojure.java.io              :as io]
+    [cemerick.pomegranate.aether  :as pomegranate]
+    [boot.aether                  :as aether]
+    [boot.aether-test             :refer [make-repo tempdir]])
+  (:import
+    [java.net InetSocketAddress]
+    [java.util.concurrent Executors]
+    [com.sun.net.httpserver HttpExchange HttpHandler HttpServer]))
+
+(set! *warn-on-reflection* true)
+
+(defn- serve
+  "Serves the files in dir over HTTP on a free port, on the executor, sleeping
+  latency ms before each response. Returns the server."
+  ^HttpServer [dir latency executor]
+  (doto (HttpServer/create (InetSocketAddress. "127.0.0.1" 0) 0)
+    (.createContext "/" (reify HttpHandler
+                          (handle [_ ex]
+                            (with-open [^HttpExchange ex ex]
+                              (Thread/sleep latency)
+                              (let [f (io/file dir (subs (.getPath (.getRequestURI ex)) 1))]
+                                (if-not (.isFile f)
+                                  (.sendResponseHeaders ex 404 -1)
+                                  (do (.sendResponseHeaders ex 200 (.length f))
+                                      (with-open [out (.getResponseBody ex)]
+                                        (io/copy f out)))))))))
+    (.setExecutor executor)
+    (.start)))
+
+(defn- resolve-ms
+  [url threads connections]
+  (aether/set-transfer-threads! threads)
+  (aether/set-repo-connections! connections)
+  (let [start (System/nanoTime)]
+    (aether/resolve-dependencies* {:dependencies '[[test/a0 "1.0"]]
+                                   :local-repo   (str (tempdir))
+                                   :repositories {"bench" {:url url}}})
+    (/ (- (System/nanoTime) start) 1e6)))
+
+(defn -main
+  [& _]
+  (let [n        200
+        latency  20
+        repo     (make-repo (tempdir) n :deps 3 :size (* 64 1024))
+        executor (Executors/newCachedThreadPool)
+        server   (serve repo latency executor)
+        url      (str "http://127.0.0.1:" (.getPort (.getAddress server)) "/")]
+    ;; the bench serves plain http, which pomegranate refuses by default
+    (pomegranate/register-wagon-factory! "http" #(org.apache.maven.wagon.providers.http.HttpWagon.))
+    (try
+      (printf "%d artifacts, %d ms latency per request\n" n latency)
+      (resolve-ms url nil nil) ; warm up
+      (doseq [[threads connections] [[1 nil] [4 nil] [8 nil] [16 nil] [16 4]]]
+        (printf "threads %-3s connections %-4s %8.0f ms\n" threads (or connections "-")
+                (resolve-ms url threads connections))
+        (flush))
+      (finally (.stop server 0) (.shutdown executor) (shutdown-agents)))))
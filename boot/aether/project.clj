@@ -13,6 +13,8 @@
   :license      {:name "Eclipse Public License"
                  :url "http://www.eclipse.org/legal/epl-v10.html"}
   :plugins      [[lein-ancient "0.6.15"]]
+  :profiles     {:bench {:source-paths ["bench" "test"]}}
+  :aliases      {"bench-resolve" ["with-profile" "+bench" "run" "-m" "boot.aether-bench"]}
   :dependencies [[org.clojure/clojure               "1.6.0"  :scope "compile"]
                  [boot/base                         ~version :scope "provided"]
                  [boot/pod                          ~version :scope "compile"]
@@ -1,12 +1,16 @@
 (ns boot.aether
   (:require
     [clojure.java.io             :as io]
+    [clojure.edn                 :as edn]
     [clojure.string              :as string]
     [clojure.pprint              :as pprint]
+    [clojure.walk                :as walk]
     [cemerick.pomegranate.aether :as aether]
     [boot.util                   :as util]
     [boot.pod                    :as pod]
     [boot.gpg                    :as gpg]
+    [boot.file                   :as file]
+    [boot.from.digest            :as digest]
     [boot.from.io.aviso.ansi     :as ansi]
     [boot.kahnsort               :as ksort])
   (:import
@@ -14,6 +18,7 @@
     [java.io File]
     [java.util.jar JarFile]
     [java.util.regex Pattern]
+    [java.util.concurrent Semaphore]
     [org.eclipse.aether.resolution DependencyResolutionException]
     [org.eclipse.aether.transfer MetadataNotFoundException ArtifactNotFoundException]))
 
@@ -66,10 +71,96 @@
 (defmethod on-transfer :default
   [_])
 
+(def transfer-threads
+  "Atom containing the number of files Aether transfers from a repository at
+  the same time, or nil for Aether's default. When set, transfers are
+  reported as aggregate progress instead of a line per file. Set via the
+  BOOT_AETHER_THREADS env var or configuration option."
+  (atom (util/guard (Integer/parseInt (boot.App/config "BOOT_AETHER_THREADS")))))
+
+(def repo-connections
+  "Atom containing the max number of concurrent transfers from a repository,
+  or nil for no limit. The :connections key in the settings of a repository
+  or mirror overrides it for that repository. Set via the
+  BOOT_AETHER_REPO_CONNECTIONS env var or configuration option."
+  (atom (util/guard (Integer/parseInt (boot.App/config "BOOT_AETHER_REPO_CONNECTIONS")))))
+
+(defn set-transfer-threads!  [x] (reset! transfer-threads x))
+(defn set-repo-connections!  [x] (reset! repo-connections x))
+
+(def transfer-stats
+  "Atom containing the number of transfers that were :initiated, :succeeded,
+  and :failed, the transferred :bytes, and the number of transfers that are
+  :active and the most that were active at once (:max-active)."
+  (atom {:initiated 0 :succeeded 0 :failed 0 :bytes 0 :active 0 :max-active 0}))
+
+(def ^:private connection-limits   (atom {}))
+(def ^:private transfer-semaphores (atom {}))
+(def ^:private progress            (atom {:at 0 :base {}}))
+
+(defn- set-connection-limits!
+  "Records the :connections settings of the repositories and mirrors, by url."
+  [repositories mirrors]
+  (->> (concat (map second repositories) (vals mirrors))
+       (keep (fn [{:keys [url connections]}] (when connections [url connections])))
+       (into {})
+       (swap! connection-limits merge)))
+
+(defn- ^Semaphore transfer-semaphore
+  [repository]
+  (when-let [n (get @connection-limits repository @repo-connections)]
+    (let [k [repository n]]
+      (or (get @transfer-semaphores k)
+          (-> (swap! transfer-semaphores #(if (% k) % (assoc % k (Semaphore. (int n) true))))
+              (get k))))))
+
+(defn- report-progress!
+  "Prints the transfer stats since the current resolution started, at most
+  every two seconds."
+  [stats]
+  (let [now                  (System/currentTimeMillis)
+        {:keys [at base] :as p} @progress
+        {:keys [initiated succeeded failed bytes]} (merge-with - stats base)]
+    (when (and (< 2000 (- now at)) (compare-and-set! progress p (assoc p :at now)))
+      (util/info "Retrieved %d of %d files (%sk), %d in progress...\n"
+                 succeeded (- initiated failed) (quot bytes 1024) (:active stats)))))
+
+(defn- track-transfer!
+  "Limits the number of concurrent transfers per repository, by blocking the
+  transfer thread in the :initiated event until the repository's semaphore
+  has a permit, and updates the transfer stats."
+  [{:keys [type transferred] {:keys [repository]} :resource}]
+  (case type
+    :initiated (do (some-> (transfer-semaphore repository) .acquire)
+                   (swap! transfer-stats #(let [n (inc (:active %))]
+                                            (assoc % :active n
+                                                     :max-active (max n (:max-active %))
+                                                     :initiated (inc (:initiated %))))))
+    (:succeeded :failed) (let [stats (swap! transfer-stats #(-> %
+                                                                (update-in [type] inc)
+                                                                (update-in [:active] dec)
+                                                                (update-in [:bytes] + (max 0 transferred))))]
+                           (some-> (transfer-semaphore repository) .release)
+                           (when (and @transfer-threads (= :succeeded type))
+                             (report-progress! stats)))
+    nil))
+
+(defn- report-transfers!
+  "Prints the number of files and bytes retrieved since the transfer stats
+  were before, when transfers are reported as aggregate progress."
+  [before start]
+  (let [{:keys [succeeded bytes]} (merge-with - @transfer-stats before)]
+    (when (and @transfer-threads (pos? succeeded))
+      (util/info "Retrieved %d files (%sk) in %.1fs\n" succeeded (quot bytes 1024)
+                 (/ (- (System/currentTimeMillis) start) 1000.0)))))
+
 (defn transfer-listener
   [info]
   (util/trace* "Aether: %s\n" (with-out-str (pprint/pprint info)))
-  (on-transfer info))
+  (track-transfer! info)
+  (if (and @transfer-threads (#{:started :succeeded} (:type info)))
+    nil
+    (on-transfer info)))
 
 (defn ^{:boot/from :technomancy/leiningen} build-url
   "Creates java.net.URL from string"
@@ -100,24 +191,42 @@
           :password        password
           :non-proxy-hosts (get-non-proxy-hosts)}))))
 
+(defn- repository-session
+  "Returns a new Aether session, with the update policy and the number of
+  concurrent transfers configured."
+  [opts]
+  (let [session (aether/repository-session opts)
+        threads @transfer-threads]
+    (when (= @update? :always)
+      (.setUpdatePolicy session (aether/update-policies :always)))
+    (when threads
+      (doto session
+        (.setConfigProperty "aether.connector.basic.threads" (int threads))
+        (.setConfigProperty "aether.metadataResolver.threads" (int threads))))
+    session))
+
 (defn resolve-dependencies*
   [env]
   (try
-    (aether/resolve-dependencies
-      :managed-coordinates (:managed-dependencies env)
-      :coordinates       (:dependencies env)
-      :repositories      (->> (or (seq (:repositories env)) @default-repositories)
-                           (map (juxt first (fn [[x y]] (if (map? y) y {:url y}))))
-                           (map (juxt first (fn [[x y]] (update-in y [:update] #(or % @update?))))))
-      :local-repo        (or (:local-repo env) @local-repo nil)
-      :offline?          (or @offline? (:offline? env))
-      :mirrors           (merge @default-mirrors (:mirrors env))
-      :proxy             (or (:proxy env) (get-proxy-settings))
-      :transfer-listener transfer-listener
-      :repository-session-fn (if (= @update? :always)
-                               #(doto (aether/repository-session %)
-                                  (.setUpdatePolicy (aether/update-policies :always)))
-                               aether/repository-session))
+    (let [repos   (->> (or (seq (:repositories env)) @default-repositories)
+                       (map (juxt first (fn [[x y]] (if (map? y) y {:url y}))))
+                       (map (juxt first (fn [[x y]] (update-in y [:update] #(or % @update?))))))
+          mirrors (merge @default-mirrors (:mirrors env))
+          before  @transfer-stats
+          start   (System/currentTimeMillis)]
+      (set-connection-limits! repos mirrors)
+      (reset! progress {:at start :base before})
+      (util/with-let [_ (aether/resolve-dependencies
+                          :managed-coordinates (:managed-dependencies env)
+                          :coordinates       (:dependencies env)
+                          :repositories      repos
+                          :local-repo        (or (:local-repo env) @local-repo nil)
+                          :offline?          (or @offline? (:offline? env))
+                          :mirrors           mirrors
+                          :proxy             (or (:proxy env) (get-proxy-settings))
+                          :transfer-listener transfer-listener
+                          :repository-session-fn repository-session)]
+        (report-transfers! before start)))
     (catch Exception e
       (let [root-cause (last (take-while identity (iterate (memfn getCause) e)))]
         (if-not (and (not @offline?) (instance? java.net.UnknownHostException root-cause))
@@ -129,6 +238,118 @@
 
 (defn- dep->path [dep] (->> dep meta :file .getPath))
 
+;; resolution cache ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+;; Resolved dependency lists are cached on disk, keyed by a hash of the
+;; dependencies, repositories, mirrors, and local repo they were resolved
+;; with, so new JVMs and pods with the same env skip Aether. Each entry
+;; records the size and mtime of the jars and poms it lists, and is ignored
+;; when one of them has changed in the local repo. Resolutions whose result
+;; depends on what is currently in the remote repos (SNAPSHOT, RELEASE, LATEST,
+;; or range versions, or the :always update policy) aren't cached.
+
+(def RESOLVE_CACHE_VERSION "1.0.0")
+
+(def ^:private resolve-cache
+  "Cache entries read or written by this JVM, by key."
+  (atom {}))
+
+(defn- resolve-cache?
+  []
+  (not= "no" (boot.App/config "BOOT_RESOLVE_CACHE")))
+
+(defn- ^File resolve-cache-file
+  [key]
+  (-> (boot.App/bootdir)
+      (io/file "cache" "cache" "resolve")
+      (io/file RESOLVE_CACHE_VERSION (str key ".edn"))))
+
+(defn- dynamic-version?
+  [version]
+  (let [v (str version)]
+    (or (.endsWith v "SNAPSHOT")
+        (contains? #{"RELEASE" "LATEST"} v)
+        (boolean (re-find #"[\[\(,]" v)))))
+
+(defn- canonical
+  "Replaces the maps and sets in x with seqs of their entries in a fixed
+  order, so that equal values print the same."
+  [x]
+  (walk/postwalk #(cond (map? %) (cons :map (sort-by pr-str %))
+                        (set? %) (cons :set (sort-by pr-str %))
+                        :else    %)
+                 x))
+
+(defn- resolve-cache-key
+  [{:keys [dependencies repositories mirrors] :as env}]
+  (binding [*print-length* nil *print-level* nil]
+    (-> {:dependencies dependencies
+         :repositories (or (seq repositories) @default-repositories)
+         :mirrors      (merge @default-mirrors mirrors)
+         :local-repo   (str (or (:local-repo env) @local-repo))}
+        canonical
+        pr-str
+        digest/md5)))
+
+(defn- file-stamp
+  [^File f]
+  [(.length f) (.lastModified f)])
+
+(defn- resolved-files
+  "The jar and pom files in the local repo for the resolved dependencies."
+  [deps]
+  (for [{[p v] :dep jar :jar} deps
+        :let [jar (io/file jar)]
+        f [jar (io/file (.getParentFile jar) (str (name p) "-" v ".pom"))]
+        :when (.isFile ^File f)]
+    f))
+
+(defn- fresh-entry?
+  [{:keys [stamps]}]
+  (every? (fn [[path stamp]] (= stamp (file-stamp (io/file path)))) stamps))
+
+(defn- get-cached-deps
+  [key]
+  (let [entry (or (get @resolve-cache key)
+                  (util/guard (edn/read-string (slurp (resolve-cache-file key)))))]
+    (when (and entry (fresh-entry? entry))
+      (util/dbug* "Aether: using cached resolution %s\n" key)
+      (swap! resolve-cache assoc key entry)
+      (for [[dep jar] (:deps entry)]
+        {:dep (vary-meta dep assoc :file (io/file jar)) :jar jar}))))
+
+(defn- put-cached-deps!
+  [key deps]
+  (when (every? (fn [{[_ v] :dep jar :jar}] (and jar (.isFile (io/file jar)) (not (dynamic-version? v)))) deps)
+    (let [entry {:deps   (mapv (juxt :dep :jar) deps)
+                 :stamps (reduce #(assoc %1 (.getPath ^File %2) (file-stamp %2)) {} (resolved-files deps))}
+          f     (resolve-cache-file key)
+          tmp   (doto (io/file (str (.getPath f) "." (java.util.UUID/randomUUID)))
+                  io/make-parents)]
+      (swap! resolve-cache assoc key entry)
+      (util/guard
+        (binding [*print-length* nil *print-level* nil *print-meta* false]
+          (spit tmp (pr-str entry))
+          (file/move tmp f)))
+      (.delete tmp))))
+
+(defn- resolve-sorted-dependencies
+  "Resolves the env's dependencies and returns a list of {:dep :jar} maps
+  in dependency order, using the resolution cache when possible."
+  [env]
+  (let [resolve* #(->> (resolve-dependencies-memoized* env)
+                       ksort/topo-sort
+                       (map (fn [x] {:dep x :jar (dep->path x)})))
+        key      (when (and (resolve-cache?)
+                            (not= :always @update?)
+                            (not-any? (comp dynamic-version? second) (:dependencies env)))
+                   (resolve-cache-key env))]
+    (if-not key
+      (resolve*)
+      (or (get-cached-deps key)
+          (util/with-let [deps (doall (resolve*))]
+            (put-cached-deps! key deps))))))
+
 (defn resolve-dependencies
   "Given an env map, returns a list of maps of the form
      {:dep [foo/bar \"1.2.3\"], :jar \"file:...\"}
@@ -137,9 +358,8 @@
   (let [checkouts (set (map first checkouts))]
     (->> [:dependencies :repositories :local-repo :offline? :mirrors :proxy]
          (select-keys env)
-         resolve-dependencies-memoized*
-         ksort/topo-sort
-         (keep (fn [[p :as x]] (when-not (checkouts p) {:dep x :jar (dep->path x)}))))))
+         resolve-sorted-dependencies
+         (remove (fn [{[p] :dep}] (checkouts p))))))
 
 (defn resolve-dependency-jars
   "Given an env map, resolves dependencies and returns a list of dependency jar
@@ -1,7 +1,97 @@
 (ns boot.aether-test
   (:require [clojure.test :refer :all]
-            [boot.aether :refer :all]))
+            [clojure.java.io :as io]
+            [boot.from.digest :as digest]
+            [boot.aether :refer :all])
+  (:import [java.nio.file Files]
+           [java.nio.file.attribute FileAttribute]))
 
 (deftest a-test
   (testing "FIXME, I fail."
     (is (= 0 1))))
+
+(defn tempdir []
+  (.toFile (Files/createTempDirectory "boot-aether-test" (make-array FileAttribute 0))))
+
+(defn make-repo
+  "Writes a Maven repo of n artifacts, test/aN version 1.0, to dir and returns
+  dir. Each artifact depends on the next deps artifacts and has a jar of size
+  bytes."
+  [dir n & {:keys [deps size] :or {deps 2 size 1024}}]
+  (let [put! (fn [f content]
+               (let [f (doto (io/file dir f) io/make-parents)]
+                 (if (string? content) (spit f content) (io/copy content f))
+                 (spit (io/file (str f ".sha1")) (digest/sha-1 f))))]
+    (doseq [i (range n)
+            :let [a    (str "a" i)
+                  base (str "test/" a "/1.0/" a "-1.0")
+                  dep  #(format "<dependency><groupId>test</groupId><artifactId>a%d</artifactId><version>1.0</version></dependency>" %)]]
+      (put! (str base ".pom")
+            (str "<project><modelVersion>4.0.0</modelVersion>"
+                 "<groupId>test</groupId><artifactId>" a "</artifactId><version>1.0</version>"
+                 "<dependencies>" (apply str (map dep (range (inc i) (min n (+ i 1 deps))))) "</dependencies>"
+                 "</project>"))
+      (put! (str base ".jar") (byte-array size (unchecked-byte i))))
+    dir))
+
+(deftest concurrent-resolution-test
+  (let [repo  (make-repo (tempdir) 12)
+        env   #(hash-map :dependencies '[[test/a0 "1.0"]]
+                         :local-repo   (.getPath (tempdir))
+                         :repositories {"test" (merge {:url (str (.toURI repo))} %)})
+        jars  #(->> % resolve-dependencies* keys (map first) set)
+        names (set (map #(symbol "test" (str "a" %)) (range 12)))]
+    (testing "sequential resolution"
+      (is (= names (jars (env {})))))
+    (testing "concurrent resolution with a per-repository limit"
+      (let [threads @transfer-threads]
+        (try (set-transfer-threads! 4)
+             (swap! transfer-stats assoc :max-active 0)
+             (let [before @transfer-stats]
+               (is (= names (jars (env {:connections 2}))))
+               (is (<= 1 (:max-active @transfer-stats) 2))
+               (is (= 24 (- (:succeeded @transfer-stats) (:succeeded before))))
+               (is (zero? (:active @transfer-stats))))
+             (finally (set-transfer-threads! threads)))))))
+
+(deftest resolve-cache-test
+  (let [repo     (make-repo (tempdir) 4)
+        local    (tempdir)
+        cache    (tempdir)
+        env      {:dependencies '[[test/a0 "1.0"]]
+                  :local-repo   (.getPath local)
+                  :repositories {"test" {:url (str (.toURI repo))}}}
+        resolved (atom 0)
+        resolve  (fn []
+                   (reset! @#'boot.aether/resolve-cache {})
+                   (map :dep (resolve-dependencies env)))
+        touch!   (fn [ext]
+                   (let [f (io/file local "test" "a1" "1.0" (str "a1-1.0." ext))]
+                     (.setLastModified f (- (.lastModified f) 10000))))]
+    (with-redefs [boot.aether/resolve-cache-file      #(io/file cache (str % ".edn"))
+                  resolve-dependencies-memoized*      (fn [env]
+                                                        (swap! resolved inc)
+                                                        (resolve-dependencies* env))]
+      (let [deps (resolve)]
+        (testing "a miss resolves and writes the cache"
+          (is (= 1 @resolved))
+          (is (= 4 (count deps)))
+          (is (= 1 (count (.listFiles cache)))))
+        (testing "a hit reads the cache"
+          (is (= deps (resolve)))
+          (is (= 1 @resolved)))
+        (testing "a changed jar is a miss"
+          (touch! "jar")
+          (is (= deps (resolve)))
+          (is (= 2 @resolved))
+          (is (= deps (resolve)))
+          (is (= 2 @resolved)))
+        (testing "a changed pom is a miss"
+          (touch! "pom")
+          (is (= deps (resolve)))
+          (is (= 3 @resolved)))
+        (testing "BOOT_RESOLVE_CACHE=no bypasses the cache"
+          (System/setProperty "BOOT_RESOLVE_CACHE" "no")
+          (try (is (= deps (resolve)))
+               (is (= 4 @resolved))
+               (finally (System/clearProperty "BOOT_RESOLVE_CACHE"))))))))
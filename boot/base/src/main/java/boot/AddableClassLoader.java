@@ -1,14 +1,118 @@
 package boot;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 // Allows us to have a modifiable ClassLoader without having to call
 // .setAccessible on URLClassLoader.addURL(), since that's not allowed
 // by default under Java 9
+//
+// The loader also keeps an index of the directories and resources in the
+// jars on its classpath (see ClassPathIndex), updated when URLs are added.
+// Lookups of resources and classes that aren't on the classpath return
+// without probing every jar, and resources found in a jar are returned
+// without probing the jars before it. Directories on the classpath are
+// checked with a stat. Set BOOT_CLASSLOADER_INDEX=no to turn this off.
 public class AddableClassLoader extends URLClassLoader {
+    private static final boolean INDEX = indexEnabled();
+
+    private static final int UNKNOWN = -2, MISSING = -1;
+
+    private final boolean                               index;
+    private final HashSet<String>                       added    = new HashSet<>();
+    private final ArrayList<URL>                        urls     = new ArrayList<>();
+    private final ArrayList<Object>                     entries  = new ArrayList<>();
+    private final CopyOnWriteArrayList<Integer>         dirs     = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<String, int[]>      packages = new ConcurrentHashMap<>();
+    private volatile boolean                            indexed  = true;
+
     public AddableClassLoader(URL[] urls, ClassLoader parent) {
-        super(urls, parent); }
-    
+        this(urls, parent, INDEX); }
+
+    public AddableClassLoader(URL[] urls, ClassLoader parent, boolean index) {
+        super(urls, parent);
+        this.index = index;
+        if (index) for (URL url : urls) addIndex(url); }
+
     public void addURL(URL url) {
-	super.addURL(url); }}
+	super.addURL(url);
+        if (index) addIndex(url); }
+
+    private static boolean
+    indexEnabled() {
+        try { return !"no".equals(App.config("BOOT_CLASSLOADER_INDEX")); }
+        catch (Throwable e) { return true; }}
+
+    private synchronized void
+    addIndex(URL url) {
+        if (!indexed || !added.add(url.toExternalForm())) return;
+        File f = null;
+        try { if ("file".equals(url.getProtocol())) f = new File(url.toURI()); }
+        catch (Exception e) {}
+        ClassPathIndex jar = (f != null && f.isFile()) ? ClassPathIndex.get(f) : null;
+        if (f == null || (f.isFile() && (jar == null || !jar.plain))) {
+            indexed = false;
+            return; }
+        int i = entries.size();
+        urls.add(url);
+        if (jar == null) {
+            entries.add(f);
+            dirs.add(i); }
+        else {
+            entries.add(jar);
+            for (String dir : jar.dirs) {
+                int[] js = packages.get(dir);
+                int[] ks = (js == null) ? new int[1] : Arrays.copyOf(js, js.length + 1);
+                ks[ks.length - 1] = i;
+                packages.put(dir, ks); }}}
+
+    // Returns the index of the first classpath entry that has the resource,
+    // MISSING if there isn't one, or UNKNOWN if the index can't tell.
+    private int
+    locate(String name) {
+        if (!index || !indexed || name.startsWith("/") || name.contains("..")) return UNKNOWN;
+        int   found = MISSING;
+        int[] js    = packages.get(ClassPathIndex.dir(name));
+        if (js != null) {
+            long h = ClassPathIndex.hash(name);
+            for (int j : js)
+                if (((ClassPathIndex) entries.get(j)).contains(h)) { found = j; break; }}
+        for (int d : dirs) {
+            if (found != MISSING && d > found) break;
+            if (new File((File) entries.get(d), name).exists()) return d; }
+        return found; }
+
+    private static boolean
+    plainName(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(Character.isLetterOrDigit(c) && c < 128) && "/._-$".indexOf(c) < 0) return false; }
+        return true; }
+
+    @Override
+    public URL findResource(String name) {
+        int i = locate(name);
+        if (i == MISSING) return null;
+        if (i >= 0 && plainName(name) && entries.get(i) instanceof ClassPathIndex)
+            try { return new URL("jar:" + urls.get(i).toExternalForm() + "!/" + name); }
+            catch (IOException e) {}
+        return super.findResource(name); }
+
+    @Override
+    public Enumeration<URL> findResources(String name) throws IOException {
+        if (locate(name) == MISSING) return Collections.emptyEnumeration();
+        return super.findResources(name); }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        if (locate(name.replace('.', '/') + ".class") == MISSING) throw new ClassNotFoundException(name);
+        return super.findClass(name); }}
@@ -5,8 +5,17 @@ package boot;
 import java.io.*;
 import java.nio.channels.FileLock;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.lang.ref.WeakReference;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
+import java.net.Socket;
+import java.net.ServerSocket;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Formatter;
 import java.util.Map;
 import java.util.Date;
@@ -23,6 +32,12 @@ import java.util.concurrent.Future;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicLong;
 import org.projectodd.shimdandy.ClojureRuntimeShim;
 
@@ -416,6 +431,503 @@ public class App {
             try { core.get().close(); }
             catch (InterruptedException ie) {}}}
 
+    // boot server ///////////////////////////////////////////////////////////
+
+    // The server runs boot commands for one project directory in a single JVM,
+    // keeping a core and a worker pod warmed up in between. Clients talk to it
+    // over a loopback socket: the port and a secret token are written to an
+    // owner-only file in the boot cache, keyed by version and directory.
+    //
+    // Request:  token (UTF), argc (int), argv (UTF...), cwd (UTF), envc (int),
+    //           env (UTF name, UTF value...), then frames of stdin: length
+    //           (int) and bytes, with length 0 for the end of input.
+    // Response: frames of type (byte), then either length (int) and bytes
+    //           for stdout (1) and stderr (2), the exit code (int) for 0, or
+    //           the reason (UTF) the server refused to run the command for 3.
+    //
+    // The server refuses commands from clients whose working directory or
+    // environment differ from its own (see serverEnvIgnored), since those
+    // can't be changed for a command running in the server's JVM. When the
+    // client goes away the command is cancelled: its thread is interrupted,
+    // and stopped if it doesn't finish in time.
+
+    private static final int FRAME_EXIT = 0, FRAME_OUT = 1, FRAME_ERR = 2, FRAME_REFUSED = 3;
+
+    // Variables that differ between shells and are ignored when comparing
+    // the client's environment with the server's.
+    private static final List<String> serverEnvIgnored =
+        Arrays.asList("_", "BOOT_CLIENT", "OLDPWD", "PWD", "SHLVL");
+
+    // How long a cancelled command has to finish before its thread is stopped.
+    private static final long serverCancelGrace = 5000;
+
+    interface
+    Runner {
+        int run(String[] args) throws Exception; }
+
+    static class
+    SwitchStream extends OutputStream {
+        private final    OutputStream dfl;
+        private volatile OutputStream out;
+        public SwitchStream(OutputStream dfl) { this.dfl = this.out = dfl; }
+        public void set(OutputStream o) { out = (o != null) ? o : dfl; }
+        public void write(int b) throws IOException { out.write(b); }
+        public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); }
+        public void flush() throws IOException { out.flush(); }}
+
+    // An input stream fed with the stdin frames of the current client. Each
+    // command gets its own queue, so a late frame can't reach the next one.
+    // The stream is at its end between commands.
+    static class
+    FeedStream extends InputStream {
+        private static final byte[]                eof = new byte[0];
+        private volatile LinkedBlockingQueue<byte[]> q = new LinkedBlockingQueue<>();
+        private byte[]                             buf = eof;
+        private int                                pos = 0;
+
+        // Returns the queue of the next command; add byte arrays to it, and
+        // end() it when the input is done.
+        public synchronized LinkedBlockingQueue<byte[]>
+        open() {
+            q   = new LinkedBlockingQueue<>();
+            buf = null;
+            pos = 0;
+            return q; }
+
+        public static void
+        end(LinkedBlockingQueue<byte[]> q) { q.add(eof); }
+
+        public int
+        read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff); }
+
+        public synchronized int
+        read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            try {
+                while (buf != eof && (buf == null || pos == buf.length)) {
+                    buf = q.take();
+                    pos = 0; }}
+            catch (InterruptedException e) {
+                throw new InterruptedIOException(); }
+            if (buf == eof) return -1;
+            int n = Math.min(len, buf.length - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n; }}
+
+    private static class
+    FrameStream extends OutputStream {
+        private final DataOutputStream out;
+        private final int              type;
+        private final Runnable         onError;
+        public FrameStream(DataOutputStream out, int type, Runnable onError) {
+            this.out = out; this.type = type; this.onError = onError; }
+        public void write(int b) throws IOException { write(new byte[]{(byte) b}, 0, 1); }
+        public void write(byte[] b, int off, int len) {
+            synchronized (out) {
+                try { out.writeByte(type); out.writeInt(len); out.write(b, off, len); }
+                catch (IOException e) { onError.run(); }}}
+        public void flush() {
+            synchronized (out) {
+                try { out.flush(); }
+                catch (IOException e) { onError.run(); }}}}
+
+    private static class
+    ShimPool {
+        private final File                 cachefile;
+        private long                       stamp;
+        private Future<ClojureRuntimeShim> core;
+        private Future<ClojureRuntimeShim> worker;
+
+        public ShimPool(File cachefile) throws Exception {
+            this.cachefile = cachefile;
+            warm(); }
+
+        private long
+        inputsStamp() throws Exception {
+            long ret = cachefile.lastModified();
+            for (File f : propertiesFiles().values())
+                ret = 31 * ret + f.lastModified();
+            return ret; }
+
+        private void
+        warm() throws Exception {
+            HashMap<String, File[]> cache = (HashMap<String, File[]>) readCache(cachefile);
+            podjars    = cache.get("boot/pod");
+            corejars   = cache.get("boot/core");
+            workerjars = cache.get("boot/worker");
+            stamp      = inputsStamp();
+            core       = newCore(null);
+            worker     = newWorker(); }
+
+        private static void
+        close(Future<ClojureRuntimeShim> shim) {
+            try { shim.get().close(); }
+            catch (Throwable t) {}}
+
+        public synchronized void
+        refresh() throws Exception {
+            if (stamp != inputsStamp()) {
+                close(core);
+                close(worker);
+                depsCache = null;
+                warm(); }}
+
+        public synchronized Future<ClojureRuntimeShim>
+        takeCore() throws Exception {
+            Future<ClojureRuntimeShim> ret = core;
+            core = newCore(null);
+            return ret; }
+
+        public synchronized Future<ClojureRuntimeShim>
+        worker() { return worker; }}
+
+    private static File
+    serverFile(File cachehome) throws Exception {
+        String dir = md5hash(workdir.getCanonicalPath());
+        return mkFile(cachehome, "server", appversion, dir + ".properties"); }
+
+    private static String
+    refusal(String cwd, Map<String, String> env) throws Exception {
+        if (! workdir.getCanonicalPath().equals(cwd))
+            return "working directory differs";
+        Map<String, String> mine = new HashMap<>(System.getenv());
+        Map<String, String> theirs = new HashMap<>(env);
+        mine.keySet().removeAll(serverEnvIgnored);
+        theirs.keySet().removeAll(serverEnvIgnored);
+        return mine.equals(theirs) ? null : "environment differs"; }
+
+    // Waits for a cancelled command to finish, and stops its thread if it
+    // doesn't finish in time.
+    @SuppressWarnings("deprecation")
+    private static void
+    awaitCancelled(Thread t, CountDownLatch done) throws InterruptedException {
+        if (t == null || done.await(serverCancelGrace, TimeUnit.MILLISECONDS)) return;
+        try { t.stop(); }
+        catch (UnsupportedOperationException e) {}
+        if (! done.await(serverCancelGrace, TimeUnit.MILLISECONDS))
+            System.err.println("Boot server: cancelled command is still running"); }
+
+    static void
+    serve(Socket s, String token, Runner runner, SwitchStream out, SwitchStream err, FeedStream stdin) throws Exception {
+        final DataInputStream  in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+        if (! token.equals(in.readUTF())) return;
+        final String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) args[i] = in.readUTF();
+        String cwd = in.readUTF();
+        Map<String, String> env = new HashMap<>();
+        for (int i = in.readInt(); i > 0; i--) env.put(in.readUTF(), in.readUTF());
+
+        String refused = refusal(cwd, env);
+        if (refused != null) {
+            os.writeByte(FRAME_REFUSED);
+            os.writeUTF(refused);
+            os.flush();
+            return; }
+
+        final Runner                    r      = runner;
+        final AtomicReference<Thread>   thread = new AtomicReference<>();
+        final CountDownLatch            done   = new CountDownLatch(1);
+        final Future<Integer>           run    = ex.submit(new Callable<Integer>() {
+                public Integer
+                call() throws Exception {
+                    thread.set(Thread.currentThread());
+                    try { return r.run(args); }
+                    finally { done.countDown(); }}});
+        final Runnable                  cancel = new Runnable() {
+                public void run() { run.cancel(true); }};
+
+        final LinkedBlockingQueue<byte[]> feed = stdin.open();
+        out.set(new FrameStream(os, FRAME_OUT, cancel));
+        err.set(new FrameStream(os, FRAME_ERR, cancel));
+
+        // Reads stdin frames until the end of the input, and then waits for
+        // the client to close the socket, which cancels the command if it's
+        // still running.
+        ex.submit(new Runnable() {
+                public void run() {
+                    try {
+                        for (int len; (len = in.readInt()) > 0; ) {
+                            byte[] b = new byte[len];
+                            in.readFully(b);
+                            feed.add(b); }
+                        FeedStream.end(feed);
+                        while (in.read() >= 0); }
+                    catch (IOException e) {}
+                    finally {
+                        FeedStream.end(feed);
+                        cancel.run(); }}});
+
+        Integer code = null;
+        try { code = run.get(); }
+        catch (CancellationException e) { awaitCancelled(thread.get(), done); }
+        catch (ExecutionException e) { e.getCause().printStackTrace(); code = -2; }
+        finally {
+            System.out.flush();
+            System.err.flush();
+            out.set(null);
+            err.set(null);
+            FeedStream.end(feed); }
+
+        if (code == null)
+            System.err.println("Boot server: client went away, command cancelled");
+        else
+            synchronized (os) {
+                os.writeByte(FRAME_EXIT);
+                os.writeInt(code);
+                os.flush(); }}
+
+    static void
+    serve(ServerSocket socket, String token, Runner runner, SwitchStream out, SwitchStream err, FeedStream in) {
+        while (! socket.isClosed())
+            try (Socket s = socket.accept()) {
+                serve(s, token, runner, out, err, in); }
+            catch (Throwable t) {
+                if (! socket.isClosed()) t.printStackTrace(); }}
+
+    public static void
+    runServer(File serverfile, File cachefile) throws Exception {
+        // Pods bind *in*, *out*, and *err* to System.in, System.out, and
+        // System.err when they are created, so those are replaced once with
+        // streams that can be pointed at the current client. Requests are
+        // therefore served one at a time.
+        SwitchStream out = new SwitchStream(System.out);
+        SwitchStream err = new SwitchStream(System.err);
+        FeedStream   in  = new FeedStream();
+        System.setOut(new PrintStream(out, true));
+        System.setErr(new PrintStream(err, true));
+        System.setIn(in);
+
+        final ShimPool pool   = new ShimPool(cachefile);
+        ServerSocket   socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        String         token  = UUID.randomUUID().toString();
+        Properties     p      = new Properties();
+
+        p.setProperty("port", String.valueOf(socket.getLocalPort()));
+        p.setProperty("token", token);
+        // The file holds the token, so it's written to a temp file that only
+        // the user can read (Files.createTempFile makes it rw------- on POSIX
+        // systems) and then moved into place.
+        mkParents(serverfile);
+        File tmp = Files.createTempFile(serverfile.getParentFile().toPath(), serverfile.getName(), ".tmp").toFile();
+        tmp.setReadable(false, false);
+        tmp.setReadable(true, true);
+        tmp.setWritable(false, false);
+        tmp.setWritable(true, true);
+        try (FileOutputStream os = new FileOutputStream(tmp)) {
+            p.store(os, booturl); }
+        Files.move(tmp.toPath(), serverfile.toPath(),
+                   StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        serverfile.deleteOnExit();
+
+        System.err.printf("Boot server listening for %s...\n", workdir);
+        serve(socket, token, new Runner() {
+                public int
+                run(String[] args) throws Exception {
+                    pool.refresh();
+                    return runBoot(pool.takeCore(), pool.worker(), args); }},
+            out, err, in); }
+
+    public static Integer
+    runClient(File serverfile, String[] args) throws Exception {
+        return runClient(serverfile, args, workdir.getCanonicalPath(), System.getenv()); }
+
+    static Integer
+    runClient(File serverfile, String[] args, String cwd, Map<String, String> env) throws Exception {
+        Properties p = new Properties();
+        try (FileInputStream is = new FileInputStream(serverfile)) {
+            p.load(is); }
+        catch (FileNotFoundException e) { return null; }
+
+        Socket s = new Socket();
+        try {
+            int port = Integer.parseInt(p.getProperty("port"));
+            s.connect(new java.net.InetSocketAddress(InetAddress.getLoopbackAddress(), port)); }
+        catch (Throwable t) { s.close(); return null; }
+
+        try {
+            final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            DataInputStream        in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+
+            os.writeUTF(p.getProperty("token"));
+            os.writeInt(args.length);
+            for (String a : args) os.writeUTF(a);
+            os.writeUTF(cwd);
+            os.writeInt(env.size());
+            for (Map.Entry<String, String> e : env.entrySet()) {
+                os.writeUTF(e.getKey());
+                os.writeUTF(e.getValue()); }
+            os.flush();
+
+            final InputStream stdin = System.in;
+            Thread feed = new Thread() {
+                    public void run() {
+                        byte[] buf = new byte[8192];
+                        try {
+                            for (int n; (n = stdin.read(buf)) >= 0; ) {
+                                if (n == 0) continue;
+                                synchronized (os) {
+                                    os.writeInt(n);
+                                    os.write(buf, 0, n);
+                                    os.flush(); }}
+                            synchronized (os) {
+                                os.writeInt(0);
+                                os.flush(); }}
+                        catch (IOException e) {}}};
+            feed.setDaemon(true);
+            feed.start();
+
+            byte[] buf = new byte[8192];
+            while (true) {
+                int type = in.readByte();
+                if (type == FRAME_EXIT) return in.readInt();
+                if (type == FRAME_REFUSED) {
+                    System.err.printf("Boot server refused the command (%s), running it here...\n", in.readUTF());
+                    return null; }
+                int len = in.readInt();
+                if (len > buf.length) buf = new byte[len];
+                in.readFully(buf, 0, len);
+                PrintStream out = (type == FRAME_ERR) ? System.err : System.out;
+                out.write(buf, 0, len);
+                out.flush(); }}
+        finally { s.close(); }}
+
+    private static boolean
+    isTruthy(String v) {
+        return v.equals("yes") || v.equals("1") || v.equals("true"); }
+
+    // class data sharing ////////////////////////////////////////////////////
+
+    // Every launch loads and verifies the same classes from the same jars.
+    // With BOOT_CDS=yes a dynamic CDS archive of the classes the standard
+    // pods load is dumped by a background JVM, and later launches restart
+    // boot with that archive. The JVM only shares an archived class with the
+    // first class loader that defines it, so it's mostly the core pod and
+    // the worker's own dependencies that load faster. The gain is small, so
+    // it's off by default.
+    //
+    // A marker file next to the archive records the last attempt to dump it.
+    // No background dump is started while the marker is younger than
+    // cdsRetryInterval, so a dump that keeps failing, or one that's still
+    // running, isn't started again by every launch.
+
+    private static final long cdsRetryInterval = 60 * 60 * 1000;
+
+    private static File
+    appJar() throws Exception {
+        return new File(App.class.getProtectionDomain().getCodeSource().getLocation().toURI()); }
+
+    private static List<String>
+    javaCommand(String... opts) throws Exception {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(mkFile(new File(System.getProperty("java.home")), "bin", "java").getPath());
+        cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        for (String k : System.getProperties().stringPropertyNames())
+            if (k.startsWith("BOOT_")) cmd.add("-D" + k + "=" + System.getProperty(k));
+        cmd.addAll(Arrays.asList(opts));
+        cmd.add("-cp");
+        cmd.add(appJar().getPath());
+        cmd.add(App.class.getName());
+        return cmd; }
+
+    private static boolean
+    cdsSupported() throws Exception {
+        String v = System.getProperty("java.specification.version");
+        if (v.startsWith("1.") || Integer.parseInt(v) < 13) return false;
+        if (! appJar().isFile()) return false;
+        for (String a : ManagementFactory.getRuntimeMXBean().getInputArguments())
+            if (a.startsWith("-Xshare") || a.contains("SharedArchiveFile") || a.contains("ArchiveClassesAtExit"))
+                return false;
+        return true; }
+
+    private static File[]
+    podJars() {
+        List<File> ret = new ArrayList<>();
+        for (File[] fs : new File[][]{podjars, corejars, workerjars})
+            ret.addAll(Arrays.asList(fs));
+        return ret.toArray(new File[ret.size()]); }
+
+    private static File
+    cdsArchive(File cachefile) throws Exception {
+        String vm = System.getProperty("java.vm.version").replaceAll("[^\\w.-]", "_");
+        return new File(cachefile.getParentFile(),
+                        "pods-" + vm + "-" + md5hash(Arrays.toString(podJars())) + ".jsa"); }
+
+    private static boolean
+    isFresh(File archive) throws Exception {
+        long t = archive.lastModified();
+        if (t == 0) return false;
+        for (File f : podJars())
+            if (f.lastModified() > t) return false;
+        return true; }
+
+    private static void
+    trainPods() throws Exception {
+        // Sequentially, so the classes the pods have in common are recorded
+        // for the core pod, which is the one that needs them first.
+        ClojureRuntimeShim core = newCore(null).get();
+        core.require("boot.main");
+        ClojureRuntimeShim worker = newWorker().get();
+        worker.require("boot.aether");
+        worker.close();
+        core.close(); }
+
+    public static void
+    dumpArchive(File archive) throws Exception {
+        File lockfile = new File(archive.getPath() + ".lock");
+        File tmp      = new File(archive.getPath() + ".tmp");
+        File log      = new File(archive.getPath() + ".log");
+        try (FileChannel ch = new RandomAccessFile(lockfile, "rw").getChannel();
+                FileLock lock = ch.tryLock()) {
+            if (lock == null || isFresh(archive)) return;
+            List<String> cmd = javaCommand("-XX:ArchiveClassesAtExit=" + tmp.getPath());
+            cmd.add("--cds-train");
+            Process p = new ProcessBuilder(cmd)
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .start();
+            if (p.waitFor() == 0 && tmp.exists()) {
+                // Only this archive is replaced: the others in the dir are
+                // for other VMs or pod jars, eg. other projects' boot versions.
+                Files.move(tmp.toPath(), archive.toPath(),
+                           StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                cdsMarker(archive).delete(); }
+            else {
+                tmp.delete();
+                touch(cdsMarker(archive)); }}}
+
+    private static File
+    cdsMarker(File archive) {
+        return new File(archive.getPath() + ".attempt"); }
+
+    private static void
+    touch(File f) throws IOException {
+        if (! f.createNewFile()) f.setLastModified(System.currentTimeMillis()); }
+
+    private static void
+    dumpArchiveInBackground(File archive) throws Exception {
+        File marker = cdsMarker(archive);
+        if (System.currentTimeMillis() - marker.lastModified() < cdsRetryInterval) return;
+        mkParents(marker);
+        touch(marker);
+        List<String> cmd = javaCommand();
+        cmd.add("--cds");
+        new ProcessBuilder(cmd)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.appendTo(new File(System.getProperty("java.io.tmpdir"), "boot-cds.log")))
+            .start(); }
+
+    private static int
+    runWithArchive(File archive, String[] args) throws Exception {
+        List<String> cmd = javaCommand(
+            "-XX:SharedArchiveFile=" + archive.getPath(), "-Xshare:auto", "-Xlog:cds=off");
+        cmd.addAll(Arrays.asList(args));
+        return new ProcessBuilder(cmd).inheritIO().start().waitFor(); }
+
     public static String
     readVersion() throws Exception {
         Properties p = new Properties();
@@ -464,6 +976,10 @@ public class App {
         cljname          = config("BOOT_CLOJURE_NAME", "org.clojure/clojure");
         aetherfile       = mkFile(cachehome, "lib", appversion, aetherjar);
 
+        if (isTruthy(config("BOOT_CLIENT", "no"))) {
+            Integer code = runClient(serverFile(cachehome), args);
+            if (code != null) System.exit(code); }
+
         readProps(bootprops, true);
 
         if (args.length > 0
@@ -489,12 +1005,34 @@ public class App {
             : md5hash((new File(localrepo)).getCanonicalFile().getPath());
 
         File cachefile = mkFile(bootcache, repo, cljversion, bootversion, "deps.cache");
+
+        if (args.length > 0 && (args[0]).equals("--server")) {
+            runServer(serverFile(cachehome), cachefile);
+            System.exit(0); }
+
         HashMap<String, File[]> cache = (HashMap<String, File[]>) readCache(cachefile);
 
         podjars    = cache.get("boot/pod");
         corejars   = cache.get("boot/core");
         workerjars = cache.get("boot/worker");
 
+        if (args.length > 0 && (args[0]).equals("--cds-train")) {
+            trainPods();
+            System.exit(0); }
+
+        if (args.length > 0 && (args[0]).equals("--cds")) {
+            if (! cdsSupported())
+                throw new Exception("class data sharing needs Java 13+ and boot running from a jar");
+            File archive = cdsArchive(cachefile);
+            dumpArchive(archive);
+            System.out.println(archive.getPath());
+            System.exit(0); }
+
+        if (isTruthy(config("BOOT_CDS", "no")) && cdsSupported()) {
+            File archive = cdsArchive(cachefile);
+            if (isFresh(archive)) System.exit(runWithArchive(archive, args));
+            dumpArchiveInBackground(archive); }
+
         Thread shutdown = new Thread() { public void run() { ex.shutdown(); }};
         Runtime.getRuntime().addShutdownHook(shutdown);
         System.exit(runBoot(newCore(null), newWorker(), args)); }}
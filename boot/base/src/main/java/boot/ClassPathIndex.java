@@ -0,0 +1,133 @@
+// vim: et:ts=4:sw=4
+
+package boot;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+// The resources in a jar file, for AddableClassLoader to find the jars that
+// may contain a resource without probing every jar on the classpath. A jar
+// is represented by the set of directories that contain its entries and the
+// sorted 64-bit hashes of its entry names. Indexes are kept in memory and in
+// the boot cache, keyed by the jar's path, size and modification time, so a
+// jar is only scanned once.
+class ClassPathIndex {
+    private static final int    VERSION = 1;
+    private static final String CACHEDIR = "classpath-index";
+
+    private static final ConcurrentHashMap<String, ClassPathIndex> jars = new ConcurrentHashMap<>();
+
+    // Whether the class loader can look up resources in this jar by its
+    // index. Jars whose manifests add other jars to the classpath, and jars
+    // with a META-INF/INDEX.LIST, are searched by the URLClassLoader.
+    final boolean  plain;
+    final String[] dirs;
+    final long[]   hashes;
+
+    private ClassPathIndex(boolean plain, String[] dirs, long[] hashes) {
+        this.plain = plain; this.dirs = dirs; this.hashes = hashes; }
+
+    boolean
+    contains(long hash) {
+        return Arrays.binarySearch(hashes, hash) >= 0; }
+
+    static String
+    dir(String name) {
+        return name.substring(0, name.lastIndexOf('/') + 1); }
+
+    // String.hashCode() in the high bits and FNV-1a in the low bits, so two
+    // names in the same jar directory are very unlikely to collide.
+    static long
+    hash(String name) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x01000193; }
+        return ((long) name.hashCode() << 32) | (h & 0xffffffffL); }
+
+    private static File
+    cacheFile(String key) throws Exception {
+        return App.mkFile(App.bootdir(), "cache", "cache", CACHEDIR, App.md5hash(key)); }
+
+    static ClassPathIndex
+    get(File jar) {
+        String key = jar.getAbsolutePath() + "|" + jar.length() + "|" + jar.lastModified();
+        ClassPathIndex ret = jars.get(key);
+        if (ret == null) {
+            ret = read(key);
+            if (ret == null) {
+                try { ret = scan(jar); }
+                catch (IOException e) { return null; }
+                write(key, ret); }
+            jars.put(key, ret); }
+        return ret; }
+
+    private static ClassPathIndex
+    scan(File jar) throws IOException {
+        HashSet<String> names = new HashSet<>();
+        boolean plain = true;
+        try (JarFile jf = new JarFile(jar, false)) {
+            Manifest m = jf.getManifest();
+            if (m != null && m.getMainAttributes().getValue(Attributes.Name.CLASS_PATH) != null)
+                plain = false;
+            Enumeration<? extends ZipEntry> es = jf.entries();
+            while (es.hasMoreElements()) {
+                String name = es.nextElement().getName();
+                if (name.equals("META-INF/INDEX.LIST")) plain = false;
+                names.add(name);
+                // Multi-release jars resolve versions/N/x to x, and the jar
+                // lookup of x also finds a directory entry x/.
+                if (name.startsWith("META-INF/versions/")) {
+                    int i = name.indexOf('/', 18);
+                    if (i > 0) names.add(name.substring(i + 1)); }
+                if (name.endsWith("/"))
+                    names.add(name.substring(0, name.length() - 1)); }}
+        HashSet<String> dirs = new HashSet<>();
+        long[] hashes = new long[names.size()];
+        int i = 0;
+        for (String name : names) {
+            dirs.add(dir(name));
+            hashes[i++] = hash(name); }
+        Arrays.sort(hashes);
+        return new ClassPathIndex(plain, dirs.toArray(new String[dirs.size()]), hashes); }
+
+    private static ClassPathIndex
+    read(String key) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile(key))))) {
+            if (in.readInt() != VERSION || !in.readUTF().equals(key)) return null;
+            boolean  plain  = in.readBoolean();
+            String[] dirs   = new String[in.readInt()];
+            for (int i = 0; i < dirs.length; i++) dirs[i] = in.readUTF();
+            long[]   hashes = new long[in.readInt()];
+            for (int i = 0; i < hashes.length; i++) hashes[i] = in.readLong();
+            return new ClassPathIndex(plain, dirs, hashes); }
+        catch (Throwable e) { return null; }}
+
+    private static void
+    write(String key, ClassPathIndex idx) {
+        File f = null, tmp = null;
+        try {
+            f   = cacheFile(key);
+            tmp = new File(f.getPath() + "." + UUID.randomUUID());
+            App.mkParents(f);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                out.writeBoolean(idx.plain);
+                out.writeInt(idx.dirs.length);
+                for (String d : idx.dirs) out.writeUTF(d);
+                out.writeInt(idx.hashes.length);
+                for (long h : idx.hashes) out.writeLong(h); }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE); }
+        catch (Throwable e) { if (tmp != null) tmp.delete(); }}}
@@ -0,0 +1,81 @@
+// vim: et:ts=4:sw=4
+
+package boot;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// The 64-bit xxHash of a stream of bytes (XXH64, seed 0), a fast
+// non-cryptographic hash that boot can use for fileset content hashes. See
+// https://github.com/Cyan4973/xxHash/blob/dev/doc/xxhash_spec.md. Input is
+// consumed in 32-byte stripes; the tail of an update that doesn't fill a
+// stripe is kept until the next update or getValue.
+public final class XXHash64 {
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+
+    private final ByteBuffer tail = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+
+    private long v1 = P1 + P2, v2 = P2, v3 = 0, v4 = -P1, total = 0;
+
+    private static long
+    round(long acc, long input) {
+        return Long.rotateLeft(acc + input * P2, 31) * P1; }
+
+    private static long
+    merge(long acc, long v) {
+        return (acc ^ round(0, v)) * P1 + P4; }
+
+    // Consumes whole stripes of the little-endian buffer b.
+    private void
+    stripes(ByteBuffer b) {
+        long a1 = v1, a2 = v2, a3 = v3, a4 = v4;
+        while (b.remaining() >= 32) {
+            a1 = round(a1, b.getLong());
+            a2 = round(a2, b.getLong());
+            a3 = round(a3, b.getLong());
+            a4 = round(a4, b.getLong()); }
+        v1 = a1; v2 = a2; v3 = a3; v4 = a4; }
+
+    public void
+    update(ByteBuffer buf) {
+        ByteBuffer b = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        total += b.remaining();
+        if (tail.position() > 0) {
+            while (tail.hasRemaining() && b.hasRemaining()) tail.put(b.get());
+            if (tail.hasRemaining()) { buf.position(b.position()); return; }
+            tail.flip();
+            stripes(tail);
+            tail.clear(); }
+        stripes(b);
+        tail.put(b);
+        buf.position(b.position()); }
+
+    public void
+    update(byte[] bytes, int off, int len) {
+        update(ByteBuffer.wrap(bytes, off, len)); }
+
+    public long
+    getValue() {
+        ByteBuffer b = ((ByteBuffer) tail.duplicate().flip()).order(ByteOrder.LITTLE_ENDIAN);
+        long h = total >= 32
+            ? merge(merge(merge(merge(Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                                      + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18),
+                                      v1), v2), v3), v4)
+            : P5;
+        h += total;
+        while (b.remaining() >= 8)
+            h = Long.rotateLeft(h ^ round(0, b.getLong()), 27) * P1 + P4;
+        if (b.remaining() >= 4)
+            h = Long.rotateLeft(h ^ (b.getInt() & 0xffffffffL) * P1, 23) * P2 + P3;
+        while (b.hasRemaining())
+            h = Long.rotateLeft(h ^ (b.get() & 0xffL) * P5, 11) * P1;
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        return h ^ (h >>> 32); }
+}
@@ -0,0 +1,119 @@
+package boot;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Round trips through the boot server with a runner that stands in for
+ * runBoot: "echo" prints its arguments and copies stdin to stderr, "block"
+ * sleeps until it's interrupted.
+ */
+public class ServerTest extends TestCase {
+
+    private final App.SwitchStream out = new App.SwitchStream(new ByteArrayOutputStream());
+    private final App.SwitchStream err = new App.SwitchStream(new ByteArrayOutputStream());
+    private final App.FeedStream   in  = new App.FeedStream();
+    private final ExecutorService  ex  = Executors.newCachedThreadPool();
+    private volatile boolean       interrupted;
+    private ServerSocket           socket;
+    private File                   serverfile;
+
+    private final App.Runner runner = new App.Runner() {
+            public int
+            run(String[] args) throws Exception {
+                if (args[0].equals("block"))
+                    try { Thread.sleep(Long.MAX_VALUE); }
+                    catch (InterruptedException e) { interrupted = true; throw e; }
+                PrintStream o = new PrintStream(out, true);
+                PrintStream e = new PrintStream(err, true);
+                for (String a : args) o.print(a + " ");
+                byte[] buf = new byte[1024];
+                for (int n; (n = in.read(buf)) >= 0; ) e.write(buf, 0, n);
+                e.flush();
+                return 3; }};
+
+    protected void
+    setUp() throws Exception {
+        socket     = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        serverfile = File.createTempFile("boot-server", ".properties");
+        Properties p = new Properties();
+        p.setProperty("port", String.valueOf(socket.getLocalPort()));
+        p.setProperty("token", "secret");
+        try (FileOutputStream os = new FileOutputStream(serverfile)) {
+            p.store(os, null); }
+        ex.submit(new Runnable() {
+                public void run() { App.serve(socket, "secret", runner, out, err, in); }}); }
+
+    protected void
+    tearDown() throws Exception {
+        socket.close();
+        serverfile.delete();
+        ex.shutdownNow(); }
+
+    private String[]
+    request(final String[] args, final Map<String, String> env, String stdin) throws Exception {
+        InputStream            sysin  = System.in;
+        PrintStream            sysout = System.out, syserr = System.err;
+        ByteArrayOutputStream  o      = new ByteArrayOutputStream();
+        ByteArrayOutputStream  e      = new ByteArrayOutputStream();
+        System.setIn(new ByteArrayInputStream(stdin.getBytes("UTF-8")));
+        System.setOut(new PrintStream(o, true));
+        System.setErr(new PrintStream(e, true));
+        try {
+            Future<Integer> code = ex.submit(new Callable<Integer>() {
+                    public Integer
+                    call() throws Exception {
+                        return App.runClient(serverfile, args, new File(System.getProperty("user.dir")).getCanonicalPath(), env); }});
+            return new String[] {String.valueOf(code.get(10, TimeUnit.SECONDS)), o.toString("UTF-8"), e.toString("UTF-8")}; }
+        finally {
+            System.setIn(sysin);
+            System.setOut(sysout);
+            System.setErr(syserr); }}
+
+    public void
+    testRoundTrip() throws Exception {
+        String[] ret = request(new String[] {"echo", "a b"}, System.getenv(), "from stdin");
+        assertEquals("3", ret[0]);
+        assertEquals("echo a b ", ret[1]);
+        assertEquals("from stdin", ret[2]); }
+
+    public void
+    testRefusesOtherEnvironments() throws Exception {
+        Map<String, String> env = new HashMap<>(System.getenv());
+        env.put("BOOT_SERVER_TEST", "1");
+        String[] ret = request(new String[] {"echo"}, env, "");
+        assertEquals("null", ret[0]);
+        assertTrue(ret[2].contains("environment differs")); }
+
+    public void
+    testDisconnectCancels() throws Exception {
+        try (Socket s = new Socket()) {
+            s.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort()));
+            DataOutputStream os = new DataOutputStream(s.getOutputStream());
+            os.writeUTF("secret");
+            os.writeInt(1);
+            os.writeUTF("block");
+            os.writeUTF(new File(System.getProperty("user.dir")).getCanonicalPath());
+            os.writeInt(System.getenv().size());
+            for (Map.Entry<String, String> e : System.getenv().entrySet()) {
+                os.writeUTF(e.getKey());
+                os.writeUTF(e.getValue()); }
+            os.flush();
+            Thread.sleep(200); }
+        String[] ret = request(new String[] {"echo"}, System.getenv(), "");
+        assertTrue(interrupted);
+        assertEquals("3", ret[0]); }
+}
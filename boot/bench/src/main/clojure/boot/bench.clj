@@ -0,0 +1,240 @@
+(ns boot.bench
+  "Fixtures for the JMH benchmarks in boot.bench. They're loaded into a pod
+  by boot.bench.Runtimes and called from the benchmark methods through the
+  pod's shim. The synthetic trees are generated from fixed seeds, so every
+  run measures the same files.
+
+  Fixtures that measure a change flip between two states, a and b, which
+  differ in the files changed by touch!, so each call does the same work."
+  (:require
+    [clojure.java.io  :as io]
+    [boot.core        :as core]
+    [boot.file        :as file]
+    [boot.filesystem  :as fs]
+    [boot.from.digest :as digest]
+    [boot.jar         :as jar]
+    [boot.pod         :as pod]
+    [boot.tmpdir      :as tmpd])
+  (:import
+    [java.io File]
+    [java.nio.file Files StandardCopyOption]
+    [java.util Random]))
+
+(set! *warn-on-reflection* true)
+
+;; synthetic trees ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(defn ^File tempdir!
+  []
+  (doto (File/createTempFile "boot-bench" "") .delete .mkdirs))
+
+(defn delete!
+  [& dirs]
+  (doseq [d dirs :when d] (file/delete-all d) (.delete (io/file d))))
+
+(defn- random-bytes
+  [^Random r n]
+  (let [b (byte-array n)] (.nextBytes r b) b))
+
+(defn- small-path
+  [i]
+  (format "src/d%02d/e%02d/f%05d.clj" (mod i 32) (mod (quot i 32) 16) i))
+
+(defn- write-jar!
+  "Writes a jar of about size bytes of incompressible entries to f."
+  [^File f size ^Random r]
+  (let [tmp (tempdir!)
+        n   64]
+    (jar/spit-jar! (.getPath f)
+                   (for [i (range n) :let [e (io/file tmp (str "e" i ".bin"))]]
+                     (do (io/copy (random-bytes r (quot size n)) e)
+                         [(format "bench/e%02d.bin" i) (.getPath e)]))
+                   {} nil)
+    (delete! tmp)))
+
+(defn tree!
+  "Writes n small files of 100 bytes to 4 KiB, and k jars of about size bytes,
+  to a new temporary directory. Returns the directory."
+  [n k size]
+  (let [dir (tempdir!)
+        r   (Random. 42)]
+    (dotimes [i n]
+      (io/copy (random-bytes r (+ 100 (.nextInt r 4000)))
+               (doto (io/file dir (small-path i)) io/make-parents)))
+    (dotimes [i k]
+      (write-jar! (doto (io/file dir "lib" (str "jar" i ".jar")) io/make-parents) size r))
+    dir))
+
+(def ^:private ^"[Ljava.nio.file.CopyOption;" copy-attrs
+  (into-array java.nio.file.CopyOption [StandardCopyOption/COPY_ATTRIBUTES]))
+
+(defn copy-tree!
+  "Copies the tree at src, with the modification times of its files, to a new
+  temporary directory. Returns the directory."
+  [src]
+  (let [src  (.toPath (io/file src))
+        dest (tempdir!)]
+    (doseq [^File f (file-seq (.toFile src)) :when (.isFile f)]
+      (let [p (.resolve (.toPath dest) (.relativize src (.toPath f)))]
+        (Files/createDirectories (.getParent p) (make-array java.nio.file.attribute.FileAttribute 0))
+        (Files/copy (.toPath f) p copy-attrs)))
+    dest))
+
+(defn touch!
+  "Rewrites m of the n small files of the tree at dir with new content."
+  [dir n m]
+  (let [r (Random. 7)]
+    (doseq [i (take m (distinct (repeatedly #(.nextInt r (int n)))))]
+      (let [f (io/file dir (small-path i))]
+        (io/copy (random-bytes r (+ 100 (.nextInt r 4000))) f)
+        (.setLastModified f (+ (.lastModified f) 2000))))
+    dir))
+
+(defn- flip!
+  "Returns the state at :a or :b, whichever isn't current, and makes it the
+  current one."
+  [{:keys [current] :as state}]
+  (get state (swap! current #(if (= :a %) :b :a))))
+
+;; filesets ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(defn fileset
+  "Returns an empty fileset with one output dir and its own blob store."
+  []
+  (tmpd/map->TmpFileSet {:dirs    [(tmpd/map->TmpDir {:dir (tempdir!) :output true})]
+                         :tree    {}
+                         :blob    (tempdir!)
+                         :scratch (tempdir!)}))
+
+(defn- out-dir
+  [fs]
+  (:dir (first (:dirs fs))))
+
+(defn fileset-state
+  "Adds a tree of n small files and k jars of size bytes to a fileset (a), and
+  the same tree with m files changed to another (b), and commits a."
+  [n k size m]
+  (let [src-a (tree! n k size)
+        src-b (touch! (copy-tree! src-a) n m)
+        empty (fileset)
+        a     (tmpd/commit! (tmpd/add empty (out-dir empty) src-a {}))
+        b     (tmpd/add empty (out-dir empty) src-b {})]
+    {:src-a src-a :src-b src-b :empty empty :a a :b b :current (atom :a)}))
+
+(defn add
+  "Adds the tree of the state to its empty fileset."
+  [{:keys [src-a empty]}]
+  (tmpd/add empty (out-dir empty) src-a {}))
+
+(defn commit
+  "Commits the fileset that isn't current, applying the changes to the other."
+  [state]
+  (tmpd/commit! (flip! state)))
+
+(defn diff
+  [{:keys [a b]}]
+  (tmpd/diff a b))
+
+(defn close-fileset-state
+  [{:keys [src-a src-b empty]}]
+  (apply delete! src-a src-b (:blob empty) (:scratch empty) (map :dir (:dirs empty))))
+
+;; patch and sync ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(defn patch-state
+  "Writes a tree of n small files and k jars of size bytes (a), and a copy of
+  it with m files changed (b), and patches a new directory to a."
+  [n k size m]
+  (let [src-a (tree! n k size)
+        src-b (touch! (copy-tree! src-a) n m)
+        dest  (tempdir!)
+        a     (fs/mktree (fs/->path src-a))
+        b     (fs/mktree (fs/->path src-b))]
+    (fs/patch! (fs/->path dest) (fs/mktree (fs/->path dest)) a :link :all)
+    {:src-a src-a :src-b src-b :dest dest :a a :b b :current (atom :a)}))
+
+(defn patch
+  "Patches the dest dir from the current tree to the other one."
+  [{:keys [dest a b] :as state}]
+  (let [[before after] (if (= :a @(:current state)) [a b] [b a])]
+    (flip! state)
+    (fs/patch! (fs/->path dest) before after :link :all :parallelism tmpd/*commit-parallelism*)))
+
+(defn sync-dir
+  "Syncs the dest dir with the tree that isn't current, with core/sync!."
+  [{:keys [dest src-a src-b] :as state}]
+  (core/sync! dest (if (= :a @(:current state)) src-b src-a))
+  (flip! state))
+
+(defn close-patch-state
+  [{:keys [src-a src-b dest]}]
+  (delete! src-a src-b dest))
+
+;; digest ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(defn random-file
+  "Writes size random bytes to a new temporary file. Returns the file."
+  [size]
+  (let [f (File/createTempFile "boot-bench" ".bin")
+        r (Random. size)]
+    (with-open [^java.io.OutputStream out (io/output-stream f)]
+      (loop [left size]
+        (when (pos? left)
+          (let [n (min left (* 1024 1024))]
+            (.write out ^bytes (random-bytes r n))
+            (recur (- left n))))))
+    f))
+
+(defn md5
+  [f]
+  (digest/md5 f))
+
+;; jars ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(defn jar-state
+  "Like fileset-state, with the jar file that spit-jar and update-jar write."
+  [n k size m]
+  (assoc (fileset-state n k size m) :jar (File/createTempFile "boot-bench" ".jar")))
+
+(defn spit-jar
+  [{:keys [src-a jar]}]
+  (let [src (.toPath (io/file src-a))]
+    (jar/spit-jar! (.getPath ^File jar)
+                   (for [^File f (file-seq (io/file src-a)) :when (.isFile f)]
+                     [(str (.relativize src (.toPath f))) (.getPath f)])
+                   {} nil)))
+
+(defn commit-next
+  "Commits the fileset that isn't current, without making it current, so the
+  next update-jar writes it."
+  [{:keys [a b current]}]
+  (tmpd/commit! (if (= :a @current) b a)))
+
+(defn update-jar
+  "Updates the jar from the current fileset to the other one, which must
+  have been committed with commit-next."
+  [{:keys [jar a b] :as state}]
+  (let [[old new] (if (= :a @(:current state)) [a b] [b a])]
+    (flip! state)
+    (jar/update-jar! jar old new {} nil)))
+
+(defn close-jar-state
+  [{:keys [^File jar] :as state}]
+  (.delete jar)
+  (close-fileset-state state))
+
+;; pods ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(def payloads
+  {"small" [:ok 1 "two"]
+   "large" (into {} (for [i (range 1000)]
+                      [(keyword (str "k" i)) {:path (small-path i) :id (str i) :time i}]))})
+
+(defn payload
+  [name]
+  (get payloads name))
+
+(defn call-in
+  "Evaluates (identity x) in the pod and returns the result."
+  [pod x]
+  (pod/call-in* pod (list 'clojure.core/identity x)))
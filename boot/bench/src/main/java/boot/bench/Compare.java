@@ -0,0 +1,127 @@
+package boot.bench;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares two JMH JSON result files, a baseline and a new run:
+ *
+ *     java -cp target/benchmarks.jar boot.bench.Compare baseline.json target/jmh-result.json [percent]
+ *
+ * Prints the score of each benchmark in both and the change, and exits with
+ * status 1 if any got worse by more than percent (default 10).
+ */
+public class Compare {
+
+    public static void
+    main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: Compare <baseline.json> <result.json> [percent]");
+            System.exit(2); }
+
+        double              limit = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+        Map<String, Object[]> old = scores(args[0]);
+        Map<String, Object[]> now = scores(args[1]);
+        int                 worse = 0;
+
+        System.out.printf("%-60s %12s %12s %8s%n", "Benchmark", "Baseline", "Result", "Change");
+        for (Map.Entry<String, Object[]> e : now.entrySet()) {
+            Object[] b = old.get(e.getKey());
+            Object[] r = e.getValue();
+            if (b == null) {
+                System.out.printf("%-60s %12s %12.3f %8s %s%n", e.getKey(), "-", r[0], "new", r[1]);
+                continue; }
+            double pct = ((Double) r[0] - (Double) b[0]) / (Double) b[0] * 100;
+            // throughput scores are better higher, time scores lower
+            boolean regressed = "thrpt".equals(r[2]) ? pct < -limit : pct > limit;
+            if (regressed) worse++;
+            System.out.printf("%-60s %12.3f %12.3f %+7.1f%% %s%s%n",
+                              e.getKey(), b[0], r[0], pct, r[1], regressed ? "  WORSE" : ""); }
+
+        if (worse > 0) {
+            System.out.printf("%d benchmarks got more than %.0f%% worse%n", worse, limit);
+            System.exit(1); }}
+
+    /** Returns benchmark name with params => [score, unit, mode]. */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object[]>
+    scores(String file) throws Exception {
+        String               json = new String(Files.readAllBytes(new File(file).toPath()), StandardCharsets.UTF_8);
+        Map<String, Object[]> ret = new LinkedHashMap<>();
+        for (Object o : (List<Object>) new Json(json).read()) {
+            Map<String, Object> run    = (Map<String, Object>) o;
+            Map<String, Object> metric = (Map<String, Object>) run.get("primaryMetric");
+            Object              params = run.get("params");
+            String              name   = ((String) run.get("benchmark")).replaceFirst("^boot\\.bench\\.", "");
+            if (params != null) name += new TreeMap<>((Map<String, Object>) params);
+            ret.put(name, new Object[] {
+                    ((Number) metric.get("score")).doubleValue(), metric.get("scoreUnit"), run.get("mode")}); }
+        return ret; }
+
+    /** A reader for the JSON that JMH writes. */
+    private static class Json {
+        private final String s;
+        private int          i;
+
+        Json(String s) { this.s = s; }
+
+        Object
+        read() {
+            skip();
+            char c = s.charAt(i);
+            if (c == '{') {
+                Map<String, Object> m = new LinkedHashMap<>();
+                i++;
+                while (skip() != '}') {
+                    String k = (String) read();
+                    skip(); i++; // :
+                    m.put(k, read());
+                    if (skip() == ',') i++; }
+                i++;
+                return m; }
+            if (c == '[') {
+                List<Object> l = new ArrayList<>();
+                i++;
+                while (skip() != ']') {
+                    l.add(read());
+                    if (skip() == ',') i++; }
+                i++;
+                return l; }
+            if (c == '"') {
+                StringBuilder b = new StringBuilder();
+                for (i++; s.charAt(i) != '"'; i++) {
+                    char x = s.charAt(i);
+                    if (x != '\\') { b.append(x); continue; }
+                    x = s.charAt(++i);
+                    switch (x) {
+                    case 'n': b.append('\n'); break;
+                    case 't': b.append('\t'); break;
+                    case 'r': b.append('\r'); break;
+                    case 'b': b.append('\b'); break;
+                    case 'f': b.append('\f'); break;
+                    case 'u': b.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16)); i += 4; break;
+                    default:  b.append(x); }}
+                i++;
+                return b.toString(); }
+            int start = i;
+            while (i < s.length() && ",}] \t\r\n".indexOf(s.charAt(i)) < 0) i++;
+            String t = s.substring(start, i);
+            switch (t) {
+            case "true":  return Boolean.TRUE;
+            case "false": return Boolean.FALSE;
+            case "null":  return null;
+            case "NaN":   return Double.NaN;
+            default:      return Double.valueOf(t); }}
+
+        private char
+        skip() {
+            while (Character.isWhitespace(s.charAt(i))) i++;
+            return s.charAt(i); }
+    }
+}
@@ -0,0 +1,43 @@
+package boot.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.projectodd.shimdandy.ClojureRuntimeShim;
+
+/**
+ * boot.from.digest/md5 of a file of random bytes. Divide the size by the time
+ * for the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DigestBench {
+
+    @Param({"4096", "1048576", "67108864"})
+    public long size;
+
+    private ClojureRuntimeShim host;
+    private Object             md5;
+    private File               file;
+
+    @Setup
+    public void
+    setup() throws Exception {
+        host = Runtimes.newHost("bench");
+        file = (File) host.invoke("boot.bench/random-file", size);
+        md5  = Runtimes.fn(host, "boot.bench/md5"); }
+
+    @TearDown
+    public void
+    tearDown() throws Exception {
+        file.delete();
+        Runtimes.destroy(host); }
+
+    @Benchmark
+    public Object
+    md5() { return host.invoke(md5, file); }
+}
@@ -0,0 +1,56 @@
+package boot.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.projectodd.shimdandy.ClojureRuntimeShim;
+
+/**
+ * TmpFileSet operations on a synthetic tree of small files and a few large
+ * jars: adding the tree to an empty fileset (with the hash index warm, as in
+ * watch mode), committing a change to some of the files, and diffing the
+ * filesets before and after that change.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilesetBench {
+
+    @Param({"1000", "10000"})
+    public long files;
+
+    @Param({"10"})
+    public long changed;
+
+    private ClojureRuntimeShim host;
+    private Object             state, add, commit, diff;
+
+    @Setup
+    public void
+    setup() throws Exception {
+        host   = Runtimes.newHost("bench");
+        state  = host.invoke("boot.bench/fileset-state", files, Runtimes.JARS, Runtimes.JAR_SIZE, changed);
+        add    = Runtimes.fn(host, "boot.bench/add");
+        commit = Runtimes.fn(host, "boot.bench/commit");
+        diff   = Runtimes.fn(host, "boot.bench/diff"); }
+
+    @TearDown
+    public void
+    tearDown() throws Exception {
+        host.invoke("boot.bench/close-fileset-state", state);
+        Runtimes.destroy(host); }
+
+    @Benchmark
+    public Object
+    add() { return host.invoke(add, state); }
+
+    @Benchmark
+    public Object
+    commit() { return host.invoke(commit, state); }
+
+    @Benchmark
+    public Object
+    diff() { return host.invoke(diff, state); }
+}
@@ -0,0 +1,59 @@
+package boot.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.projectodd.shimdandy.ClojureRuntimeShim;
+
+/**
+ * Writing a jar of a synthetic tree of small files and a few large jars with
+ * boot.jar/spit-jar!, and rewriting it with boot.jar/update-jar! after some of
+ * the files changed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class JarBench {
+
+    @Param({"1000", "10000"})
+    public long files;
+
+    @Param({"10"})
+    public long changed;
+
+    private ClojureRuntimeShim host;
+    private Object             state, spitJar, updateJar;
+
+    /** Commits the fileset the next updateJar writes, outside of the measurement. */
+    @State(Scope.Benchmark)
+    public static class Next {
+        @Setup(Level.Invocation)
+        public void
+        commit(JarBench bench) {
+            bench.host.invoke("boot.bench/commit-next", bench.state); }
+    }
+
+    @Setup
+    public void
+    setup() throws Exception {
+        host      = Runtimes.newHost("bench");
+        state     = host.invoke("boot.bench/jar-state", files, Runtimes.JARS, Runtimes.JAR_SIZE, changed);
+        spitJar   = Runtimes.fn(host, "boot.bench/spit-jar");
+        updateJar = Runtimes.fn(host, "boot.bench/update-jar"); }
+
+    @TearDown
+    public void
+    tearDown() throws Exception {
+        host.invoke("boot.bench/close-jar-state", state);
+        Runtimes.destroy(host); }
+
+    @Benchmark
+    public Object
+    spitJar() { return host.invoke(spitJar, state); }
+
+    @Benchmark
+    public Object
+    updateJar(Next next) { return host.invoke(updateJar, state); }
+}
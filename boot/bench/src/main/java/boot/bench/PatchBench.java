@@ -0,0 +1,50 @@
+package boot.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.projectodd.shimdandy.ClojureRuntimeShim;
+
+/**
+ * Updating a directory from one synthetic tree to a copy of it with some
+ * files changed, and back: with boot.filesystem/patch! given both trees, and
+ * with boot.core/sync!, which scans the source tree and the directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PatchBench {
+
+    @Param({"1000", "10000"})
+    public long files;
+
+    @Param({"10"})
+    public long changed;
+
+    private ClojureRuntimeShim host;
+    private Object             state, patch, sync;
+
+    @Setup
+    public void
+    setup() throws Exception {
+        host  = Runtimes.newHost("bench");
+        state = host.invoke("boot.bench/patch-state", files, Runtimes.JARS, Runtimes.JAR_SIZE, changed);
+        patch = Runtimes.fn(host, "boot.bench/patch");
+        sync  = Runtimes.fn(host, "boot.bench/sync-dir"); }
+
+    @TearDown
+    public void
+    tearDown() throws Exception {
+        host.invoke("boot.bench/close-patch-state", state);
+        Runtimes.destroy(host); }
+
+    @Benchmark
+    public Object
+    patch() { return host.invoke(patch, state); }
+
+    @Benchmark
+    public Object
+    sync() { return host.invoke(sync, state); }
+}
@@ -0,0 +1,44 @@
+package boot.bench;
+
+import boot.App;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.projectodd.shimdandy.ClojureRuntimeShim;
+
+/**
+ * Round trips of boot.pod/call-in* from one pod to another, evaluating
+ * (identity x) with a small vector or a map of 1000 file-like maps as x.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PodCallBench {
+
+    @Param({"small", "large"})
+    public String payload;
+
+    private ClojureRuntimeShim host, callee;
+    private Object             callIn, data;
+
+    @Setup
+    public void
+    setup() throws Exception {
+        host   = Runtimes.newHost("bench");
+        callee = App.newShim("callee", null, Runtimes.podJars());
+        callIn = Runtimes.fn(host, "boot.bench/call-in");
+        data   = host.invoke("boot.bench/payload", payload); }
+
+    @TearDown
+    public void
+    tearDown() throws Exception {
+        Runtimes.destroy(callee);
+        Runtimes.destroy(host); }
+
+    @Benchmark
+    public Object
+    callIn() { return host.invoke(callIn, callee, data); }
+}
@@ -0,0 +1,69 @@
+package boot.bench;
+
+import boot.App;
+
+import java.io.File;
+import java.io.Closeable;
+import java.io.FileFilter;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import org.projectodd.shimdandy.ClojureRuntimeShim;
+
+/**
+ * Creates the pods the benchmarks run in. The build copies the jars of Clojure
+ * and of boot's pod and core modules to target/pod-jars (see pom.in.xml), and
+ * the boot.bench fixtures are loaded from src/main/clojure. The
+ * boot.bench.jars and boot.bench.src system properties override these.
+ */
+final class Runtimes {
+
+    /** The number and size of the large jars in the synthetic trees. */
+    static final long JARS     = 3;
+    static final long JAR_SIZE = 8L * 1024 * 1024;
+
+    private Runtimes() {}
+
+    static File[]
+    podJars() {
+        File   dir  = new File(System.getProperty("boot.bench.jars", "target/pod-jars"));
+        File[] jars = dir.listFiles(new FileFilter() {
+                public boolean
+                accept(File f) { return f.getName().endsWith(".jar"); }});
+        if (jars == null || jars.length == 0)
+            throw new IllegalStateException("no jars in " + dir + ", run mvn package first");
+        Arrays.sort(jars);
+        return jars; }
+
+    static File[]
+    classpath() {
+        File[] jars = podJars();
+        File[] cp   = Arrays.copyOf(jars, jars.length + 1);
+        cp[jars.length] = new File(System.getProperty("boot.bench.src", "src/main/clojure"));
+        return cp; }
+
+    /** Sets the jars App.newPod adds to every pod, which boot.App/main normally sets. */
+    static void
+    setPodJars(File[] jars) throws Exception {
+        Field f = App.class.getDeclaredField("podjars");
+        f.setAccessible(true);
+        f.set(null, jars); }
+
+    /** Returns a new pod with the boot.bench fixtures loaded. */
+    static ClojureRuntimeShim
+    newHost(String name) throws Exception {
+        ClojureRuntimeShim rt = App.newShim(name, null, classpath());
+        rt.require("boot.bench");
+        return rt; }
+
+    /** Returns the function named by the fully qualified sym in the pod. */
+    static Object
+    fn(ClojureRuntimeShim rt, String sym) {
+        return rt.invoke("clojure.core/deref",
+                         rt.invoke("clojure.core/resolve", rt.invoke("clojure.core/symbol", sym))); }
+
+    static void
+    destroy(ClojureRuntimeShim rt) throws Exception {
+        if (rt == null) return;
+        rt.close();
+        ((Closeable) rt.getClassLoader()).close(); }
+}
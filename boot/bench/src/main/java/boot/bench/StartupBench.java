@@ -0,0 +1,50 @@
+package boot.bench;
+
+import boot.App;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.projectodd.shimdandy.ClojureRuntimeShim;
+
+/**
+ * Time to start a pod: a new class loader, loading clojure.core and boot.pod,
+ * and initializing the pod. newShim starts one with only the pod jars, and
+ * newPod one that also has the large jars of the synthetic tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StartupBench {
+
+    private ClojureRuntimeShim host;
+    private File               tree;
+    private File[]             jars;
+
+    @Setup
+    public void
+    setup() throws Exception {
+        Runtimes.setPodJars(Runtimes.podJars());
+        host = Runtimes.newHost("bench");
+        tree = (File) host.invoke("boot.bench/tree!", 0L, Runtimes.JARS, Runtimes.JAR_SIZE);
+        jars = new File(tree, "lib").listFiles(); }
+
+    @TearDown
+    public void
+    tearDown() throws Exception {
+        host.invoke("boot.bench/delete!", tree);
+        Runtimes.destroy(host); }
+
+    @Benchmark
+    public void
+    newShim() throws Exception {
+        Runtimes.destroy(App.newShim("bench", null, Runtimes.podJars())); }
+
+    @Benchmark
+    public void
+    newPod() throws Exception {
+        Runtimes.destroy(App.newPod("bench", null, jars)); }
+}
@@ -13,7 +13,9 @@
     [boot.cli                     :as cli2]
     [boot.file                    :as file]
     [boot.tmpregistry             :as tmp]
+    [boot.memo                    :as memo]
     [boot.tmpdir                  :as tmpd]
+    [boot.trace                   :as trace]
     [boot.util                    :as util]
     [boot.from.io.aviso.exception :as ex]
     [boot.from.clojure.tools.cli  :as cli]
@@ -24,7 +26,8 @@
     [java.nio.file Path Paths]
     [java.net URLClassLoader URL]
     [java.lang.management ManagementFactory]
-    [java.util.concurrent LinkedBlockingQueue TimeUnit Semaphore ExecutionException]))
+    [java.util.concurrent LinkedBlockingQueue TimeUnit Semaphore ExecutionException
+                          Executors ExecutorCompletionService Future]))
 
 (declare watch-dirs post-env! get-env set-env! tmp-file tmp-dir ls empty-dir! patch!)
 
@@ -36,6 +39,10 @@
 
 (def new-build-at     "Latest build occured at time."                     (atom 0))
 (def last-file-change "Last source file watcher update time."             (atom 0))
+(def last-file-changes
+  "The :time of the last source file watcher update and the set of :paths,
+  relative to the project directories, of the files that were changed."
+  (atom {:time 0 :paths #{}}))
 (def bootignore       "Set of regexes source file paths must not match."  (atom nil))
 
 ;; Internal helpers ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
@@ -127,18 +134,39 @@
                                   (apply set/union)
                                   (#(set/difference % (user-temp-dirs)))))
 
+(defn- user-dirs
+  []
+  {:asset-paths    (user-asset-dirs)
+   :source-paths   (user-source-dirs)
+   :resource-paths (user-resource-dirs)
+   :checkout-paths @checkout-dirs})
+
 (defn- sync-user-dirs!
   []
   (util/with-semaphore-noblock sync-dirs-lock
     (let [debug-mesg (delay (util/dbug* "Syncing project dirs to temp dirs...\n"))]
-      (doseq [[k d] {:asset-paths    (user-asset-dirs)
-                     :source-paths   (user-source-dirs)
-                     :resource-paths (user-resource-dirs)
-                     :checkout-paths @checkout-dirs}]
+      (doseq [[k d] (user-dirs)]
         @debug-mesg
         (patch! (first d) (get-env k) :ignore @bootignore))
       (util/dbug* "Sync complete.\n"))))
 
+(defn- sync-user-paths!
+  "Like sync-user-dirs!, but only copies or deletes the files at paths, which
+  are relative to the project dirs, instead of diffing the whole trees."
+  [paths]
+  (util/with-semaphore sync-dirs-lock
+    (util/dbug* "Syncing %d changed paths to temp dirs...\n" (count paths))
+    (let [ign? (fs/mkignores @bootignore)]
+      (doseq [[k d] (user-dirs)
+              :let  [dest (fs/->path (first d))]
+              p     paths
+              :when (not (and ign? (ign? p)))]
+        (let [segs (fs/path->segs (fs/->path p))]
+          (if-let [src (->> (get-env k) (map #(io/file % p)) (filter #(.isFile ^File %)) last)]
+            (fs/copy! dest segs (fs/->path src) (.lastModified ^File src))
+            (fs/delete! dest segs)))))
+    (util/dbug* "Sync complete.\n")))
+
 (defn- set-fake-class-path!
   "Sets the :fake-class-path environment property to reflect all JAR files on
   the pod class path plus the :source-paths and :resource-paths. Note that
@@ -190,9 +218,13 @@
         env-keys  [:source-paths :resource-paths :asset-paths :checkout-paths]
         dir-paths (set (->> (mapcat get-env env-keys)
                             (filter #(.isDirectory (io/file %)))))
-        on-change (fn [_]
-                    (sync-user-dirs!)
-                    (reset! last-file-change (System/currentTimeMillis)))]
+        on-change (fn [changed]
+                    (if (::rescan (meta changed))
+                      (sync-user-dirs!)
+                      (sync-user-paths! (set (map second changed))))
+                    (let [now (System/currentTimeMillis)]
+                      (reset! last-file-changes {:time now :paths (set (map second changed))})
+                      (reset! last-file-change now)))]
     (reset! src-watcher (watch-dirs on-change dir-paths :debounce debounce))
     (set-fake-class-path!)
     (sync-user-dirs!)))
@@ -455,12 +487,31 @@
   [fileset]
   (tmpd/ls fileset))
 
+(def ^:private ^:dynamic *branch*
+  "Bound by parallel in the threads running a task branch to a map of the
+  :base fileset the branches were forked from, an atom of the :branches'
+  latest filesets, the :index of this branch, and the enclosing branch, if
+  any, as :parent."
+  nil)
+
+(defn- commit-branch!
+  [fileset {:keys [base branches index parent]}]
+  (let [merged (tmpd/merge-branches base (swap! branches assoc index fileset) :quiet true)]
+    (if parent
+      (commit-branch! merged parent)
+      (tmpd/commit! merged))))
+
 (defn commit!
   "Make the underlying temp directories correspond to the immutable fileset
-  tree structure."
+  tree structure. In a branch of a parallel task the temp directories are
+  made to correspond to the fileset merged with the latest filesets of the
+  other branches, so the branches don't remove each other's files."
   [fileset]
-  (util/with-semaphore tempdirs-lock
-    (tmpd/commit! fileset)))
+  (trace/span "commit!"
+    (util/with-semaphore tempdirs-lock
+      (if-let [branch *branch*]
+        (do (commit-branch! fileset branch) fileset)
+        (tmpd/commit! fileset)))))
 
 (defn rm
   "Removes files from the fileset tree, returning a new fileset object. This
@@ -693,7 +744,8 @@
   timestamps to decide which version of files to emit to dest. Uses hardlinks
   instead of copying file contents. File modification times are preserved."
   [dest & srcs]
-  (apply file/sync! :time dest srcs))
+  (trace/span "sync!"
+    (apply file/sync! :time dest srcs)))
 
 (defn patch!
   "Given a dest and a sequence of srcs, all of which satisfying the IToPath
@@ -717,12 +769,13 @@
   The :link option specifies whether to create hardlinks instead of copying
   files from srcs to dest."
   [dest srcs & {:keys [ignore state link]}]
-  (let [dest    (fs/->path dest)
-        before  (or state (fs/mktree dest))
-        merge'  #(->> (fs/mktree (fs/->path %2) :ignore ignore)
-                      (fs/merge-trees %1))]
-    (let [after (reduce merge' (fs/mktree) srcs)]
-      (fs/patch! dest before after :link link))))
+  (trace/span "patch!"
+    (let [dest    (fs/->path dest)
+          before  (or state (fs/mktree dest))
+          merge'  #(->> (fs/mktree (fs/->path %2) :ignore ignore)
+                        (fs/merge-trees %1))]
+      (let [after (reduce merge' (fs/mktree) srcs)]
+        (fs/patch! dest before after :link link :parallelism tmpd/*commit-parallelism*)))))
 
 ;; Boot Environment ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
@@ -733,7 +786,10 @@
 
   The watcher uses the somewhat quirky native filesystem event APIs. A
   debounce option is provided (in ms, default 10) which can be used to
-  tune the watcher sensitivity."
+  tune the watcher sensitivity. Only the files and directories named in the
+  events received during the debounce window are rescanned, unless events
+  were lost, in which case all of the dirs are and the changes passed to the
+  callback have :boot.core/rescan metadata."
   [callback dirs & {:keys [debounce]}]
   (if (empty? dirs)
     (constantly true)
@@ -741,6 +797,8 @@
         (let [q       (LinkedBlockingQueue.)
               watcher (apply file/watcher! :time dirs)
               paths   (into-array String dirs)
+              changes #(when-not (some string? %)
+                         (file/relative-paths dirs (map second %)))
               k       (pod/with-invoke-worker
                         (boot.watcher/make-watcher q paths :ignore @bootignore))]
           (daemon
@@ -748,8 +806,10 @@
               (when ret
                 (if-let [more (.poll q (or debounce 10) TimeUnit/MILLISECONDS)]
                   (recur (conj ret more))
-                  (let [changed (watcher)]
-                    (when-not (empty? changed) (callback changed))
+                  (let [paths   (changes ret)
+                        changed (watcher paths)]
+                    (when-not (empty? changed)
+                      (callback (vary-meta changed assoc ::rescan (or (nil? paths) (some empty? paths)))))
                     (recur (util/guard [(.take q)])))))))
           #(pod/with-invoke-worker (boot.watcher/stop-watcher k))))))
 
@@ -908,7 +968,8 @@
 ;; Defining Tasks ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
 (defmacro deftask
-  "Define a boot task."
+  "Define a boot task. The task is memoized (see boot.memo) when the var has
+  ::memoize metadata that is true or a map of boot.memo/wrap-task options."
   [sym & forms]
   (let [[heads [bindings & tails]] (split-with (complement vector?) forms)]
     `(do
@@ -927,7 +988,8 @@
                unknown#  (set/difference provided# allowed#)]
            (when (seq unknown#)
              (util/warn "%s: unknown option(s): %s\n" '~sym (string/join ", " unknown#))))
-         ~@tails))))
+         (memo/wrap-task ~(name sym) ~'*opts* (::memoize (meta #'~sym))
+                         (trace/wrap-task ~(name sym) (do ~@tails)))))))
 
 ;; Boot Lifecycle ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
@@ -958,6 +1020,21 @@
   []
   (reset! *warnings* 0))
 
+(defn report-trace!
+  "Prints a summary of the spans and counters recorded since the last report
+  and writes them to the BOOT_TRACE file, when tracing is enabled (see
+  boot.trace). This function is called at the end of each build."
+  []
+  (when-let [summary (trace/report!)]
+    (util/info "\n%s\n" summary)))
+
+(defn report-memo!
+  "Prints the number of hits and misses of each memoized task since the last
+  report (see boot.memo). This function is called at the end of each build."
+  []
+  (doseq [[task {:keys [hits misses]}] (sort-by key (memo/report!))]
+    (util/info "Memoized %s: %d hits, %d misses\n" task (or hits 0) (or misses 0))))
+
 (defn- take-subargs [open close [x & xs :as coll]]
   (if (not= x open)
     [nil coll]
@@ -1000,26 +1077,45 @@
   updates each of the dirs such that changes to the fileset are also
   applied to them. The :link option will enable the use of hard links
   where possible. The :clean option to the constructor enables or disables
-  cleaning out the target directory on initialization."
+  cleaning out the target directory on initialization.
+
+  The files written to each dir are saved in a snapshot after each update
+  (see boot.filesystem/write-snapshot!). Without :clean, a new syncer patches
+  a dir from its snapshot, removing the files it wrote before that are no
+  longer in the fileset, unless the dir was changed by something else since."
   [dirs & {:keys [clean]}]
-  (let [prev   (atom nil)
-        clean! (if clean empty-dir! identity)
-        dirs   (delay (mapv #(doto (io/file %) .mkdirs clean!) dirs))]
+  (let [prev   (atom {})
+        dirs   (delay (vec (for [d dirs :let [d (doto (io/file d) .mkdirs)]]
+                             (do (if clean
+                                   (do (fs/delete-snapshot! d) (empty-dir! d))
+                                   (when-let [saved (fs/read-snapshot d)]
+                                     (swap! prev assoc d (tmpd/snapshot->fileset saved))))
+                                 d))))]
     (fn [fs & {:keys [link mode]}]
       (let [link  (when link :tmp)
-            [a b] [@prev (reset! prev (output-fileset fs))]]
-        (mapv deref (for [d @dirs :let [p! (partial fs/patch! (fs/->path d) a b :mode mode :link)]]
-                      (future (try (p! link)
+            dirs  @dirs
+            b     (output-fileset fs)
+            a     @prev]
+        (reset! prev (zipmap dirs (repeat b)))
+        (mapv deref (for [d dirs :let [p! (partial fs/patch! (fs/->path d) (get a d) b :mode mode
+                                                   :parallelism tmpd/*commit-parallelism* :link)]]
+                      (future (try (util/with-let [ret (try (p! link)
+                                                            (catch Throwable t
+                                                              (if-not link (throw t) (p! nil))))]
+                                     (when (or (not (contains? a d)) (pos? (::fs/ops (meta ret) 0)))
+                                       (fs/write-snapshot! d (tmpd/fileset->snapshot b))))
                                    (catch Throwable t
-                                     (if-not link (throw t) (p! nil)))))))))))
+                                     (fs/delete-snapshot! d)
+                                     (throw t))))))))))
 
 (defn- run-tasks
   "Given a task pipeline, builds the initial fileset, sets the initial build
   state, and runs the pipeline."
   [task-stack]
   (binding [*warnings* (atom 0)]
-    (let [fs (commit! (reset-fileset))]
-      ((task-stack #(do (sync-user-dirs!) %)) fs))))
+    (try (let [fs (commit! (reset-fileset))]
+           ((task-stack #(do (sync-user-dirs!) %)) fs))
+         (finally (report-memo!) (report-trace!)))))
 
 (defn boot
   "The REPL equivalent to the command line 'boot'. If all arguments are
@@ -1099,6 +1195,60 @@
     `(with-pre-wrap [fs#]
        (util/with-let [~bind fs#] ~@body))))
 
+(def ^:dynamic *branch-parallelism*
+  "The max number of branches of a parallel task that run at the same time.
+  Set via the BOOT_BRANCH_PARALLELISM env var or configuration option. The
+  default is the number of processors."
+  (or (util/guard (Integer/parseInt (App/config "BOOT_BRANCH_PARALLELISM")))
+      (.availableProcessors (Runtime/getRuntime))))
+
+(defn parallel
+  "Given task middleware, returns middleware that forks the fileset and runs
+  each of the tasks as a separate branch, concurrently, with at most
+  *branch-parallelism* branches running at a time. The changes the branches
+  made to the fileset are then merged and the merged fileset is passed to the
+  next handler. An optional map of options may be given as the first arg:
+
+    :mergers  A list of [regex merge-fn] pairs used to combine the contents of
+              files that more than one branch changed, as in add-resource.
+
+  Paths changed by more than one branch without a matching merger get the
+  change from the last of the tasks, with a warning. The branches run in the
+  current pod, so they share its classpath and temp directories; tasks that
+  aren't safe to run at the same time as each other shouldn't be branches.
+
+  Example:
+
+      (comp (parallel (cljs) (sass) (javac)) (target))"
+  [& tasks]
+  (let [[{:keys [mergers]} tasks] (if (map? (first tasks))
+                                     [(first tasks) (rest tasks)]
+                                     [nil tasks])]
+    (fn [next-task]
+      (let [handlers (mapv #(% identity) tasks)]
+        (fn [fileset]
+          (let [n        (count handlers)
+                branches (atom (vec (repeat n fileset)))
+                branch   (fn [i handler]
+                           (bound-fn []
+                             (binding [*branch* {:base fileset :branches branches :index i :parent *branch*}]
+                               (let [result (handler fileset)]
+                                 (assert (tmpd/tmpfileset? result)
+                                         "task handler must return a fileset")
+                                 (swap! branches assoc i result)))))
+                pool     (Executors/newFixedThreadPool (int (max 1 (min n *branch-parallelism*))))
+                done     (ExecutorCompletionService. pool)
+                futures  (doall (map-indexed #(.submit done ^Callable (branch %1 %2)) handlers))]
+            ;; the first branch that fails cancels the others
+            (try (dotimes [_ n]
+                   (try (.get (.take done))
+                        (catch ExecutionException e (throw (.getCause e)))))
+                 (finally (doseq [^Future f futures] (.cancel f true))
+                          (.shutdownNow pool)))
+            (-> (tmpd/merge-branches fileset @branches :mergers mergers)
+                commit!
+                next-task)))))))
+
 (defmacro fileset-reduce
   "Given a fileset, a function get-files that selects files from the fileset,
   and a number of reducing functions, composes the reductions. The result of
@@ -20,6 +20,7 @@
     :assoc-fn #(let [[p v] (string/split %3 #":" 2)]
                  (update-in %1 [%2] (fnil conj [])
                             (pod/canonical-coord [(read-string p) (or v "(0,)")])))]
+   [nil  "--cds"                 "Dump a class data sharing archive for the standard pods (Java 13+)."]
    ["-C" "--no-colors"           "Remove ANSI escape codes from printed output."]
    ["-d" "--dependencies SYM:VER" "Add dependency to project (eg. -d foo/bar:1.2.3)."
     :assoc-fn #(let [[p v] (string/split %3 #":" 2)]
@@ -40,6 +41,7 @@
    ["-r" "--resource-paths PATH" "Add PATH to set of resource directories."
     :assoc-fn #(update-in %1 [%2] (fnil conj #{}) %3)]
    ["-q" "--quiet"               "Suppress output from boot itself."]
+   [nil  "--server"              "Serve boot commands for this directory from a warm JVM (see BOOT_CLIENT)."]
    ["-s" "--source-paths PATH"   "Add PATH to set of source directories."
     :assoc-fn #(update-in %1 [%2] (fnil conj #{}) %3)]
    ["-u" "--update"              "Update boot to latest release version."]
@@ -177,12 +177,25 @@ The first item of the vector is timeout, the second unit"}
           (parallel-start :data sync-map)
           (await-done :data sync-map))))
 
+(defn- command->task
+  "Given a command string, returns the task middleware it constructs, as if
+  it had been given on the command line."
+  [command]
+  (#'core/construct-tasks (remove empty? (command-seq command)) :in-order true))
+
 (core/deftask runcommands
   "Run commands using boot in boot, but in parallel.
 
   A command is the string you would use on the command line for running the
   task (after having it required in build.boot).
 
+  The commands run as branches of the current build (see boot.core/parallel):
+  each one gets the fileset, runs in this pod, and the changes they make to
+  the fileset are merged and passed on. With :isolated each command instead
+  runs in a brand new pod with runboot, which doesn't see the fileset and
+  returns nothing to it; *parallel-hooks* and *parallel-timeout* only apply
+  to isolated commands.
+
   If no batches number is specified, it spawns one thread per command (which
   can be quite system demanding, so be careful).
 
@@ -198,18 +211,26 @@ The first item of the vector is timeout, the second unit"}
   batch to run in parallel, therefore limiting the number of spawned threads,
   defaulting to the canonical (-> (number of processors) inc inc)."
   [c commands CMDS      ^:! #{str} "The boot task cli calls + arguments (a set of strings)."
-   b batches  NUMBER        int    "The commands will be executed in parallel batch-number per time."]
+   b batches  NUMBER        int    "The commands will be executed in parallel batch-number per time."
+   i isolated               bool   "Run each command in a new pod with runboot."]
   (let [n (or batches (-> (Runtime/getRuntime)
                           .availableProcessors
-                          (+ 2)))
-        parallel-init-fn (:init *parallel-hooks*)
-        sync-map (parallel-init-fn (empty-sync-map))
-        seqs-of-cmds (partition-all n commands)
-        seqs-of-midwares (map #(commands->parallel-task sync-map %) seqs-of-cmds)]
-    (util/dbug "Partitions: %s.\n" (vec seqs-of-cmds))
-    (core/with-pre-wrap [fileset]
-      (reduce (fn [prev-fs mw]
-                (let [handler (mw identity)] ;; this triggers the parallel computation
-                  (handler prev-fs)))
-              fileset
-              seqs-of-midwares))))
+                          (+ 2)))]
+    (if-not isolated
+      (let [tasks (map command->task commands)]
+        (fn [next-task]
+          (let [handler ((apply core/parallel tasks) next-task)]
+            (fn [fileset]
+              (binding [core/*branch-parallelism* n]
+                (handler fileset))))))
+      (let [parallel-init-fn (:init *parallel-hooks*)
+            sync-map (parallel-init-fn (empty-sync-map))
+            seqs-of-cmds (partition-all n commands)
+            seqs-of-midwares (map #(commands->parallel-task sync-map %) seqs-of-cmds)]
+        (util/dbug "Partitions: %s.\n" (vec seqs-of-cmds))
+        (core/with-pre-wrap [fileset]
+          (reduce (fn [prev-fs mw]
+                    (let [handler (mw identity)] ;; this triggers the parallel computation
+                      (handler prev-fs)))
+                  fileset
+                  seqs-of-midwares))))))
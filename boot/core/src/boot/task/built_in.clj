@@ -8,6 +8,7 @@
    [boot.gpg             :as gpg]
    [boot.pod             :as pod]
    [boot.jar             :as jar]
+   [boot.javac           :as javac]
    [boot.git             :as git]
    [boot.file            :as file]
    [boot.repl            :as repl]
@@ -23,9 +24,8 @@
   (:import
    [java.io File]
    [java.nio.file.attribute PosixFilePermissions]
-   [java.util Arrays]
-   [java.util.concurrent LinkedBlockingQueue TimeUnit]
-   [javax.tools ToolProvider DiagnosticCollector Diagnostic$Kind]))
+   [java.util.concurrent ExecutionException LinkedBlockingQueue TimeUnit]
+   [javax.tools ToolProvider Diagnostic$Kind]))
 
 ;; Tasks ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
@@ -35,24 +35,40 @@
   (core/with-pass-thru [_]
     (let [tasks (#'helpers/available-tasks 'boot.user)
           opts  (->> main/cli-opts (mapv (fn [[x y z]] ["" (str x " " y) z])))
-          envs  [["" "BOOT_AS_ROOT"              "Set to 'yes' to allow boot to run as root."]
+          envs  [["" "BOOT_AETHER_REPO_CONNECTIONS" "Max concurrent transfers from a single Maven repo."]
+                 ["" "BOOT_AETHER_THREADS"       "Number of files downloaded at once from a Maven repo."]
+                 ["" "BOOT_AS_ROOT"              "Set to 'yes' to allow boot to run as root."]
+                 ["" "BOOT_BRANCH_PARALLELISM"   "Max number of branches of a parallel task run at once (CPUs)."]
+                 ["" "BOOT_CDS"                  "Set to 'yes' to start pods from a class data sharing archive (Java 13+)."]
                  ["" "BOOT_CERTIFICATES"         "Specify certificate file paths."]
+                 ["" "BOOT_CLASSLOADER_INDEX"    "Set to 'no' to look up pod classpath resources without the jar index."]
+                 ["" "BOOT_CLIENT"               "Set to 'yes' to run commands in this directory's boot server, if any."]
                  ["" "BOOT_CLOJARS_REPO"         "Specify the url for the 'clojars' Maven repo."]
                  ["" "BOOT_CLOJARS_MIRROR"       "Specify the mirror url for the 'clojars' Maven repo."]
                  ["" "BOOT_CLOJURE_VERSION"      "The version of Clojure boot will provide (1.8.0)."]
                  ["" "BOOT_CLOJURE_NAME"         "The artifact name of Clojure boot will provide (org.clojure/clojure)."]
                  ["" "BOOT_COLOR"                "Set to 'no' to turn colorized output off."]
                  ["" "BOOT_FILE"                 "Build script name (build.boot)."]
+                 ["" "BOOT_FILESET_COMMIT_PARALLELISM" "Number of threads used to commit the fileset (CPUs, up to 8)."]
+                 ["" "BOOT_FILESET_HASH"         "Digest algorithm of 64 bits or more for fileset content hashes, e.g. XXH64 (MD5)."]
+                 ["" "BOOT_FILESET_PARALLELISM"  "Number of threads used to add directories to the fileset (1)."]
                  ["" "BOOT_GPG_COMMAND"          "System gpg command (gpg)."]
                  ["" "BOOT_HOME"                 "Directory where boot stores global state (~/.boot)."]
-                 ["" "BOOT_WATCHERS_DISABLE"      "Set to 'yes' to turn off inotify/FSEvents watches."]
+                 ["" "BOOT_JAR_PARALLELISM"      "Number of threads used to deflate jar, war, and zip entries (CPUs)."]
                  ["" "BOOT_JAVA_COMMAND"         "Specify the Java executable (java)."]
                  ["" "BOOT_JVM_OPTIONS"          "Specify JVM options (Unix/Linux/OSX only)."]
                  ["" "BOOT_LOCAL_REPO"           "The local Maven repo path (~/.m2/repository)."]
                  ["" "BOOT_MAVEN_CENTRAL_REPO"   "Specify the url for the 'maven-central' Maven repo."]
                  ["" "BOOT_MAVEN_CENTRAL_MIRROR" "Specify the mirror url for the 'maven-central' Maven repo."]
+                 ["" "BOOT_MEMOIZE_SIZE"         "Number of task outputs kept for memoized tasks (256)."]
+                 ["" "BOOT_POD_POOL_IDLE"        "Seconds after which idle pods in the shared pod pool are destroyed (300)."]
+                 ["" "BOOT_POD_POOL_MAX"         "Max pods per classpath borrowed from the shared pod pool at once."]
+                 ["" "BOOT_POD_POOL_MIN"         "Number of idle pods kept ready per classpath in the shared pod pool (0)."]
+                 ["" "BOOT_RESOLVE_CACHE"        "Set to 'no' to resolve dependencies without the on-disk resolution cache."]
+                 ["" "BOOT_TRACE"                "File to write Chrome trace events to, printing a summary after each build."]
                  ["" "BOOT_VERSION"              "Specify the version of boot core to use."]
-                 ["" "BOOT_WARN_DEPRECATED"      "Set to 'no' to suppress deprecation warnings."]]
+                 ["" "BOOT_WARN_DEPRECATED"      "Set to 'no' to suppress deprecation warnings."]
+                 ["" "BOOT_WATCHERS_DISABLE"     "Set to 'yes' to turn off inotify/FSEvents watches."]]
           files [["" "./boot.properties"         "Specify boot options for this project."]
                  ["" "./profile.boot"            "A script to run after the global profile.boot but before the build script."]
                  ["" "BOOT_HOME/boot.properties" "Specify global boot options."]
@@ -418,9 +434,11 @@
                            identity
                            (let [f (partial file/keep-filters? include exclude)]
                              (partial filter (comp f io/file second))))
-            watch-target (if manual core/new-build-at core/last-file-change)]
-        (.offer q (System/currentTimeMillis))
-        (add-watch watch-target k #(.offer q %4))
+            watch-target (if manual core/new-build-at core/last-file-change)
+            on-change    #(let [{:keys [time paths]} @core/last-file-changes]
+                            (.offer q (if (and (not manual) (= %4 time)) paths :all)))]
+        (.offer q :all)
+        (add-watch watch-target k on-change)
         (core/cleanup (remove-watch watch-target k))
         (when-not quiet (util/info "\nStarting file watcher (CTRL-C to quit)...\n\n"))
         (loop [ret (util/guard [(.take q)])]
@@ -429,7 +447,8 @@
               (recur (conj ret more))
               (let [start        (System/currentTimeMillis)
                     etime        #(- (System/currentTimeMillis) start)
-                    changed      (when-not manual (incl-excl (watcher)))
+                    paths        (when-not (some #{:all} ret) (apply set/union ret))
+                    changed      (when-not manual (incl-excl (watcher paths)))
                     should-fire? (or manual (not (empty? changed)))]
                 (when should-fire?
                   (when verbose
@@ -441,7 +460,9 @@
                     (core/reset-build!)
                     (try (reset! return (-> fileset core/reset-fileset core/commit! next-task))
                          (catch Throwable ex (util/print-ex ex)))
-                    (util/info "Elapsed time: %.3f sec\n\n" (float (/ (etime) 1000)))))
+                    (util/info "Elapsed time: %.3f sec\n\n" (float (/ (etime) 1000)))
+                    (core/report-memo!)
+                    (core/report-trace!)))
                 (recur (util/guard [(.take q)]))))))
         @return))))
 
@@ -684,9 +705,16 @@
   --as-jars option you need a special classloader like a servlet container
   (e.g. Tomcat, Jetty) that will add the jars to the application classloader.
 
-  When jars are exploded, the --include and --exclude options control which
-  paths are added to the uberjar; a path is only added if it matches an
-  --include regex and does not match any --exclude regexes.
+  The --raw option doesn't explode the jars into the fileset either. Instead
+  the jar, war, and zip tasks copy the entries of the dependency jars into
+  the archive they write, without inflating and deflating them again, which
+  is much faster for large uberjars. Only entries that are merged by a merge
+  rule other than first-wins-merger are inflated. The entries are not in the
+  fileset, so tasks between uber and the packaging task won't see them.
+
+  When jars are exploded or copied with --raw, the --include and --exclude
+  options control which paths are added to the uberjar; a path is only added
+  if it matches an --include regex and does not match any --exclude regexes.
 
   The --exclude option default is:
 
@@ -717,6 +745,7 @@
   Setting the --include, --exclude, or --merge options replaces the default."
 
   [j as-jars                bool           "Copy entire jar files instead of exploding them."
+   r raw                    bool           "Copy jar entries into the packaged archive instead of exploding them."
    s include-scope SCOPE    #{str}         "The set of scopes to add."
    S exclude-scope SCOPE    #{str}         "The set of scopes to remove."
    i include       MATCH    #{regex}       "The set of regexes that paths must match."
@@ -742,9 +771,12 @@
         exclude    (or exclude pod/standard-jar-exclusions)
         merge      (or merge pod/standard-jar-mergers)
         reducer    (fn [xs jar]
-                     (core/add-cached-resource
-                       xs (digest/md5 jar) (partial pod/unpack-jar jar)
-                       :include include :exclude exclude :mergers merge))
+                     (if raw
+                       (jar/add-source
+                         xs jar :include include :exclude exclude :mergers merge)
+                       (core/add-cached-resource
+                         xs (digest/md5 jar) (partial pod/unpack-jar jar)
+                         :include include :exclude exclude :mergers merge)))
         co-reducer #(core/add-resource
                       %1 %2 :include include :exclude exclude :mergers merge)]
     (core/with-pre-wrap [fs]
@@ -798,69 +830,161 @@
       @webxml
       (-> fs (core/add-resource tgt) core/commit!))))
 
+(defn- delete-ns-classes!
+  "Deletes the class files of the namespace ns, its __init class and the
+  classes of its fns, from the directory dir."
+  [dir ns]
+  (let [path   (.replace ^String (namespace-munge ns) \. \/)
+        parent (.getParentFile (io/file dir path))
+        base   (.getName (io/file path))]
+    (doseq [^File f (.listFiles parent)
+            :let [n (.getName f)]
+            :when (or (= n (str base "__init.class"))
+                      (= n (str base ".class"))
+                      (and (.startsWith n (str base "$")) (.endsWith n ".class")))]
+      (.delete f))))
+
 (core/deftask aot
-  "Perform AOT compilation of Clojure namespaces."
+  "Perform AOT compilation of Clojure namespaces.
+
+  The --incremental option keeps the class files of earlier runs and only
+  recompiles the namespaces whose source files changed, and the namespaces
+  that depend on them. The --pods option spreads groups of namespaces that
+  don't depend on each other over that many compile pods, which compile in
+  parallel."
 
   [a all          bool   "Compile all namespaces."
-   n namespace NS #{sym} "The set of namespaces to compile."]
+   n namespace NS #{sym} "The set of namespaces to compile."
+   i incremental  bool   "Only recompile changed namespaces and their dependents."
+   p pods N       int    "The number of compile pods to compile in parallel (1)."]
 
   (when (empty? *opts*)
     (util/warn "No flags specified for aot task, skipping...\n"))
-  (let [tgt         (core/tmp-dir!)
-        pod-env     (update-in (core/get-env) [:directories] conj (.getPath tgt))
-        compile-pod (future (pod/make-pod pod-env))]
+  (let [npods        (max 1 (or pods 1))
+        tgts         (vec (repeatedly npods core/tmp-dir!))
+        env          (update-in (core/get-env) [:directories] into (map (memfn getPath) tgts))
+        ;; the compile pods are borrowed from the shared pod pool for each
+        ;; build; these warm it up with npods pods while the pipeline starts
+        warm         (mapv (fn [_] (future (pod/return-pod (pod/borrow-pod env :name "aot")))) tgts)
+        used         (atom #{})
+        prev         (atom nil)]
     (core/with-pre-wrap [fs]
-      (core/empty-dir! tgt)
       (let [all-nses (->> fs core/fileset-namespaces)
-            nses     (->> all-nses (set/intersection (if all all-nses namespace)) sort)]
-        (pod/with-eval-in @compile-pod
-          (binding [*compile-path* ~(.getPath tgt)]
-            (doseq [[idx ns] (map-indexed vector '~nses)]
-              (boot.util/info "Compiling %s/%s %s...\n" (inc idx) (count '~nses) ns)
-              (compile ns)))))
-      (-> fs (core/add-resource tgt) core/commit!))))
+            nses     (->> all-nses (set/intersection (if all all-nses namespace)))
+            dirs     (->> fs core/input-dirs (map (memfn getPath)))
+            graph    (when (or incremental (< 1 npods))
+                       (pod/with-call-worker (boot.namespace/dependency-graph [~@dirs])))
+            {old-fs :fileset old-nses :nses old-all :all} @prev
+            changed  (when (and incremental old-fs)
+                       (->> (core/fileset-diff old-fs fs)
+                            core/input-files
+                            (core/by-ext [".clj" ".cljc"])
+                            (map core/tmp-path)))
+            reload   (when changed
+                       (pod/with-call-worker (boot.namespace/affected ~graph [~@changed])))
+            compile  (if-not (and incremental old-fs)
+                       (do (apply core/empty-dir! tgts) nses)
+                       (set/union (set/intersection nses reload)
+                                  (set/difference nses old-nses)))
+            plan     (if graph
+                       (pod/with-call-worker
+                         (boot.namespace/compile-plan ~graph [~@compile] ~npods))
+                       [(sort compile)])
+            total    (count compile)]
+        (when (and incremental old-fs)
+          ;; namespaces compiled transitively by the selected ones have
+          ;; classes in the tgts too, which would be loaded instead of their
+          ;; unchanged sources, so the classes of all of the affected
+          ;; namespaces are deleted, not only those of the ones compiled
+          (doseq [ns (set/union compile reload
+                                (set/difference old-nses nses)
+                                (set/difference old-all all-nses))
+                  tgt tgts]
+            (delete-ns-classes! tgt ns))
+          (util/info "Compiling %d of %d namespaces...\n" total (count nses)))
+        (doseq [w warm] @w)
+        (let [used' @used]
+          (reset! used #{})
+          (->> (range npods)
+               (map
+                 (fn [i]
+                   (let [batch (get plan i [])
+                         start (reduce + 1 (map count (take i plan)))
+                         tgt   (.getPath ^File (tgts i))]
+                     (future
+                       (pod/with-borrowed-pod [p env :name "aot"]
+                         ;; a pod that missed the last build may have any of
+                         ;; the namespaces loaded in an older version
+                         (let [reload (if (used' p) reload all-nses)]
+                           (swap! used conj p)
+                           (pod/with-eval-in p
+                             (dosync (alter @#'clojure.core/*loaded-libs* #(apply disj % '~reload)))
+                             (binding [*compile-path* ~tgt]
+                               (doseq [[idx ns] (map-indexed vector '~batch)]
+                                 (boot.util/info "Compiling %s/%s %s...\n" (+ ~start idx) ~total ns)
+                                 (compile ns))))))))))
+               doall
+               (map #(try @% (catch ExecutionException e (throw (.getCause e)))))
+               dorun))
+        (reset! prev {:fileset fs :nses nses :all all-nses}))
+      (-> (reduce core/add-resource fs tgts) core/commit!))))
 
 (core/deftask javac
-  "Compile java sources."
-  [o options OPTIONS [str] "List of options passed to the java compiler."]
-  (let [tgt (core/tmp-dir!)]
+  "Compile java sources.
+
+  The --incremental option only compiles the sources that changed since the
+  last build, and the sources that refer to classes whose signatures changed,
+  and deletes the class files of changed and removed sources. The class files
+  and the dependencies between sources and classes are kept in the project's
+  boot cache, so they survive restarting boot. Boot processes compiling the
+  same project with the same options take turns."
+
+  [o options OPTIONS [str] "List of options passed to the java compiler."
+   i incremental     bool  "Only compile changed sources and their dependents."]
+
+  (let [compiler (delay (or (ToolProvider/getSystemJavaCompiler)
+                            (throw (Exception. "The java compiler is not working. Please make sure you use a JDK!"))))
+        file-mgr (delay (.getStandardFileManager @compiler nil nil nil))
+        cache    (when incremental
+                   (io/file (core/cache-dir! ::javac) (boot.App/md5hash (pr-str options))))
+        tgt      (if cache (io/file cache "classes") (core/tmp-dir!))
+        saved    (some-> cache (io/file "state.edn"))
+        ;; the state last written by this task, and the mtime of the file it
+        ;; wrote, so the state is only read again if another process wrote it
+        state    (atom nil)
+        handler  {Diagnostic$Kind/ERROR util/fail
+                  Diagnostic$Kind/WARNING util/warn
+                  Diagnostic$Kind/MANDATORY_WARNING util/warn}]
     (core/with-pre-wrap [fs]
-      (let [throw?    (atom nil)
-            diag-coll (DiagnosticCollector.)
-            compiler  (or (ToolProvider/getSystemJavaCompiler)
-                          (throw (Exception. "The java compiler is not working. Please make sure you use a JDK!")))
-            file-mgr  (.getStandardFileManager compiler diag-coll nil nil)
-            opts      (->> ["-d"  (.getPath tgt)
-                            "-cp" (core/get-env :boot-class-path)]
-                           (concat options)
-                           (into-array String) Arrays/asList)
-            handler   {Diagnostic$Kind/ERROR util/fail
-                       Diagnostic$Kind/WARNING util/warn
-                       Diagnostic$Kind/MANDATORY_WARNING util/warn}
-            srcs      (some->> (core/input-files fs)
-                               (core/by-ext [".java"])
-                               (map core/tmp-file)
-                               (into-array File)
-                               Arrays/asList
-                               (.getJavaFileObjectsFromFiles file-mgr))]
-        (when (seq srcs)
-          (util/info "Compiling %d Java source files...\n" (count srcs))
-          (-> compiler (.getTask *err* file-mgr diag-coll opts nil srcs) .call)
-          (doseq [d (.getDiagnostics diag-coll) :let [k (.getKind d)]]
-            (when (= Diagnostic$Kind/ERROR k) (reset! throw? true))
-            (let [log (handler k util/info)]
-              (if (nil? (.getSource d))
-                (log "%s: %s\n"
-                     (.toString k)
-                     (.getMessage d nil))
-                (log "%s: %s, line %d: %s\n"
-                     (.toString k)
-                     (.. d getSource getName)
-                     (.getLineNumber d)
-                     (.getMessage d nil)))))
-          (.close file-mgr)
-          (when @throw? (throw (Exception. "java compiler error")))))
-      (-> fs (core/add-resource tgt) core/commit!))))
+      (let [srcs     (->> (core/input-files fs)
+                          (core/by-ext [".java"])
+                          (reduce #(assoc %1 (core/tmp-path %2) {:file (core/tmp-file %2) :hash (:hash %2)}) {}))
+            compile! #(let [{:keys [mtime] :as st} @state
+                            prev (when incremental
+                                   (if (and st (= mtime (.lastModified ^File saved)))
+                                     (:state st)
+                                     (javac/read-state saved)))
+                            ret  (javac/compile! @compiler @file-mgr tgt srcs prev
+                                                 :options options
+                                                 :classpath (core/get-env :boot-class-path))]
+                        (when incremental
+                          (if-let [s (:state ret)] (javac/write-state! saved s) (.delete ^File saved))
+                          (reset! state {:state (:state ret) :mtime (.lastModified ^File saved)}))
+                        [ret (core/add-resource fs tgt)])
+            [ret fs] (if cache (javac/with-lock* cache compile!) (compile!))]
+        (doseq [d (:diagnostics ret) :let [k (.getKind d)]]
+          (let [log (handler k util/info)]
+            (if (nil? (.getSource d))
+              (log "%s: %s\n"
+                   (.toString k)
+                   (.getMessage d nil))
+              (log "%s: %s, line %d: %s\n"
+                   (.toString k)
+                   (.. d getSource getName)
+                   (.getLineNumber d)
+                   (.getMessage d nil)))))
+        (when-not (:state ret) (throw (Exception. "java compiler error")))
+        (core/commit! fs)))))
 
 (defn- sift-poms
   [fileset project]
@@ -879,7 +1003,9 @@
   [f file PATH        str       "The target jar file name."
    M manifest KEY=VAL {str str} "The jar manifest map."
    m main MAIN        sym       "The namespace containing the -main function."
-   p project SYM      sym       "The project symbol -- used to find the correct pom.xml file."]
+   p project SYM      sym       "The project symbol -- used to find the correct pom.xml file."
+   l level LEVEL      int       "The deflate level, 0-9 (the Deflater default, 6)."
+   s stored           bool      "Store entries without compression."]
 
   (let [old-fs (atom nil)
         tgt    (core/tmp-dir!)
@@ -902,13 +1028,16 @@
             (file/move @out out*))
           (reset! out out*))
         (util/info "Writing %s...\n" fname)
-        (jar/update-jar! @out @old-fs (reset! old-fs new-fs) manifest main)
+        (jar/update-jar! @out @old-fs (reset! old-fs new-fs) manifest main
+                         :level level :stored stored)
         (-> fs (core/add-resource tgt) core/commit!)))))
 
 (core/deftask war
   "Create war file for web deployment."
 
-  [f file PATH str "The target war file name."]
+  [f file PATH  str  "The target war file name."
+   l level LEVEL int  "The deflate level, 0-9 (the Deflater default, 6)."
+   s stored      bool "Store entries without compression."]
 
   (let [tgt (core/tmp-dir!)]
     (core/with-pre-wrap [fs]
@@ -916,23 +1045,25 @@
       (let [warname (or file "project.war")
             warfile (io/file tgt warname)
             inf?    #(contains? #{"META-INF" "WEB-INF"} %)
-            ->war   #(let [r    (core/tmp-path %)
-                           r'   (file/split-path r)
-                           path (->> (if (.endsWith r ".jar")
+            ->war   #(let [r'   (file/split-path %)
+                           path (->> (if (.endsWith ^String % ".jar")
                                        ["lib" (last r')]
                                        (into ["classes"] r'))
                                      (into ["WEB-INF"]))]
-                       (if (inf? (first r')) r (.getPath (apply io/file path))))
+                       (if (inf? (first r')) % (.getPath (apply io/file path))))
             entries (core/output-files fs)
-            index   (->> entries (mapv (juxt ->war #(.getPath (core/tmp-file %)))))]
+            index   (->> entries (mapv (juxt (comp ->war core/tmp-path) #(.getPath (core/tmp-file %)))))]
         (util/info "Writing %s...\n" (.getName warfile))
-        (jar/spit-jar! (.getPath warfile) index {} nil)
+        (jar/spit-jar! (.getPath warfile) index {} nil :level level :stored stored
+                       :sources (jar/sources fs) :rename ->war)
         (-> fs (core/add-resource tgt) core/commit!)))))
 
 (core/deftask zip
   "Build a zip file for the project."
 
-  [f file PATH str "The target zip file name."]
+  [f file PATH  str  "The target zip file name."
+   l level LEVEL int  "The deflate level, 0-9 (the Deflater default, 6)."
+   s stored      bool "Store entries without compression."]
 
   (let [old-fs (atom nil)
         tgt    (core/tmp-dir!)
@@ -941,7 +1072,7 @@
     (core/with-pre-wrap [fs]
       (let [new-fs (core/output-fileset fs)]
         (util/info "Writing %s...\n" fname)
-        (jar/update-zip! out @old-fs (reset! old-fs new-fs))
+        (jar/update-zip! out @old-fs (reset! old-fs new-fs) :level level :stored stored)
         (-> fs (core/add-resource tgt) core/commit!)))))
 
 (core/deftask install
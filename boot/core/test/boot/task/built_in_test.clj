@@ -4,7 +4,8 @@
             [boot.core :refer :all]
             [boot.task.built-in :refer :all]
             [boot.test :as boot-test :refer [deftesttask]]
-            [boot.pod :as pod]))
+            [boot.pod :as pod]
+            [clojure.java.io :as io]))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;; sift --with-meta  ;;;
@@ -127,3 +128,36 @@
   (comp (sift :add-jar {'org.clojure/tools.reader #".*"}) ;; populate
         (sift :add-meta {#".clj$" :boot-test-tag} :invert true)
         (add-meta-invert-tests)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; aot --incremental ;;;
+;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(defn- spit-ns [dir path & forms]
+  (doto (io/file dir path) io/make-parents (spit (apply str forms))))
+
+(defn- aot-value
+  "Loads aot-test.main from the class files in the fileset alone, in a new
+  pod, and returns the value of its value fn."
+  [fileset]
+  (let [dir (tmp-dir!)]
+    (doseq [f (by-ext [".class"] (output-files fileset))]
+      (io/copy (tmp-file f) (doto (io/file dir (tmp-path f)) io/make-parents)))
+    (let [p (pod/make-pod (update-in (get-env) [:directories] conj (.getPath dir)))]
+      (try (pod/with-eval-in p
+             (require 'aot-test.main)
+             (aot-test.main/value))
+           (finally (pod/destroy-pod p))))))
+
+(deftesttask aot-incremental-tests []
+  (with-pass-thru fileset
+    (let [src     (tmp-dir!)
+          handler ((aot :namespace #{'aot-test.main} :incremental true) identity)
+          build   #(handler (commit! (add-source fileset src)))]
+      (spit-ns src "aot_test/macros.clj" "(ns aot-test.macros) (defmacro value [] 1)")
+      (spit-ns src "aot_test/core.clj" "(ns aot-test.core (:require aot-test.macros)) (defn value [] (aot-test.macros/value))")
+      (spit-ns src "aot_test/main.clj" "(ns aot-test.main (:require aot-test.core)) (defn value [] (aot-test.core/value))")
+      (is (= 1 (aot-value (build))))
+      (testing "a changed macro is expanded again in namespaces that were only compiled transitively"
+        (spit-ns src "aot_test/macros.clj" "(ns aot-test.macros) (defmacro value [] 2)")
+        (is (= 2 (aot-value (build))))))))
@@ -0,0 +1,99 @@
+(ns boot.classloader-bench
+  "Times requiring namespaces spread over many jars in a fresh Clojure runtime,
+  with and without the resource index in boot.AddableClassLoader, like a pod
+  with a large classpath starting up. Run with `lein bench-classloader`."
+  (:require
+    [clojure.java.io :as io]
+    [boot.jar        :as jar])
+  (:import
+    [java.io File]
+    [java.net URL]))
+
+(def jars       250)
+(def namespaces 8)
+(def runs       3)
+
+(defn- tempdir []
+  (doto (File/createTempFile "boot-classloader-bench" "")
+    .delete .mkdirs))
+
+(defn- ns-name* [j n] (str "bench.lib" j ".ns" n))
+
+(defn- ns-path [j n] (str "bench/lib" j "/ns" n ".clj"))
+
+(defn- make-jars
+  "Writes the jars, each with some namespaces that require a namespace of an
+  earlier jar, and a bench.main namespace in the last one that requires all
+  of them. Returns the jar files."
+  [dir]
+  (let [src (io/file dir "src")]
+    (doall
+      (for [j (range jars)]
+        (let [jarfile (io/file dir (str "lib" j ".jar"))
+              files (for [n (range namespaces)
+                          :let [f (io/file src (ns-path j n))]]
+                      (do (io/make-parents f)
+                          (spit f (pr-str `(~'ns ~(symbol (ns-name* j n))
+                                             ~@(when (pos? j)
+                                                 [`(:require ~(symbol (ns-name* (quot j 2) n)))]))
+                                          `(~'defn ~'f [~'x] (inc ~'x))))
+                          [(ns-path j n) (.getPath f)]))
+              main  (when (= j (dec jars))
+                      (let [f (io/file src "bench/main.clj")]
+                        (spit f (pr-str `(~'ns ~'bench.main
+                                           (:require ~@(for [j (range jars) n (range namespaces)]
+                                                         (symbol (ns-name* j n)))))))
+                        [["bench/main.clj" (.getPath f)]]))]
+          (jar/spit-jar! jarfile (concat files main) {} nil)
+          jarfile)))))
+
+(defn- clojure-jar []
+  (-> clojure.lang.RT .getProtectionDomain .getCodeSource .getLocation))
+
+(defn- require-main
+  "Requires bench.main in a new Clojure runtime. Returns the elapsed ms."
+  [jarfiles index]
+  (let [start  (System/nanoTime)
+        urls   (into-array URL (cons (clojure-jar) (map #(.toURL (.toURI ^File %)) jarfiles)))
+        cl     (boot.AddableClassLoader. urls (.getParent (ClassLoader/getSystemClassLoader)) index)
+        thread (Thread/currentThread)
+        tccl   (.getContextClassLoader thread)]
+    (try
+      (.setContextClassLoader thread cl)
+      (let [api  (.loadClass cl "clojure.java.api.Clojure")
+            var  (.invoke (.getMethod api "var" (into-array Class [Object Object])) nil
+                          (object-array ["clojure.core" "require"]))
+            sym  (.invoke (.getMethod api "read" (into-array Class [String])) nil
+                          (object-array ["bench.main"]))]
+        (.invoke (.getMethod (class var) "invoke" (into-array Class [Object])) var (object-array [sym])))
+      (/ (- (System/nanoTime) start) 1e6)
+      (finally
+        (.setContextClassLoader thread tccl)
+        (.close cl)))))
+
+(defn- misses
+  "Looks up resources that aren't on the classpath. Returns the elapsed ms."
+  [jarfiles index]
+  (let [urls (into-array URL (map #(.toURL (.toURI ^File %)) jarfiles))]
+    (with-open [cl (boot.AddableClassLoader. urls nil index)]
+      (let [start (System/nanoTime)]
+        (dotimes [i 20000]
+          (.getResource cl (str "bench/lib" (mod i jars) "/missing" i "__init.class")))
+        (/ (- (System/nanoTime) start) 1e6)))))
+
+(defn -main
+  [& _]
+  (let [dir      (tempdir)
+        jarfiles (make-jars dir)]
+    (printf "%d jars, %d namespaces each\n\n" jars namespaces)
+    (printf "%-28s %12s %12s\n" "" "linear ms" "indexed ms")
+    (printf "%-28s %12s %12.1f\n" "first indexed pod" "" (require-main jarfiles true))
+    (dotimes [i runs]
+      (printf "%-28s %12.1f %12.1f\n" (str "require bench.main, run " (inc i))
+              (require-main jarfiles false)
+              (require-main jarfiles true))
+      (flush))
+    (printf "%-28s %12.1f %12.1f\n" "20k missing resources"
+            (misses jarfiles false)
+            (misses jarfiles true))
+    (flush)))
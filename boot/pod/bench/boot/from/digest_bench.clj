@@ -0,0 +1,80 @@
+(ns boot.from.digest-bench
+  "Compares the throughput of the FileChannel based file digest with the lazy
+  byte-seq implementation it replaced. Run with `lein bench-digest`."
+  (:require
+    [clojure.java.io  :as io]
+    [boot.from.digest :as digest])
+  (:import
+    [java.io File InputStream]
+    [java.security MessageDigest]
+    [java.util Arrays]))
+
+(set! *warn-on-reflection* true)
+
+;; the previous implementation, for comparison ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(defn- read-some
+  [^InputStream reader]
+  (let [^bytes buffer (make-array Byte/TYPE 1024)
+        size (.read reader buffer)]
+    (when (> size 0)
+      (if (= size 1024) buffer (Arrays/copyOf buffer size)))))
+
+(defn- byte-seq
+  [^InputStream reader]
+  (take-while (complement nil?) (repeatedly (partial read-some reader))))
+
+(defn- byte-seq-md5
+  [^File file]
+  (with-open [in (io/input-stream file)]
+    (let [algo (MessageDigest/getInstance "MD5")]
+      (doseq [^bytes b (byte-seq in)] (.update algo b))
+      (.toString (BigInteger. 1 (.digest algo)) 16))))
+
+;; benchmark ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(defn- make-file
+  [size]
+  (let [f (doto (File/createTempFile "digest-bench" ".bin") .deleteOnExit)
+        r (java.util.Random. size)
+        b (byte-array (min size (* 1024 1024)))]
+    (with-open [out (io/output-stream f)]
+      (loop [n size]
+        (when (pos? n)
+          (.nextBytes r b)
+          (.write out b 0 (int (min n (alength b))))
+          (recur (- n (alength b))))))
+    f))
+
+(defn- run-for
+  "Calls f repeatedly for at least ms milliseconds. Returns the number of
+  calls and the elapsed nanoseconds."
+  [ms f]
+  (let [start (System/nanoTime)
+        end   (+ start (* ms 1000000))]
+    (loop [n 1]
+      (f)
+      (let [now (System/nanoTime)]
+        (if (< now end) (recur (inc n)) [n (- now start)])))))
+
+(defn- measure
+  "Returns the throughput of f in MB/s, given that each call hashes bytes."
+  [bytes f]
+  (run-for 1000 f)
+  (let [[n elapsed] (run-for 2000 f)]
+    (/ (* n bytes 1000.0) elapsed)))
+
+(def sizes
+  [(* 4 1024) (* 64 1024) (* 1024 1024) (* 16 1024 1024) (* 64 1024 1024)])
+
+(defn -main
+  [& _]
+  (printf "%12s %14s %14s %14s\n" "size" "byte-seq MD5" "MD5" "CRC32")
+  (doseq [size sizes]
+    (let [f (make-file size)]
+      (printf "%12d %9.1f MB/s %9.1f MB/s %9.1f MB/s\n" size
+              (measure size #(byte-seq-md5 f))
+              (measure size #(digest/md5 f))
+              (measure size #(digest/digest "CRC32" f)))
+      (flush)
+      (.delete ^File f))))
@@ -0,0 +1,45 @@
+(ns boot.tmpdir-bench
+  "Compares diffing a 100k entry fileset after a 10 file change using the
+  path index, the flat tree fallback, and the clojure.data/diff based
+  implementation they replaced. Run with `lein bench-tmpdir`."
+  (:require
+    [clojure.set  :as set]
+    [clojure.data :as data]
+    [boot.tmpdir  :as tmpd]))
+
+(defn- legacy-diff
+  [{t1 :tree} {t2 :tree} props]
+  (let [->map   #(reduce-kv (fn [m k v] (assoc m k (select-keys v props))) {} %)
+        [x y z] (map (comp set keys) (data/diff (->map t1) (->map t2)))
+        chg     (set/union (set/intersection x y) (set/intersection (set/union x y) z))]
+    {:added   (select-keys t2 (set/difference y x chg))
+     :removed (select-keys t1 (set/difference x y chg))
+     :changed (select-keys t2 chg)}))
+
+(defn- measure
+  "Returns the mean time of (f) in milliseconds."
+  [f]
+  (dotimes [_ 5] (f))
+  (let [n     20
+        start (System/nanoTime)]
+    (dotimes [_ n] (f))
+    (/ (- (System/nanoTime) start) n 1e6)))
+
+(defn -main
+  [& _]
+  (let [dir    (java.io.File. "bench")
+        tmpf   #(tmpd/map->TmpFile {:dir dir :path %1 :id (str %2 ".0") :hash %2 :time 0})
+        paths  (for [a (range 10) b (range 10) c (range 10) d (range 100)]
+                 (format "src/a%d/b%d/c%d/file%d.clj" a b c d))
+        before (tmpd/add-tmp (tmpd/map->TmpFileSet {:dirs [(tmpd/map->TmpDir {:dir dir})] :tree {}}) dir
+                             (map #(tmpf % "0") paths))
+        after  (tmpd/add-tmp before dir (map #(tmpf % "1") (take-nth 10000 paths)))
+        stale  (update-in after [:tree] #(into {} %))
+        props  [:id :dir]
+        diff*  #'tmpd/diff*]
+    (printf "%d entries, %d changed\n" (count (:tree after))
+            (count (:tree (:changed (diff* before after props)))))
+    (printf "%-24s %10.3f ms\n" "clojure.data/diff" (measure #(legacy-diff before after props)))
+    (printf "%-24s %10.3f ms\n" "flat tree" (measure #(diff* before stale props)))
+    (printf "%-24s %10.3f ms\n" "path index" (measure #(diff* before after props)))
+    (flush)))
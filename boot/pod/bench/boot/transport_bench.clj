@@ -0,0 +1,52 @@
+(ns boot.transport-bench
+  "Compares the binary pod transport with the pr-str/read-string round trip it
+  replaced, for payloads like the ones passed between pods. Run with `lein
+  bench-transport`."
+  (:require
+    [boot.transport :as transport]))
+
+(defn- run-for
+  "Calls f repeatedly for at least ms milliseconds. Returns the number of
+  calls and the elapsed nanoseconds."
+  [ms f]
+  (let [start (System/nanoTime)
+        end   (+ start (* ms 1000000))]
+    (loop [n 1]
+      (f)
+      (let [now (System/nanoTime)]
+        (if (< now end) (recur (inc n)) [n (- now start)])))))
+
+(defn- measure
+  "Returns the mean time of a call to f in milliseconds."
+  [f]
+  (run-for 1000 f)
+  (let [[n elapsed] (run-for 3000 f)]
+    (/ elapsed n 1000000.0)))
+
+(defn- dep
+  [i]
+  [(symbol (str "group" (mod i 50)) (str "artifact" i)) (str "1." (mod i 7) "." i)
+   :scope "compile" :exclusions [(symbol "org.clojure" "clojure")]])
+
+(def payloads
+  {"dep graph, 2k nodes"  (into {} (for [i (range 2000)]
+                                     [(dep i) (set (map dep (range (inc i) (min 2000 (+ i 4)))))]))
+   "namespaces, 20k"      (set (for [i (range 20000)] (symbol (str "some.project.module" (mod i 100) ".ns" i))))
+   "pom map"              {:project     'boot/core
+                           :version     "2.8.3"
+                           :description (apply str (repeat 200 "A long description. "))
+                           :url         "https://github.com/boot-clj/boot"
+                           :scm         {:url "https://github.com/boot-clj/boot" :tag "HEAD"}
+                           :dependencies (mapv dep (range 200))}
+   "strings, 50 x 100KB"  (vec (repeat 50 (apply str (repeat 100000 \x))))})
+
+(defn -main
+  [& _]
+  (printf "%-22s %10s %10s %14s %14s\n" "payload" "text KB" "binary KB" "pr/read ms" "transport ms")
+  (doseq [[label x] payloads]
+    (printf "%-22s %10d %10d %14.2f %14.2f\n" label
+            (quot (count (pr-str x)) 1024)
+            (quot (count (transport/encode x)) 1024)
+            (measure #(read-string (pr-str x)))
+            (measure #(transport/decode (transport/encode x))))
+    (flush)))
@@ -16,6 +16,11 @@
   :license        {:name "Eclipse Public License"
                    :url "http://www.eclipse.org/legal/epl-v10.html"}
   :plugins      [[lein-ancient "0.6.15"]]
+  :profiles     {:bench {:source-paths ["bench"]}}
+  :aliases      {"bench-classloader" ["with-profile" "+bench" "run" "-m" "boot.classloader-bench"]
+                 "bench-digest" ["with-profile" "+bench" "run" "-m" "boot.from.digest-bench"]
+                 "bench-tmpdir" ["with-profile" "+bench" "run" "-m" "boot.tmpdir-bench"]
+                 "bench-transport" ["with-profile" "+bench" "run" "-m" "boot.transport-bench"]}
   :dependencies [[boot/base                               ~version :scope "provided"]
                  [org.clojure/clojure                     "1.6.0"  :scope "provided"]
                  [org.tcrawley/dynapath                   "1.0.0"  :scope "compile"]
@@ -4,6 +4,7 @@
    [clojure.set      :as set]
    [clojure.data     :as data]
    [boot.from.digest :as digest]
+   [boot.trace       :as trace]
    [clojure.string   :as str])
   (:import
    [java.net URI]
@@ -162,7 +163,9 @@
 (defn hard-link
   [^File existing-file ^File link-file]
   (Files/deleteIfExists (.toPath link-file))
-  (Files/createLink (.toPath link-file) (.toPath existing-file)))
+  (let [link (Files/createLink (.toPath link-file) (.toPath existing-file))]
+    (trace/count! "links created" 1)
+    link))
 
 (defn sym-link
   [^File target-file ^File link-file]
@@ -179,7 +182,8 @@
     (when (.exists dst-file) (.delete dst-file))
     (if *hard-link*
       (hard-link src-file dst-file)
-      (doto dst-file cp-src! (.setLastModified last-mod)))))
+      (do (trace/count! "bytes copied" (.length src-file))
+          (doto dst-file cp-src! (.setLastModified last-mod))))))
 
 (defn copy-atomically
   [^File src-file ^File dst-file]
@@ -195,25 +199,61 @@
           outs   (map #(srcdir->outdir % src dest) files)]
       (mapv copy-with-lastmod (map io/file files) (map io/file outs)))))
 
+(defn- subtree-for
+  "Like tree-for for the single directory dir, but only includes the files at
+  or below sub, a path relative to dir."
+  [dir sub]
+  (let [path  (-> (if (string? dir) dir (.getPath ^File dir))
+                  ((fn [^String s] (.replaceAll s "/$" ""))))
+        snip  (count (str path "/"))]
+    (->> (file-seq (if (empty? sub) (io/file path) (io/file path sub)))
+         (reduce (fn [xs ^File f]
+                   (if-not (.isFile f)
+                     xs
+                     (let [p  (.getPath f)
+                           p' (subs p snip)
+                           r  #(re-find % p')]
+                       (if (some r *ignore*)
+                         xs
+                         (-> (assoc-in xs [:file p'] f)
+                             (assoc-in [:time p'] (.lastModified f)))))))
+                 {}))))
+
 (defn tree-for [& dirs]
-  (->> (for [dir dirs]
-         (let [path  (-> (if (string? dir) dir (.getPath ^File dir))
-                         ((fn [^String s] (.replaceAll s "/$" ""))))
-               snip  (count (str path "/"))]
-           (->> (file-seq (io/file path))
-                (reduce (fn [xs ^File f]
-                          (if-not (.isFile f)
-                            xs
-                            (let [p  (.getPath f)
-                                  p' (subs p snip)
-                                  r  #(re-find % p')]
-                              (if (some r *ignore*)
-                                xs
-                                (-> (assoc-in xs [:file p'] f)
-                                    (assoc-in [:time p'] (.lastModified f)))))))
-                        {}))))
+  (->> (for [dir dirs] (subtree-for dir ""))
        (reduce (partial merge-with into) {})))
 
+(defn- retree
+  "Updates tree, the tree-for dirs, by rescanning only the files at or below
+  the given paths relative to dirs."
+  [tree dirs paths]
+  (let [paths   (set paths)
+        file?   (fn [p] (or (contains? (:file tree) p)
+                            (some #(.isFile (io/file % p)) dirs)))
+        subdirs (set (remove file? paths))
+        stale?  (fn [p] (or (contains? paths p)
+                            (and (seq subdirs)
+                                 (some subdirs (map str (rest (parent-seq p)))))))
+        stale   (filter stale? (keys (:file tree)))
+        fresh   (for [p paths dir dirs] (subtree-for dir p))]
+    (->> (reduce (partial merge-with into)
+                 (-> tree
+                     (update-in [:file] #(apply dissoc % stale))
+                     (update-in [:time] #(apply dissoc % stale)))
+                 fresh))))
+
+(defn relative-paths
+  "Returns the set of paths, relative to the first of dirs that contains them,
+  of the absolute paths. Paths not in any of dirs are omitted. A path that is
+  one of the dirs itself is returned as the empty string."
+  [dirs paths]
+  (let [roots (map #(-> (io/file %) .toPath .toAbsolutePath .normalize) dirs)]
+    (set (for [p paths
+               :let [p    (-> (io/file p) .toPath .toAbsolutePath .normalize)
+                     root (some #(when (.startsWith p ^java.nio.file.Path %) %) roots)]
+               :when root]
+           (str (.relativize ^java.nio.file.Path root p))))))
+
 (defn time-diff [before after]
   ((fn [[b a]] [(set/difference b a) a])
    (->> (data/diff (:time before) (:time after)) (take 2) (map (comp set keys)))))
@@ -241,10 +281,19 @@
         :rm (delete-file x)
         :cp (copy-with-lastmod x (io/file dest p))))))
 
-(defn watcher! [pred & dirs]
+(defn watcher!
+  "Returns a function that scans dirs and returns the patch (see patch) of
+  the changes since the last time it was called. The function takes an
+  optional collection of paths relative to dirs, in which case only the files
+  at or below those paths are rescanned. The dirs are scanned in full on the
+  first call, or when no paths or the empty path are given."
+  [pred & dirs]
   (let [state (atom nil)]
-    (fn []
-      (let [state' (apply tree-for dirs)
+    (fn [& [paths]]
+      (let [full?  (or (nil? @state) (nil? paths) (some empty? paths))
+            state' (if full?
+                     (apply tree-for dirs)
+                     (retree @state dirs paths))
             patch' (patch pred @state state')]
         (reset! state state')
         patch'))))
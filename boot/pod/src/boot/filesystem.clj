@@ -6,11 +6,14 @@
     [clojure.string         :as string]
     [boot.filesystem.patch  :as fsp]
     [boot.file              :as file]
+    [boot.trace             :as trace]
     [boot.from.digest       :as digest :refer [md5]]
     [boot.util              :as util   :refer [with-let]])
   (:import
     [java.net URI]
-    [java.io File]
+    [java.io DataInputStream DataOutputStream File]
+    [java.util UUID]
+    [java.util.concurrent ExecutionException ForkJoinPool Future]
     [java.util.zip ZipEntry ZipOutputStream ZipException]
     [java.util.jar JarEntry JarOutputStream Manifest Attributes$Name]
     [java.nio.file.attribute FileAttribute FileTime PosixFilePermission
@@ -161,6 +164,7 @@
   (let [dst (doto (rel dest path) mkparents!)]
     (util/dbug* "Filesystem: copying %s...\n" (string/join "/" path))
     (try (Files/copy ^Path src ^Path dst copy-opts)
+         (trace/count! "bytes copied" (Files/size dst))
          (Files/setLastModifiedTime dst (FileTime/fromMillis time))
          (when (and mode (not windows?)) (Files/setPosixFilePermissions dst mode))
          (catch java.nio.file.NoSuchFileException ex
@@ -172,6 +176,7 @@
     (util/dbug* "Filesystem: linking %s...\n" (string/join "/" path))
     (try (Files/deleteIfExists dst)
          (Files/createLink (doto dst mkparents!) src)
+         (trace/count! "links created" 1)
          (when (and mode (not windows?)) (Files/setPosixFilePermissions dst mode))
          (catch java.nio.file.NoSuchFileException ex
            (util/dbug* "Filesystem: %s\n" (str ex))))))
@@ -191,12 +196,139 @@
       (util/dbug* "Filesystem: writing %s...\n" (string/join "/" path))
       (writer-fn os))))
 
+(def fork-join-pool
+  (memoize (fn [n] (ForkJoinPool. (int n)))))
+
+(defn run-batches!
+  "Calls f on each of the batches, concurrently on a pool of n threads when n
+  is greater than one. Returns when all calls have returned."
+  [n f batches]
+  (if (< n 2)
+    (doseq [b batches] (f b))
+    (doseq [^Future fut (.invokeAll ^ForkJoinPool (fork-join-pool n)
+                                    ^java.util.Collection (mapv #(fn [] (f %)) batches))]
+      (try (.get fut)
+           (catch ExecutionException e (throw (.getCause e)))))))
+
+(def ^:private patch-batch-size 256)
+
 (defn patch!
-  [dest before after & {:keys [link mode]}]
-  (with-let [_ (fsp/patch-result before after)]
-    (doseq [[op path & [arg1 arg2]] (fsp/patch before after link)]
-      (case op
-        :delete (delete! dest path)
-        :write  (copy!   dest path arg1 arg2 :mode mode)
-        :link   (link!   dest path arg1 :mode mode)
-        :touch  (touch!  dest path arg1)))))
+  "Applies the patch from before to after to the dest directory. Returns the
+  patch result, with the number of operations applied in its metadata under
+  :boot.filesystem/ops. The :parallelism option sets the number of threads
+  the operations are applied on (1). Deletes are applied before the others."
+  [dest before after & {:keys [link mode parallelism]}]
+  (let [ops    (fsp/patch before after link)
+        apply! (fn [ops]
+                 (doseq [[op path & [arg1 arg2]] ops]
+                   (case op
+                     :delete (delete! dest path)
+                     :write  (copy!   dest path arg1 arg2 :mode mode)
+                     :link   (link!   dest path arg1 :mode mode)
+                     :touch  (touch!  dest path arg1))))]
+    (doseq [ops ((juxt filter remove) #(= :delete (first %)) ops)]
+      (run-batches! (or parallelism 1) apply! (partition-all patch-batch-size ops)))
+    (some-> (fsp/patch-result before after) (vary-meta assoc ::ops (count ops)))))
+
+;; snapshots ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+;; A snapshot records the files boot wrote to a directory it patches, so the
+;; next patch of the directory, in this JVM or a later one, doesn't need to
+;; scan it. Snapshots are kept in the boot cache with a stamp of the directory
+;; taken after the patch. When the directory's stamp no longer matches, it was
+;; changed by something other than boot and has to be scanned again. The stamp
+;; covers the directories that hold the files in the snapshot, so it takes a
+;; stat of each of those files, but no reads.
+
+(def ^:private snapshot-version 2)
+
+(defn- ^File snapshot-file
+  [dest]
+  (io/file (boot.App/getBootDir) "cache" "cache" "snapshots"
+           (md5 (.getCanonicalPath (io/file (str dest))))))
+
+(defn- parent-paths
+  "The paths of the directories above the relative path, eg. a and a/b for
+  a/b/c.txt."
+  [^String path]
+  (when-let [dirs (butlast (string/split path #"/"))]
+    (reductions #(str %1 "/" %2) dirs)))
+
+(defn stamp
+  "Returns a stamp of the directory dir with the files at paths, relative to
+  dir: a hash of the modification times of dir and of every directory that
+  holds one of the paths, and of the files and directories directly in them.
+  Adding, removing, or rewriting files anywhere in those directories changes
+  it; changes in other directories below them don't."
+  [dir paths]
+  (let [^File dir (io/file (str dir))
+        mix       (fn [^long h ^String name ^long time]
+                    (unchecked-add (unchecked-multiply 31 h) (unchecked-add (.hashCode name) time)))]
+    (reduce (fn [^long h ^String d]
+              (let [^File d' (if (= "" d) dir (io/file dir d))]
+                (reduce (fn [^long h ^File f] (mix h (.getName f) (.lastModified f)))
+                        (mix h d (.lastModified d'))
+                        (sort (or (.listFiles d') [])))))
+            0
+            (into (sorted-set "") (mapcat parent-paths paths)))))
+
+(defn read-snapshot
+  "Returns the snapshot of the directory dest saved by write-snapshot!, a map
+  of path to [hash time], or nil if there isn't one or dest's stamp shows that
+  it has changed since."
+  [dest]
+  (util/guard
+    (with-open [in (DataInputStream. (io/input-stream (snapshot-file dest)))]
+      (when (= snapshot-version (.readInt in))
+        (let [stamp' (.readLong in)
+              ret    (loop [n (.readInt in) ret (transient {})]
+                       (if (zero? n)
+                         (persistent! ret)
+                         (let [path (.readUTF in)
+                               hash (.readUTF in)
+                               time (.readLong in)]
+                           (recur (dec n) (assoc! ret path [(when-not (= "" hash) hash) time])))))]
+          (when (= stamp' (stamp dest (keys ret)))
+            ret))))))
+
+(defn write-snapshot!
+  "Saves the snapshot of the directory dest, a map of path to [hash time]
+  (the hash may be nil), with the current stamp of dest. Call this after
+  patching dest."
+  [dest snapshot]
+  (let [f   (snapshot-file dest)
+        tmp (io/file (str (.getPath f) "." (UUID/randomUUID)))]
+    (try (io/make-parents f)
+         (with-open [out (DataOutputStream. (io/output-stream tmp))]
+           (.writeInt out snapshot-version)
+           (.writeLong out (stamp dest (keys snapshot)))
+           (.writeInt out (count snapshot))
+           (doseq [[^String path [hash ^long time]] snapshot]
+             (.writeUTF out path)
+             (.writeUTF out (or hash ""))
+             (.writeLong out time)))
+         (file/move tmp f)
+         (catch Throwable t
+           (.delete tmp)
+           (util/dbug* "Filesystem: can't save snapshot of %s: %s\n" (str dest) (str t))))))
+
+(defn delete-snapshot!
+  "Deletes the snapshot of the directory dest, if there is one."
+  [dest]
+  (.delete (snapshot-file dest)))
+
+(defn snapshot->tree
+  "Returns the FileSystemTree of dest recorded in the snapshot."
+  [dest snapshot]
+  (let [root (->path dest)]
+    (FileSystemTree.
+      root
+      (reduce-kv (fn [tree ^String path [_ time]]
+                   (let [segs (string/split path #"/")]
+                     (assoc tree segs {:path segs :file (rel root segs) :time time})))
+                 {} snapshot))))
+
+(defn tree->snapshot
+  "Returns the snapshot of the FileSystemTree."
+  [{:keys [tree]}]
+  (reduce-kv #(assoc %1 (string/join "/" %2) [nil (:time %3)]) {} tree))
@@ -2,35 +2,132 @@
   {:boot/from :tebeka/clj-digest
    :author "Miki Tebeka <miki.tebeka@gmail.com>"
    :doc "Message digest algorithms for Clojure"}
-  (:use [clojure.string :only (split lower-case)])
+  (:use [clojure.string :only (split lower-case upper-case)])
   (:import java.util.Arrays
            (java.security MessageDigest Security Provider)
-           (java.io FileInputStream File InputStream)))
+           (java.io FileInputStream File InputStream)
+           (java.nio ByteBuffer)
+           (java.nio.channels FileChannel FileChannel$MapMode)
+           (java.nio.file OpenOption StandardOpenOption)
+           (java.util.zip Adler32 CRC32)))
 
 ; Default buffer size for reading
-(def ^:dynamic *buffer-size* 1024)
-
-(defn- read-some
-  "Read some data from reader. Return [data size] if there's more to read,
-  otherwise nil."
-  [^InputStream reader]
-  (let [^bytes  buffer (make-array Byte/TYPE *buffer-size*)
-        size (.read reader buffer)]
-    (when (> size 0)
-      (if (= size *buffer-size*) buffer (Arrays/copyOf buffer size)))))
-
-(defn- byte-seq
-  "Return a sequence of [data size] from reader."
-  [^InputStream reader]
-  (take-while (complement nil?) (repeatedly (partial read-some reader))))
+(def ^:dynamic *buffer-size* (* 64 1024))
+
+; Files at least this large are memory-mapped instead of read into a buffer
+(def ^:dynamic *mmap-threshold* (* 4 1024 1024))
+
+; Largest region of a file that is mapped at once
+(def ^:private mmap-chunk (* 256 1024 1024))
+
+(def ^:private ^"[Ljava.nio.file.OpenOption;" read-opts
+  (into-array OpenOption [StandardOpenOption/READ]))
+
+(def ^:private ^ThreadLocal buffers (ThreadLocal.))
+
+(defn- ^ByteBuffer direct-buffer
+  "Returns this thread's direct read buffer, cleared, allocating a new one
+  when there is none yet or *buffer-size* has changed."
+  []
+  (let [^ByteBuffer b (.get buffers)]
+    (if (and b (= (.capacity b) *buffer-size*))
+      (.clear b)
+      (doto (ByteBuffer/allocateDirect *buffer-size*) (->> (.set buffers))))))
+
+(def ^:private ^"[C" hex-chars (.toCharArray "0123456789abcdef"))
+
+(defn- hex
+  "Lowercase hex string of the bytes in b."
+  [^bytes b]
+  (let [out (char-array (* 2 (alength b)))]
+    (dotimes [i (alength b)]
+      (let [x (aget b i)]
+        (aset out (* 2 i) (aget hex-chars (bit-and (bit-shift-right x 4) 0xf)))
+        (aset out (inc (* 2 i)) (aget hex-chars (bit-and x 0xf)))))
+    (String. out)))
 
 (defn- signature
   "Get signature (string) of digest."
   [^MessageDigest algorithm]
-  (let [size (* 2 (.getDigestLength algorithm))
-        sig (.toString (BigInteger. 1 (.digest algorithm)) 16)
-        padding (apply str (repeat (- size (count sig)) "0"))]
-    (str padding sig)))
+  (hex (.digest algorithm)))
+
+(defn- checksum-signature
+  [^long value]
+  (let [sig (Long/toHexString value)]
+    (str (subs "00000000" (count sig)) sig)))
+
+(defprotocol Digester
+  (-update-bytes [digester bytes offset length])
+  (-update-buffer [digester buffer])
+  (-finish [digester])
+  (-length [digester]))
+
+(extend-protocol Digester
+  MessageDigest
+  (-update-bytes  [d b off len] (.update d ^bytes b (int off) (int len)))
+  (-update-buffer [d buf]       (.update d ^ByteBuffer buf))
+  (-finish        [d]           (signature d))
+  (-length        [d]           (.getDigestLength d))
+
+  CRC32
+  (-update-bytes  [d b off len] (.update d ^bytes b (int off) (int len)))
+  (-update-buffer [d buf]       (.update d ^ByteBuffer buf))
+  (-finish        [d]           (checksum-signature (.getValue d)))
+  (-length        [d]           4)
+
+  Adler32
+  (-update-bytes  [d b off len] (.update d ^bytes b (int off) (int len)))
+  (-update-buffer [d buf]       (.update d ^ByteBuffer buf))
+  (-finish        [d]           (checksum-signature (.getValue d)))
+  (-length        [d]           4))
+
+(defmulti digester
+  "Returns a new Digester for the named algorithm. Any MessageDigest algorithm
+  is supported, as are the non-cryptographic CRC32 and ADLER32 checksums.
+  Other algorithms can be plugged in by adding methods that return objects
+  satisfying the Digester protocol."
+  upper-case)
+
+(defmethod digester "CRC32"   [_] (CRC32.))
+(defmethod digester "ADLER32" [_] (Adler32.))
+
+(def ^:private message-digest
+  "Returns a prototype MessageDigest for the algorithm, or nil if it can't be
+  cloned, since cloning is much cheaper than a provider lookup."
+  (memoize
+    (fn [algorithm]
+      (let [d (MessageDigest/getInstance algorithm)]
+        (try (.clone d) d (catch CloneNotSupportedException _))))))
+
+(defmethod digester :default
+  [algorithm]
+  (if-let [^MessageDigest d (message-digest algorithm)]
+    (.clone d)
+    (MessageDigest/getInstance algorithm)))
+
+(defn digest-length
+  "The length in bytes of the digests of the named algorithm."
+  [algorithm]
+  (-length (digester algorithm)))
+
+(defn- channel-digest
+  "Digest the contents of ch, memory-mapping it when it is large and reading
+  it through this thread's reusable direct buffer otherwise."
+  [^FileChannel ch algorithm]
+  (let [d    (digester algorithm)
+        size (.size ch)]
+    (if (< size *mmap-threshold*)
+      (let [buf (direct-buffer)]
+        (while (not (neg? (.read ch buf)))
+          (.flip buf)
+          (-update-buffer d buf)
+          (.clear buf)))
+      (loop [pos 0]
+        (when (< pos size)
+          (let [n (long (min mmap-chunk (- size pos)))]
+            (-update-buffer d (.map ch FileChannel$MapMode/READ_ONLY pos n))
+            (recur (+ pos n))))))
+    (-finish d)))
 
 (defprotocol Digestible
   (-digest [message algorithm]))
@@ -45,10 +142,9 @@
   ;; * http://www.holygoat.co.uk/blog/entry/2009-03-26-1
   ;; * http://www.rgagnon.com/javadetails/java-0416.html 
   (-digest [message algorithm]
-    (let [^MessageDigest algo (MessageDigest/getInstance algorithm)]
-      (.reset algo)
-      (doseq [^bytes b message] (.update algo b))
-      (signature algo)))
+    (let [d (digester algorithm)]
+      (doseq [^bytes b message] (-update-bytes d b 0 (alength b)))
+      (-finish d)))
 
   String
   (-digest [message algorithm]
@@ -56,12 +152,19 @@
   
   InputStream
   (-digest [reader algorithm]
-    (-digest (byte-seq reader) algorithm))
+    (let [d      (digester algorithm)
+          buffer (byte-array *buffer-size*)]
+      (loop []
+        (let [size (.read reader buffer)]
+          (when-not (neg? size)
+            (-update-bytes d buffer 0 size)
+            (recur))))
+      (-finish d)))
   
   File
   (-digest [file algorithm]
-    (with-open [f (FileInputStream. file)]
-      (-digest f algorithm)))
+    (with-open [ch (FileChannel/open (.toPath file) read-opts)]
+      (channel-digest ch algorithm)))
 
   nil
   (-digest [message algorithm]
@@ -2,10 +2,19 @@
   (:require
    [clojure.java.io :as io]
    [boot.util       :as util]
-   [boot.filesystem :as fs])
+   [boot.pod        :as pod]
+   [boot.file       :as file]
+   [boot.filesystem.patch :as fsp])
   (:import
-   [java.util.zip ZipEntry ZipOutputStream ZipException]
-   [java.util.jar JarEntry JarOutputStream Manifest Attributes$Name]))
+   [java.io ByteArrayInputStream ByteArrayOutputStream File]
+   [java.nio ByteBuffer ByteOrder]
+   [java.nio.channels FileChannel]
+   [java.nio.charset StandardCharsets]
+   [java.nio.file Files OpenOption StandardOpenOption]
+   [java.util ArrayDeque Calendar]
+   [java.util.concurrent Callable ExecutionException ExecutorService Executors Future ThreadFactory TimeUnit]
+   [java.util.zip CRC32 Deflater DeflaterOutputStream ZipException]
+   [java.util.jar JarEntry Manifest Attributes$Name]))
 
 (set! *warn-on-reflection* true)
 
@@ -18,14 +27,6 @@
       (doseq [[k v] ext-attrs]
         (.put attributes (Attributes$Name. (name k)) v)))))
 
-(defn- write! [^java.io.OutputStream stream file]
-  (let [buf (byte-array 1024)]
-    (with-open [in (io/input-stream file)]
-      (loop [n (.read in buf)]
-        (when-not (= -1 n)
-          (.write stream buf 0 n)
-          (recur (.read in buf)))))))
-
 (defn dupe? [^Throwable t]
   (and (instance? ZipException t)
        (.startsWith (.getMessage t) "duplicate entry:")))
@@ -34,49 +35,558 @@
   (doto (JarEntry. (str (.replaceAll path "\\\\" "/") (when dir? "/")))
     (.setTime (.lastModified f))))
 
-(defn spit-jar! [jarpath files attr main]
-  (let [manifest  (create-manifest main attr)
-        jarfile   (io/file jarpath)
-        dirs      (atom #{})
-        getparent (fn [^java.io.File f] (.getParent f))
-        parents*  #(iterate (comp getparent io/file) %)
-        parents   #(->> % parents* (drop 1)
-                     (take-while (complement empty?))
-                     (remove (partial contains? @dirs)))]
-    (io/make-parents jarfile)
-    (with-open [s (JarOutputStream. (io/output-stream jarfile) manifest)]
-      (doseq [[jarpath srcpath] files :let [f (io/file srcpath)]]
-        (let [e (jarentry jarpath f)]
-          (try
-            (doseq [d (parents jarpath) :let [f (io/file d)]]
-              (swap! dirs conj d)
-              (doto s (.putNextEntry (jarentry d f true)) .closeEntry))
-            (doto s (.putNextEntry e) (write! srcpath) .closeEntry)
-            (catch Throwable t
-              (if-not (dupe? t) (throw t) (util/warn "%s\n" (.getMessage t))))))))))
-
-(defn spit-zip! [zippath files]
-  (let [zipfile (io/file zippath)]
-    (io/make-parents zipfile)
-    (with-open [s (ZipOutputStream. (io/output-stream zipfile))]
-      (doseq [[^String zippath ^String srcpath] files :let [f (io/file srcpath)]]
-        (when-not (.isDirectory f)
-          (let [entry (doto (ZipEntry. zippath) (.setTime (.lastModified f)))]
-            (try
-              (doto s (.putNextEntry entry) (write! srcpath) .closeEntry)
-              (catch Throwable t
-                (if-not (dupe? t) (throw t) (util/warn "%s\n" (.getMessage t)))))))))))
+;; zip writer ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+;; Entries are read, checksummed, and deflated on a pool of threads, a few
+;; entries ahead of the writer, and written to the zip file in the order they
+;; were given. Entries larger than large-entry bytes are deflated to a temp
+;; file next to the zip rather than to memory, and those temp files and stored
+;; large files are copied into the zip with FileChannel transfers. Entries
+;; that don't get smaller when deflated are stored. Zip64 records are written
+;; when there are too many entries or the offsets or sizes are too large for
+;; the zip format.
+
+(def ^:dynamic *parallelism*
+  "The number of threads used to deflate entries when writing jar and zip
+  files. Set via the BOOT_JAR_PARALLELISM env var or configuration option.
+  The default is the number of processors."
+  (or (util/guard (Integer/parseInt (boot.App/config "BOOT_JAR_PARALLELISM")))
+      (.availableProcessors (Runtime/getRuntime))))
+
+(def ^:private large-entry (* 1024 1024))
+(def ^:private max-u32     0xffffffff)
+(def ^:private max-u16     0xffff)
+
+(defn- dos-time
+  [^long ms]
+  (let [c (doto (Calendar/getInstance) (.setTimeInMillis ms))
+        y (.get c Calendar/YEAR)]
+    (if (< y 1980)
+      (bit-or (bit-shift-left 1 21) (bit-shift-left 1 16))
+      (bit-or (bit-shift-left (- y 1980) 25)
+              (bit-shift-left (inc (.get c Calendar/MONTH)) 21)
+              (bit-shift-left (.get c Calendar/DAY_OF_MONTH) 16)
+              (bit-shift-left (.get c Calendar/HOUR_OF_DAY) 11)
+              (bit-shift-left (.get c Calendar/MINUTE) 5)
+              (bit-shift-right (.get c Calendar/SECOND) 1)))))
+
+(defn- crc-file
+  "Returns the CRC-32 of the file's contents."
+  [^File f]
+  (with-open [ch (FileChannel/open (.toPath f) (into-array OpenOption [StandardOpenOption/READ]))]
+    (let [crc (CRC32.)
+          buf (ByteBuffer/allocateDirect (* 64 1024))]
+      (while (not= -1 (.read ch (.clear buf)))
+        (.update crc ^ByteBuffer (.flip buf)))
+      (.getValue crc))))
+
+(defn- deflate-bytes
+  [^bytes b level]
+  (let [d   (Deflater. (int level) true)
+        out (ByteArrayOutputStream. (max 64 (quot (alength b) 2)))]
+    (try (with-open [s (DeflaterOutputStream. out d (* 64 1024))]
+           (.write s b))
+         (.toByteArray out)
+         (finally (.end d)))))
+
+(defn- deflate-file
+  "Deflates the file f to a temp file in the directory dir. Returns the
+  CRC-32 of f and the temp file."
+  [^File f level ^File dir]
+  (let [tmp (File/createTempFile "boot-jar" ".deflated" dir)
+        d   (Deflater. (int level) true)
+        crc (CRC32.)
+        buf (byte-array (* 64 1024))]
+    (try (with-open [in  (io/input-stream f)
+                     out (DeflaterOutputStream. (io/output-stream tmp) d (* 64 1024))]
+           (loop []
+             (let [n (.read in buf)]
+               (when-not (= -1 n)
+                 (.update crc buf 0 n)
+                 (.write out buf 0 n)
+                 (recur)))))
+         [(.getValue crc) tmp]
+         (catch Throwable t (.delete tmp) (throw t))
+         (finally (.end d)))))
+
+(defn- prepare-entry
+  "Given an entry map with the zip entry :name and the :file, :bytes, or
+  :dir? it contains, returns it with the :method, :crc, :size, and :csize
+  set and the :data to write, either a byte array or a file. Files that
+  were created for the entry, in the directory tmpdir, are in :tmp. Entries
+  copied from a :source zip file are returned as they are."
+  [{:keys [^File file ^bytes bytes dir? source] :as entry} level tmpdir]
+  (let [deflate? (not= 0 level)]
+    (cond
+      source
+      entry
+
+      dir?
+      (assoc entry :method 0 :crc 0 :size 0 :csize 0)
+
+      (or bytes (<= (.length file) large-entry))
+      (let [^bytes b (or bytes (Files/readAllBytes (.toPath file)))
+            crc      (.getValue (doto (CRC32.) (.update b)))
+            ^bytes c (when deflate? (deflate-bytes b level))
+            store?   (or (not c) (>= (alength c) (alength b)))]
+        (assoc entry :crc crc :size (alength b)
+                     :method (if store? 0 8)
+                     :csize (if store? (alength b) (alength c))
+                     :data (if store? b c)))
+
+      (not deflate?)
+      (assoc entry :method 0 :crc (crc-file file) :size (.length file)
+                   :csize (.length file) :data file)
+
+      :else
+      (let [[crc ^File tmp] (deflate-file file level tmpdir)
+            store?          (>= (.length tmp) (.length file))]
+        (when store? (.delete tmp))
+        (assoc entry :crc crc :size (.length file)
+                     :method (if store? 0 8)
+                     :csize (if store? (.length file) (.length tmp))
+                     :data (if store? file tmp)
+                     :tmp (when-not store? tmp))))))
+
+(defn- ^ByteBuffer le-buffer
+  [n]
+  (.order (ByteBuffer/allocate n) ByteOrder/LITTLE_ENDIAN))
+
+(defn- write-fully!
+  "Flips the buffer and writes it to the channel."
+  [^FileChannel ch ^ByteBuffer buf]
+  (.flip buf)
+  (while (.hasRemaining buf) (.write ch buf)))
+
+(defn- write-bytes!
+  [^FileChannel ch ^bytes b]
+  (let [buf (ByteBuffer/wrap b)]
+    (while (.hasRemaining buf) (.write ch buf))))
+
+(defn- ^FileChannel open-channel
+  [^File f]
+  (FileChannel/open (.toPath f) (into-array OpenOption [StandardOpenOption/READ])))
+
+(defn- transfer-range!
+  "Copies n bytes of the channel in, from position pos, to the channel ch."
+  [^FileChannel ch ^FileChannel in pos n]
+  (let [end (+ pos n)]
+    (loop [pos pos]
+      (when (< pos end)
+        (let [m (.transferTo in pos (- end pos) ch)]
+          (when (<= m 0) (throw (ZipException. "unexpected end of zip file")))
+          (recur (+ pos m)))))))
+
+(defn- transfer!
+  [^FileChannel ch ^File f]
+  (with-open [in (open-channel f)]
+    (transfer-range! ch in 0 (.size in))))
+
+(defn- zip64-extra
+  "The zip64 extra field with the values vs, or nil if there are none."
+  [vs]
+  (when (seq vs)
+    (let [buf (le-buffer (+ 4 (* 8 (count vs))))]
+      (.putShort buf (short 1))
+      (.putShort buf (short (* 8 (count vs))))
+      (doseq [v vs] (.putLong buf (long v)))
+      buf)))
+
+(defn- u32 [v] (unchecked-int (min v max-u32)))
+
+(defn- write-entry!
+  "Writes the local header and data of the prepared entry at the channel's
+  position. Returns the entry with its :offset."
+  [^FileChannel ch {:keys [^bytes name-bytes method time dos crc size csize data] :as e}]
+  (let [offset (.position ch)
+        ^ByteBuffer extra (when (or (>= size max-u32) (>= csize max-u32))
+                            (zip64-extra [size csize]))
+        xlen   (if extra (.position extra) 0)
+        buf    (le-buffer (+ 30 (alength name-bytes) xlen))]
+    (doto buf
+      (.putInt 0x04034b50)
+      (.putShort (short (if extra 45 20)))
+      (.putShort (short 0x800))
+      (.putShort (short method))
+      (.putInt (unchecked-int (or dos (dos-time time))))
+      (.putInt (unchecked-int crc))
+      (.putInt (u32 (if extra max-u32 csize)))
+      (.putInt (u32 (if extra max-u32 size)))
+      (.putShort (short (alength name-bytes)))
+      (.putShort (short xlen))
+      (.put name-bytes))
+    (when extra (.put buf (.array extra)))
+    (write-fully! ch buf)
+    (cond (instance? File data) (transfer! ch data)
+          (vector? data)        (let [[in pos] data] (transfer-range! ch in pos csize))
+          data                  (write-bytes! ch data))
+    (assoc e :offset offset)))
+
+(defn- write-central!
+  "Writes the central directory for the written entries, and the end of
+  central directory records."
+  [^FileChannel ch entries]
+  (let [start (.position ch)]
+    (doseq [{:keys [^bytes name-bytes method time dos crc size csize offset dir?]} entries]
+      (let [^ByteBuffer extra (zip64-extra (filter #(>= % max-u32) [size csize offset]))
+            xlen (if extra (.position extra) 0)
+            buf  (le-buffer (+ 46 (alength name-bytes) xlen))]
+        (doto buf
+          (.putInt 0x02014b50)
+          (.putShort (short (if extra 45 20)))
+          (.putShort (short (if extra 45 20)))
+          (.putShort (short 0x800))
+          (.putShort (short method))
+          (.putInt (unchecked-int (or dos (dos-time time))))
+          (.putInt (unchecked-int crc))
+          (.putInt (u32 csize))
+          (.putInt (u32 size))
+          (.putShort (short (alength name-bytes)))
+          (.putShort (short xlen))
+          (.putShort (short 0))
+          (.putShort (short 0))
+          (.putShort (short 0))
+          (.putInt (int (if dir? 0x10 0)))
+          (.putInt (u32 offset))
+          (.put name-bytes))
+        (when extra (.put buf (.array extra)))
+        (write-fully! ch buf)))
+    (let [end    (.position ch)
+          n      (count entries)
+          size   (- end start)
+          zip64? (or (>= n max-u16) (>= size max-u32) (>= start max-u32))]
+      (when zip64?
+        (write-fully! ch (doto (le-buffer 76)
+                           (.putInt 0x06064b50)
+                           (.putLong 44)
+                           (.putShort (short 45))
+                           (.putShort (short 45))
+                           (.putInt 0)
+                           (.putInt 0)
+                           (.putLong n)
+                           (.putLong n)
+                           (.putLong size)
+                           (.putLong start)
+                           (.putInt 0x07064b50)
+                           (.putInt 0)
+                           (.putLong end)
+                           (.putInt 1))))
+      (write-fully! ch (doto (le-buffer 22)
+                         (.putInt 0x06054b50)
+                         (.putShort (short 0))
+                         (.putShort (short 0))
+                         (.putShort (unchecked-short (min n max-u16)))
+                         (.putShort (unchecked-short (min n max-u16)))
+                         (.putInt (u32 size))
+                         (.putInt (u32 start))
+                         (.putShort (short 0)))))))
+
+;; source zips ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+;; Entries of other zip files are copied without inflating and deflating
+;; them again: their compressed data is transferred as it is, with the CRC
+;; and sizes from the source's central directory.
+
+(defn- ^ByteBuffer read-at
+  "Reads n bytes of the channel at position pos into a little-endian buffer."
+  [^FileChannel ch pos n]
+  (let [buf (le-buffer n)]
+    (loop [pos pos]
+      (when (.hasRemaining buf)
+        (let [m (.read ch buf (long pos))]
+          (when (neg? m) (throw (ZipException. "unexpected end of zip file")))
+          (recur (+ pos m)))))
+    (doto buf .flip)))
+
+(defn- u16 [^ByteBuffer buf i] (bit-and (.getShort buf (int i)) max-u16))
+(defn- u32* [^ByteBuffer buf i] (bit-and (.getInt buf (int i)) max-u32))
+
+(defn- source-data-offset
+  "The position of the data of the entry whose local header is at offset."
+  [^FileChannel ch offset]
+  (let [buf (read-at ch offset 30)]
+    (when-not (= 0x04034b50 (.getInt buf 0))
+      (throw (ZipException. "invalid local header in zip file")))
+    (+ offset 30 (u16 buf 26) (u16 buf 28))))
+
+(defn- central-directory-bounds
+  "The size and position of the central directory of the zip file."
+  [^FileChannel ch]
+  (let [size (.size ch)
+        n    (min size (+ 22 max-u16))
+        tail (read-at ch (- size n) n)
+        eocd (or (first (filter #(= 0x06054b50 (.getInt tail (int %))) (range (- n 22) -1 -1)))
+                 (throw (ZipException. "zip end header not found")))
+        at   (+ (- size n) eocd)
+        loc  (when (<= 20 at) (read-at ch (- at 20) 20))]
+    (if (and loc (= 0x07064b50 (.getInt loc 0)))
+      (let [e64 (read-at ch (.getLong loc 8) 56)]
+        [(.getLong e64 40) (.getLong e64 48)])
+      [(u32* tail (+ eocd 12)) (u32* tail (+ eocd 16))])))
+
+(defn- zip64-values
+  "Replaces the values of the keys ks in the entry with the values in the
+  zip64 extra field in buf, from position i to end, where they're too large
+  for the central directory record."
+  [e ^ByteBuffer buf i end ks]
+  (loop [i i]
+    (if (< end (+ i 4))
+      e
+      (let [id (u16 buf i) n (u16 buf (+ i 2))]
+        (if-not (= 1 id)
+          (recur (+ i 4 n))
+          (loop [e e [k & ks] (filter #(= max-u32 (e %)) ks) j (+ i 4)]
+            (if (or (not k) (< (+ i 4 n) (+ j 8)))
+              e
+              (recur (assoc e k (.getLong buf (int j))) ks (+ j 8)))))))))
+
+(defn- zip-entries
+  "The file entries in the central directory of the zip file f, in order."
+  [^File f]
+  (with-open [ch (open-channel f)]
+    (let [[size pos] (central-directory-bounds ch)
+          cd         (read-at ch pos size)]
+      (loop [i 0 entries (transient [])]
+        (if (or (< size (+ i 46)) (not= 0x02014b50 (.getInt cd (int i))))
+          (persistent! entries)
+          (let [nlen  (u16 cd (+ i 28))
+                xlen  (u16 cd (+ i 30))
+                clen  (u16 cd (+ i 32))
+                nb    (byte-array nlen)
+                _     (.get (doto cd (.position (int (+ i 46)))) nb)
+                name  (String. nb StandardCharsets/UTF_8)
+                e     (-> {:name          name
+                           :source        f
+                           :method        (u16 cd (+ i 10))
+                           :dos           (u32* cd (+ i 12))
+                           :crc           (u32* cd (+ i 16))
+                           :csize         (u32* cd (+ i 20))
+                           :size          (u32* cd (+ i 24))
+                           :source-offset (u32* cd (+ i 42))}
+                          (zip64-values cd (+ i 46 nlen) (+ i 46 nlen xlen)
+                                        [:size :csize :source-offset]))]
+            (recur (long (+ i 46 nlen xlen clen))
+                   (if (.endsWith name "/") entries (conj! entries e)))))))))
+
+(defn- entry-bytes
+  "The uncompressed contents of the entry."
+  [{:keys [^File file ^bytes bytes ^File source entry]}]
+  (cond bytes  bytes
+        file   (Files/readAllBytes (.toPath file))
+        source (with-open [z (java.util.zip.ZipFile. source)
+                           in (.getInputStream z (.getEntry z ^String entry))]
+                 (let [out (ByteArrayOutputStream.)]
+                   (io/copy in out)
+                   (.toByteArray out)))))
+
+(defn add-source
+  "Returns the fileset with the entries of the jar file added to the entries
+  of the jar, war, and zip files written from it, without exploding the jar
+  into the fileset. The :include and :exclude options are sets of regexes
+  that entry paths must and must not match. Entries that are also in the
+  fileset or in earlier jars are merged with the first matching :mergers
+  rule, as in boot.core/add-resource. Entries are only inflated when they
+  are merged by a merger other than boot.pod/first-wins-merger."
+  [fileset jar & {:keys [include exclude mergers]}]
+  (let [jar    (io/file jar)
+        source {:jar jar :stamp [(.length jar) (.lastModified jar)]
+                :include include :exclude exclude :mergers mergers}]
+    (update-in fileset [::sources]
+               #(conj (vec (remove (comp #{jar} :jar) %)) source))))
+
+(defn sources
+  "The jar files added to the fileset with add-source."
+  [fileset]
+  (::sources fileset))
+
+(defn- keep-entry?
+  [include exclude ^String name]
+  (and (or (empty? include) (some #(re-find % name) include))
+       (not (some #(re-find % name) exclude))))
+
+(defn source-entries
+  "Adds the entries of the source jars, as added by add-source, to the
+  entries, a seq of write-zip! entry maps. The paths of the source entries
+  are passed through the rename fn. Merged entries keep the time of the
+  first entry, so the zip doesn't change when its inputs don't. Returns the
+  merged entries."
+  [entries sources & [rename]]
+  (if-not (seq sources)
+    entries
+    (let [m (java.util.LinkedHashMap.)]
+      (doseq [{:keys [name] :as e} entries]
+        (if (.containsKey m name)
+          (util/warn "duplicate entry: %s\n" name)
+          (.put m name e)))
+      (doseq [{:keys [jar include exclude mergers]} sources
+              {:keys [name] :as e} (zip-entries jar)
+              :when (keep-entry? include exclude name)]
+        (let [path   ((or rename identity) name)
+              e      (assoc e :name path :entry name)
+              prev   (.get m path)
+              merger (when prev (some (fn [[re f]] (when (re-find re path) f)) mergers))]
+          (cond (not prev)                      (.put m path e)
+                (= merger pod/first-wins-merger) nil
+                (not merger)                    (.put m path e)
+                :else
+                (let [out (ByteArrayOutputStream.)]
+                  (util/dbug* "Merging duplicate entry (%s)\n" path)
+                  (merger (ByteArrayInputStream. (entry-bytes prev))
+                          (ByteArrayInputStream. (entry-bytes e))
+                          out)
+                  (.put m path (-> (select-keys prev [:time :dos])
+                                   (assoc :name path :bytes (.toByteArray out))))))))
+      (seq (.values m)))))
+
+(def ^:private daemon-threads
+  (reify ThreadFactory
+    (newThread [_ r] (doto (Thread. r "boot-jar") (.setDaemon true)))))
+
+(defn write-zip!
+  "Writes a zip file at zippath with the entries, a seq of maps of the entry
+  :name and either the :file or the :bytes to write, or :dir? true for a
+  directory entry, or an entry of a zip file from source-entries. The :time
+  defaults to the file's mtime. The entries are written in order and
+  duplicate names are skipped with a warning. Options:
+
+    :level    The deflate level, 0-9 (default -1, ie. Deflater's default).
+    :stored   If true, the entries are stored without compression, the same
+              as level 0.
+
+  Entries are deflated on *parallelism* threads."
+  [zippath entries & {:keys [level stored]}]
+  (let [level   (if stored 0 (or level Deflater/DEFAULT_COMPRESSION))
+        zipfile (io/file zippath)
+        tmpfile (do (io/make-parents zipfile)
+                    (File/createTempFile (.getName zipfile) ".tmp" (.getParentFile (.getAbsoluteFile zipfile))))
+        n       (max 1 *parallelism*)
+        ^ExecutorService pool (when (< 1 n) (Executors/newFixedThreadPool n daemon-threads))
+        pending (ArrayDeque.)
+        names   (java.util.HashSet.)
+        written (java.util.ArrayList.)
+        sources (java.util.HashMap.)
+        source  (fn [e]
+                  (let [f  (:source e)
+                        in (or (.get sources f)
+                               (util/with-let [in (open-channel f)] (.put sources f in)))]
+                    (assoc e :data [in (source-data-offset in (:source-offset e))])))]
+    (try
+      (with-open [ch (FileChannel/open (.toPath tmpfile)
+                                       (into-array OpenOption [StandardOpenOption/WRITE
+                                                               StandardOpenOption/TRUNCATE_EXISTING]))]
+        (let [write! (fn [e]
+                       (let [e (try (if pool (.get ^Future e) e)
+                                    (catch ExecutionException x (throw (.getCause x))))
+                             e (if (:source e) (source e) e)]
+                         (try (.add written (dissoc (write-entry! ch e) :data :bytes :file))
+                              (finally (some-> ^File (:tmp e) .delete)))))]
+          (doseq [{:keys [^String name ^File file time] :as e} entries]
+            (if-not (.add names name)
+              (util/warn "duplicate entry: %s\n" name)
+              (let [e    (assoc e :name-bytes (.getBytes name StandardCharsets/UTF_8)
+                                  :time (or time (if file (.lastModified file) (System/currentTimeMillis))))
+                    prep #(prepare-entry e level (.getParentFile tmpfile))]
+                (.add pending (if pool (.submit pool ^Callable prep) (prep)))
+                (when (< (* 4 n) (.size pending))
+                  (write! (.poll pending))))))
+          (while (not (.isEmpty pending))
+            (write! (.poll pending)))
+          (write-central! ch written)))
+      (file/move tmpfile zipfile)
+      (catch Throwable t
+        (when pool
+          (.shutdownNow pool)
+          (.awaitTermination pool 10 TimeUnit/SECONDS))
+        (doseq [f pending]
+          (some-> ^File (:tmp (if-not pool
+                                f
+                                (when (.isDone ^Future f)
+                                  (try (.get ^Future f) (catch Throwable _)))))
+                  .delete))
+        (.delete tmpfile)
+        (throw t))
+      (finally
+        (when pool (.shutdownNow pool))
+        (doseq [^FileChannel in (vals sources)] (.close in))))))
+
+(defn- file-entries
+  "The entries for the files, a seq of [path srcpath] pairs."
+  [files]
+  (for [[^String path srcpath] files]
+    {:name (.replaceAll path "\\\\" "/") :file (io/file srcpath)}))
+
+(defn- with-parents
+  "The entries, each preceded by entries for its parent directories that
+  weren't already added."
+  [entries]
+  (let [dirs (java.util.HashSet.)]
+    (for [{:keys [name] :as e} entries
+          :let [parents (->> (iterate #(.getParent (io/file %)) name)
+                             (drop 1)
+                             (take-while seq)
+                             reverse)]
+          e (concat (for [d parents :when (.add dirs d)]
+                      {:name (str (.replaceAll ^String d "\\\\" "/") "/") :dir? true
+                       :time (.lastModified (io/file d))})
+                    [e])]
+      e)))
+
+(defn- manifest-entry
+  [main attr]
+  (let [out (ByteArrayOutputStream.)]
+    (.write ^Manifest (create-manifest main attr) out)
+    {:name "META-INF/MANIFEST.MF" :bytes (.toByteArray out)}))
+
+(defn spit-jar!
+  "Writes a jar file at jarpath with a manifest created from the attr map and
+  the main namespace, and the files, a seq of [jarpath srcpath] pairs. The
+  :sources option is a seq of jars from add-source whose entries are copied
+  into the jar, and their paths are passed through the :rename fn. See
+  write-zip! for the other options."
+  [jarpath files attr main & {:keys [sources rename] :as opts}]
+  (->> (source-entries (file-entries files) sources rename)
+       with-parents
+       (cons (manifest-entry main attr))
+       (#(apply write-zip! jarpath % (mapcat identity opts)))))
+
+(defn spit-zip!
+  "Writes a zip file at zippath with the files, a seq of [zippath srcpath]
+  pairs. Directories are skipped. See spit-jar! and write-zip! for the
+  options."
+  [zippath files & {:keys [sources rename] :as opts}]
+  (->> (file-entries (remove (comp #(.isDirectory (io/file %)) second) files))
+       (#(source-entries % sources rename))
+       (#(apply write-zip! zippath % (mapcat identity opts)))))
 
 ;; new jar fns ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
+(defn- fileset-files
+  "The [path file] pairs of the files in the fileset, sorted by path."
+  [fileset]
+  (->> (vals (:tree fileset))
+       (map (juxt :path #(io/file (:dir %) (:path %))))
+       (sort-by first)))
+
+(defn- changed?
+  [^File file old-fs new-fs]
+  (or (not (.exists file))
+      (not old-fs)
+      (not= (map (juxt :jar :stamp) (sources old-fs))
+            (map (juxt :jar :stamp) (sources new-fs)))
+      (seq (fsp/patch old-fs new-fs nil))))
+
 (defn update-zip!
-  [zipfile old-fs new-fs]
-  (with-open [^java.nio.file.FileSystem fs (fs/mkjarfs zipfile :create true)]
-    (fs/patch! (fs/->path fs) old-fs new-fs)))
+  "Writes the files in the new-fs fileset, and the entries of the jars added
+  to it with add-source, to the zipfile, unless the zip file exists and
+  new-fs has no changes from old-fs."
+  [zipfile old-fs new-fs & opts]
+  (when (changed? (io/file zipfile) old-fs new-fs)
+    (apply spit-zip! zipfile (fileset-files new-fs) :sources (sources new-fs) opts)))
 
 (defn update-jar!
-  [jarfile old-fs new-fs attr main]
-  (with-open [^java.nio.file.FileSystem fs (fs/mkjarfs jarfile :create true)]
-    (let [^java.util.jar.Manifest manifest (create-manifest main attr)]
-      (fs/write! (fs/->path fs) #(.write manifest %) ["META-INF" "MANIFEST.MF"]))
-    (fs/patch! (fs/->path fs) old-fs new-fs)))
+  "Writes the files in the new-fs fileset, and the entries of the jars added
+  to it with add-source, to the jarfile, like spit-jar!, unless the jar file
+  exists and new-fs has no changes from old-fs."
+  [jarfile old-fs new-fs attr main & opts]
+  (when (changed? (io/file jarfile) old-fs new-fs)
+    (apply spit-jar! jarfile (fileset-files new-fs) attr main :sources (sources new-fs) opts)))
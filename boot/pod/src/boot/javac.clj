@@ -0,0 +1,279 @@
+(ns boot.javac
+  "Incremental compilation of Java sources.
+
+  The compiler state records, for each source file, its content hash and the
+  classes it produced, and for each class, the project classes it references
+  and a hash of its ABI: the signatures of its non-private members. After a
+  change only the changed sources are recompiled, followed by the sources that
+  reference a class whose ABI changed, and so on until no ABI changes. Classes of
+  changed and removed sources are deleted from the output directory first.
+
+  Compile-time constants are inlined by javac, so references to them can't be
+  seen in class files. A change to a constant recompiles every source."
+  (:require
+   [clojure.edn     :as edn]
+   [clojure.java.io :as io]
+   [clojure.set     :as set]
+   [boot.util       :as util]
+   [boot.file       :as file])
+  (:import
+   [java.io BufferedInputStream DataInputStream File]
+   [java.nio.channels FileChannel FileLock]
+   [java.nio.file OpenOption StandardOpenOption]
+   [java.util Arrays UUID]
+   [java.util.concurrent ConcurrentHashMap]
+   [javax.tools DiagnosticCollector ForwardingJavaFileManager JavaCompiler
+    JavaFileManager JavaFileObject StandardJavaFileManager]))
+
+(set! *warn-on-reflection* true)
+
+(def ^:private version 1)
+
+;; class files ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(defn- read-pool
+  "Reads the constant pool. Strings are kept as strings, numbers as numbers,
+  class and string constants as [:class idx] and [:string idx]."
+  [^DataInputStream in]
+  (let [n    (.readUnsignedShort in)
+        pool (object-array n)]
+    (loop [i 1]
+      (when (< i n)
+        (let [tag (.readUnsignedByte in)]
+          (case tag
+            1                  (aset pool i (.readUTF in))
+            3                  (aset pool i (num (.readInt in)))
+            4                  (aset pool i (num (.readFloat in)))
+            5                  (aset pool i (num (.readLong in)))
+            6                  (aset pool i (num (.readDouble in)))
+            7                  (aset pool i [:class (.readUnsignedShort in)])
+            8                  (aset pool i [:string (.readUnsignedShort in)])
+            (9 10 11 12 17 18) (.readInt in)
+            15                 (do (.readUnsignedByte in) (.readUnsignedShort in))
+            (16 19 20)         (.readUnsignedShort in))
+          (recur (+ i (if (#{5 6} tag) 2 1))))))
+    pool))
+
+(defn- read-attributes
+  "Reads an attribute table. Returns a map of attribute name to the value of
+  the attributes that are part of the ABI."
+  [^DataInputStream in ^objects pool]
+  (let [n (.readUnsignedShort in)]
+    (loop [i 0 attrs {}]
+      (if (= i n)
+        attrs
+        (let [name (aget pool (.readUnsignedShort in))
+              len  (.readInt in)]
+          (recur (inc i)
+                 (case name
+                   ("Signature" "ConstantValue")
+                   (let [v (aget pool (.readUnsignedShort in))]
+                     (assoc attrs name (if (vector? v) (aget pool (second v)) v)))
+                   "Exceptions"
+                   (->> (range (.readUnsignedShort in))
+                        (mapv (fn [_] (aget pool (second (aget pool (.readUnsignedShort in))))))
+                        sort
+                        (assoc attrs name))
+                   (do (.skipBytes in len) attrs))))))))
+
+(defn- read-members
+  "Reads the fields or methods. Returns the non-private, non-synthetic ones as
+  [name descriptor access attributes] vectors."
+  [^DataInputStream in ^objects pool]
+  (->> (range (.readUnsignedShort in))
+       (mapv (fn [_]
+               (let [access (.readUnsignedShort in)
+                     name   (aget pool (.readUnsignedShort in))
+                     desc   (aget pool (.readUnsignedShort in))]
+                 [name desc access (read-attributes in pool)])))
+       (remove (fn [[_ _ access]] (pos? (bit-and access 0x1002))))
+       (sort-by (juxt first second))))
+
+(def ^:private type-names #"L([^;<>\[\]()]+)[;<]")
+
+(defn class-info
+  "Reads a class file. Returns a map with the internal :name of the class, the
+  :abi and :constants hashes, and the :deps, the internal names of the types
+  it refers to."
+  [f]
+  (with-open [in (DataInputStream. (BufferedInputStream. (io/input-stream f)))]
+    (.readInt in)
+    (.readInt in)
+    (let [pool       ^objects (read-pool in)
+          class-name #(when (pos? %) (aget pool (second (aget pool %))))
+          access     (.readUnsignedShort in)
+          name       (class-name (.readUnsignedShort in))
+          super      (class-name (.readUnsignedShort in))
+          ifaces     (sort (mapv (fn [_] (class-name (.readUnsignedShort in)))
+                                 (range (.readUnsignedShort in))))
+          fields     (read-members in pool)
+          methods    (read-members in pool)
+          attrs      (read-attributes in pool)
+          literals   (set (keep #(when (and (vector? %) (= :string (first %))) (second %)) pool))
+          constants  (keep (fn [[name _ access attrs]]
+                             (when (and (= 0x18 (bit-and access 0x18)) (contains? attrs "ConstantValue"))
+                               [name (get attrs "ConstantValue")]))
+                           fields)
+          deps       (for [i (range 1 (alength pool))
+                           :let [v (aget pool i)]
+                           :when (and (string? v) (not (literals i)))
+                           [_ t] (re-seq type-names v)]
+                       t)
+          classes    (keep #(when (and (vector? %) (= :class (first %)))
+                              (let [^String n (aget pool (second %))]
+                                (when-not (.startsWith n "[") n)))
+                           pool)]
+      {:name      name
+       :abi       (boot.App/md5hash (pr-str [(bit-and access 0x7e11) super ifaces
+                                             (get attrs "Signature") fields methods]))
+       :constants (when (seq constants) (boot.App/md5hash (pr-str constants)))
+       :deps      (disj (into (set classes) deps) name)})))
+
+;; compiler state ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(defn read-state
+  "Reads the compiler state saved by write-state!, or nil if there isn't one
+  or it can't be read."
+  [f]
+  (util/guard
+    (let [state (edn/read-string (slurp f))]
+      (when (= version (:version state)) state))))
+
+(defn write-state!
+  "Writes the compiler state to the file f, atomically."
+  [f state]
+  (let [f   (io/file f)
+        tmp (io/file (str (.getPath f) "." (UUID/randomUUID)))]
+    (io/make-parents f)
+    (spit tmp (pr-str (assoc state :version version)))
+    (file/move tmp f)))
+
+(def ^:private locks (ConcurrentHashMap.))
+
+(defn with-lock*
+  "Calls f holding an exclusive lock on the cache directory dir, which keeps
+  the output and state of a compiler. The lock is shared by the threads of
+  this process, and by other boot processes through a lock file in dir."
+  [^File dir f]
+  (let [path (.getCanonicalPath dir)]
+    (.putIfAbsent ^ConcurrentHashMap locks path (Object.))
+    (locking (.get ^ConcurrentHashMap locks path)
+      (.mkdirs dir)
+      (with-open [ch (FileChannel/open (.toPath (io/file dir "lock"))
+                                       (into-array OpenOption [StandardOpenOption/CREATE StandardOpenOption/WRITE]))
+                  ^FileLock _ (.lock ch)]
+        (f)))))
+
+(defn- ^File class-file
+  [outdir cls]
+  (io/file outdir (str cls ".class")))
+
+(defn- remove-sources
+  "Deletes the classes of the sources from the output directory and removes
+  them from the state. Returns [state removed-classes]."
+  [state outdir paths]
+  (let [classes (mapcat #(get-in state [:sources % :classes]) paths)]
+    (doseq [cls classes]
+      (.delete (class-file outdir cls)))
+    [(-> state
+         (update-in [:sources] #(apply dissoc % paths))
+         (update-in [:classes] #(apply dissoc % classes)))
+     (select-keys (:classes state) classes)]))
+
+(defn- dependents
+  "Returns the paths of the sources with classes that refer to any of the
+  classes."
+  [state classes]
+  (set (for [[_ {:keys [deps source]}] (:classes state)
+             :when (some classes deps)]
+         source)))
+
+(defn- output-recorder
+  "Returns a file manager that delegates to file-mgr and adds the name of each
+  class it writes to the set in the outputs atom under the path of the source
+  file it was compiled from."
+  [^JavaFileManager file-mgr outputs uri->path]
+  (proxy [ForwardingJavaFileManager] [file-mgr]
+    (getJavaFileForOutput [location class-name kind ^javax.tools.FileObject sibling]
+      (when-let [path (and sibling (uri->path (str (.toUri sibling))))]
+        (swap! outputs update-in [path] (fnil conj #{}) (.replace ^String class-name \. \/)))
+      (.getJavaFileForOutput file-mgr location class-name kind sibling))))
+
+(defn- compile-sources
+  "Compiles the sources at the paths into outdir. Returns [diagnostics outputs]
+  where outputs maps the paths to the names of the classes compiled from them,
+  or nil if compilation failed."
+  [^JavaCompiler compiler ^StandardJavaFileManager file-mgr opts sources paths]
+  (let [diag-coll (DiagnosticCollector.)
+        outputs   (atom {})
+        objs      (->> paths
+                       (map #(get-in sources [% :file]))
+                       (into-array File)
+                       Arrays/asList
+                       (.getJavaFileObjectsFromFiles file-mgr))
+        uri->path (zipmap (map #(str (.toUri ^JavaFileObject %)) objs) paths)
+        ok?       (-> compiler
+                      (.getTask *err* (output-recorder file-mgr outputs uri->path)
+                                diag-coll opts nil objs)
+                      .call)]
+    [(.getDiagnostics diag-coll) (when ok? @outputs)]))
+
+(defn compile!
+  "Compiles the changed sources and their dependents into the outdir directory.
+  The sources are a map of path to {:file :hash}. The state is the compiler
+  state returned by the previous call, or nil to compile every source. If the
+  options or classpath differ from those of the previous call every source is
+  compiled too. Returns a map of the new :state (nil if compilation failed),
+  the :diagnostics, and the number of files :compiled."
+  [compiler file-mgr outdir sources state & {:keys [options classpath]}]
+  (let [key    [options classpath]
+        full?  (or (not= key (:key state)) (not (file/dir? outdir)))
+        state  (if full? {:key key :sources {} :classes {}} state)
+        opts   (->> ["-d" (.getPath (io/file outdir))
+                     "-cp" (str (.getPath (io/file outdir)) File/pathSeparator classpath)]
+                    (concat options)
+                    (into-array String)
+                    Arrays/asList)
+        hashes (into {} (for [[path {:keys [hash]}] (:sources state)] [path hash]))
+        stale  (remove #(= (get-in sources [% :hash]) (hashes %)) (keys sources))
+        gone   (remove sources (keys (:sources state)))]
+    (when full? (file/empty-dir! outdir) (.mkdirs (io/file outdir)))
+    (let [[state removed] (remove-sources state outdir gone)]
+      (loop [state    state
+             todo     (if (some :constants (vals removed))
+                        (set (keys sources))
+                        (into (set stale) (dependents state (set (keys removed)))))
+             compiled #{}
+             diags    []]
+        (if (empty? todo)
+          {:state state :diagnostics diags :compiled (count compiled)}
+          (let [_                  (util/info "Compiling %d Java source files...\n" (count todo))
+                [state old]        (remove-sources state outdir todo)
+                [diags' outputs]   (compile-sources compiler file-mgr opts sources todo)
+                diags              (into diags diags')]
+            (if-not outputs
+              {:state nil :diagnostics diags :compiled (count (into compiled todo))}
+              (let [infos    (into {} (for [[path classes] outputs
+                                            cls classes
+                                            :let [info (class-info (class-file outdir cls))]]
+                                        [cls (assoc info :source path)]))
+                    srcs     (into {} (for [path todo]
+                                        [path {:hash    (get-in sources [path :hash])
+                                               :classes (set (outputs path))}]))
+                    state    (-> state
+                                 (update-in [:sources] merge srcs)
+                                 (update-in [:classes] merge infos))
+                    known    (set (keys (:classes state)))
+                    state    (reduce (fn [state cls]
+                                       (update-in state [:classes cls :deps] #(set (filter known %))))
+                                     state (keys infos))
+                    changed  (set (for [[cls {:keys [abi]}] old
+                                        :when (not= abi (get-in infos [cls :abi]))]
+                                    cls))
+                    consts?  (some (fn [[cls {:keys [constants]}]]
+                                     (not= constants (get-in infos [cls :constants])))
+                                   old)
+                    next     (if consts?
+                               (set (keys sources))
+                               (dependents state changed))]
+                (recur state (set/difference next todo) (into compiled todo) diags)))))))))
@@ -0,0 +1,120 @@
+(ns boot.memo
+  "Memoization of task middleware.
+
+  A memoized task's handler is skipped when it's called with a fileset whose
+  files have the same paths, ids, dirs, and metadata as one it was called with
+  before, for the same task options. The changes the task made to that fileset
+  are applied to the new one instead, and the result is passed to the next
+  handler. The TmpFiles of those changes refer to the files in the blob store,
+  so nothing is written until the fileset is committed.
+
+  Only tasks whose output depends on nothing but their fileset and options, and
+  that call the next handler once, can be memoized. Work a task does after the
+  next handler returns is skipped too. The outputs of at most BOOT_MEMOIZE_SIZE
+  calls (default 256) are kept, least recently used first out; set it to 0 to
+  turn memoization off."
+  (:require
+   [clojure.java.io :as io]
+   [boot.tmpdir     :as tmpd]
+   [boot.trace      :as trace]
+   [boot.util       :as util])
+  (:import
+   [java.security MessageDigest]
+   [java.util LinkedHashMap Map]))
+
+(set! *warn-on-reflection* true)
+
+(def max-entries
+  "The number of task outputs kept, from BOOT_MEMOIZE_SIZE."
+  (or (util/guard (Integer/parseInt (boot.App/config "BOOT_MEMOIZE_SIZE"))) 256))
+
+(def ^:private ^Map cache
+  (proxy [LinkedHashMap] [16 0.75 true]
+    (removeEldestEntry [_] (> (.size ^Map this) max-entries))))
+
+(def ^:private stats (atom {}))
+
+(def ^:private ^:dynamic *recorders* {})
+
+(defn- update-digest!
+  [^MessageDigest md x]
+  (.update md (.getBytes (str x) "UTF-8"))
+  (.update md (byte 0)))
+
+(defn fileset-key
+  "Returns a hash of the task name, the options, and the paths, ids, dirs, and
+  metadata of the files in the fileset whose paths match one of the regexes in
+  reads, or of all of its files if reads is empty."
+  [name opts reads fileset]
+  (let [md    (MessageDigest/getInstance "MD5")
+        read? (if-let [res (seq reads)]
+                (fn [path] (some #(re-find % path) res))
+                (constantly true))]
+    (update-digest! md name)
+    (update-digest! md (pr-str opts))
+    (doseq [[path tmpf] (sort-by key (:tree fileset))
+            :when (read? path)]
+      (update-digest! md path)
+      (update-digest! md (tmpd/id tmpf))
+      (update-digest! md (tmpd/dir tmpf))
+      (let [m (dissoc (into {} tmpf) :dir :bdir :path :id :hash :time)]
+        (when (seq m) (update-digest! md (pr-str (into (sorted-map) m))))))
+    (apply str (map #(format "%02x" (bit-and 0xff %)) (.digest md)))))
+
+(defn- lookup
+  [key]
+  (when-let [changes (locking cache (.get cache key))]
+    (when (every? #(.exists (io/file (tmpd/bdir %) (tmpd/id %))) (vals (:put changes)))
+      changes)))
+
+(defn- store!
+  [key changes]
+  (locking cache
+    (if changes (.put cache key changes) (.remove cache key))))
+
+(defn- count!
+  [name k]
+  (trace/count! (str "memo " (clojure.core/name k)) 1)
+  (swap! stats update-in [name k] (fnil inc 0)))
+
+(defn wrap-task
+  "Returns the task middleware, memoized as described above when memo is true
+  or a map of options. The :reads option is a collection of regexes; only the
+  files whose paths match one of them are part of the key."
+  [name opts memo middleware]
+  (if-not (and memo (fn? middleware) (pos? max-entries))
+    middleware
+    (let [reads (when (map? memo) (:reads memo))
+          id    (Object.)]
+      (fn [next-handler]
+        (let [handler (middleware
+                        (fn [fileset]
+                          (when-let [record! (get *recorders* id)]
+                            (record! fileset))
+                          (next-handler fileset)))]
+          (fn [fileset]
+            (if-not (tmpd/tmpfileset? fileset)
+              (handler fileset)
+              (let [key (fileset-key name opts reads fileset)]
+                (if-let [changes (lookup key)]
+                  (do (count! name :hits)
+                      (util/dbug* "Memoized task %s: applying %d changes\n"
+                                  name (+ (count (:put changes)) (count (:removed changes))))
+                      (next-handler (tmpd/apply-changes fileset changes)))
+                  (let [calls   (atom 0)
+                        record! (fn [out]
+                                  (store! key (when (and (= 1 (swap! calls inc)) (tmpd/tmpfileset? out))
+                                                (tmpd/fileset-changes fileset out))))]
+                    (count! name :misses)
+                    (binding [*recorders* (assoc *recorders* id record!)]
+                      (handler fileset))))))))))))
+
+(defn report!
+  "Returns the number of :hits and :misses of each memoized task since the last
+  report as a map of task name to counts, and resets them."
+  []
+  (loop []
+    (let [ret @stats]
+      (if (compare-and-set! stats ret {})
+        (not-empty ret)
+        (recur)))))
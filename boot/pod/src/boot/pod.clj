@@ -6,6 +6,8 @@
     [boot.util                    :as util]
     [boot.file                    :as file]
     [boot.xform                   :as xf]
+    [boot.trace                   :as trace]
+    [boot.transport               :as transport]
     [boot.from.backtick           :as bt]
     [boot.from.io.aviso.exception :as ex]
     [clojure.java.io              :as io]
@@ -16,7 +18,10 @@
     [java.lang.ref        WeakReference]
     [java.util            Properties UUID]
     [java.net             URL URLClassLoader URLConnection]
-    [java.util.concurrent ConcurrentLinkedQueue LinkedBlockingQueue TimeUnit]
+    [java.util.concurrent ConcurrentLinkedQueue LinkedBlockingDeque
+                          TimeUnit TimeoutException Semaphore Executors ExecutorService
+                          ThreadFactory]
+    [java.util.concurrent.atomic AtomicLong]
     [java.io              File]
     [java.nio.file        Files StandardCopyOption])
   (:refer-clojure :exclude [add-classpath]))
@@ -401,18 +406,23 @@
 
   The expr is expected to be of the form (f & args). It is evaluated in the
   pod by resolving f and applying it to args.
-  
-  Note: Since forms must be serialized to pass from one pod to another it is
-  not always appropriate to include metadata, as metadata may contain eg. File
-  objects which are not printable/readable by Clojure."
+
+  Forms are serialized to byte arrays by boot.transport, which handles EDN
+  data as well as File and Path objects. Other objects must be printable and
+  readable by Clojure. The one-arity version also accepts a printed expr, in
+  which case the result is printed, too."
   ([expr]
-     (let [{:keys [meta? expr]} (read-string expr)]
-       (binding [*print-meta* meta?]
-         (pr-str (eval-fn-call expr)))))
+     (if (transport/encoded? expr)
+       (let [{:keys [meta? expr]} (transport/decode expr)]
+         (binding [*print-meta* meta?]
+           (transport/encode (eval-fn-call expr))))
+       (let [{:keys [meta? expr]} (read-string expr)]
+         (binding [*print-meta* meta?]
+           (pr-str (eval-fn-call expr))))))
   ([pod expr]
-     (let [arg (pr-str {:meta? *print-meta* :expr expr})
+     (let [arg (transport/encode {:meta? *print-meta* :expr expr})
            ret (with-invoke-in pod (boot.pod/call-in* arg))]
-       (util/guard (read-string ret)))))
+       (util/guard (transport/decode ret)))))
 
 (defmacro with-call-in
   "Given a pod and an expr of the form (f & args), resolves f in the pod,
@@ -423,9 +433,8 @@
 
   Note: Unlike syntax-quote, no name resolution is done on the template forms.
 
-  Note2: The macro returned value will be nil unless it is
-  printable/readable. For instance, returning File objects will not work
-  as they are not printable/readable by Clojure."
+  Note2: The macro returned value will be nil unless it is EDN data, a File or
+  a Path, or printable/readable by Clojure (see boot.transport)."
   [pod expr]
   `(if-not ~pod
      (eval-fn-call (bt/template ~expr))
@@ -460,17 +469,19 @@
   Unlike call-in*, expr can be any expression, without the restriction that it
   be of the form (f & args).
 
-  Note: Since forms must be serialized to pass from one pod to another it is
-  not always appropriate to include metadata, as metadata may contain eg. File
-  objects which are not printable/readable by Clojure."
+  Forms are serialized the same way as for call-in*."
   ([expr]
-     (let [{:keys [meta? expr]} (read-string expr)]
-       (binding [*print-meta* meta?]
-         (pr-str (walk/prewalk identity (eval expr))))))
+     (if (transport/encoded? expr)
+       (let [{:keys [meta? expr]} (transport/decode expr :for-eval true)]
+         (binding [*print-meta* meta?]
+           (transport/encode (walk/prewalk identity (eval expr)))))
+       (let [{:keys [meta? expr]} (read-string expr)]
+         (binding [*print-meta* meta?]
+           (pr-str (walk/prewalk identity (eval expr)))))))
   ([pod expr]
-     (let [arg (pr-str {:meta? *print-meta* :expr expr})
+     (let [arg (transport/encode {:meta? *print-meta* :expr expr})
            ret (with-invoke-in pod (boot.pod/eval-in* arg))]
-       (util/guard (read-string ret)))))
+       (util/guard (transport/decode ret)))))
 
 (defmacro with-eval-in
   "Given a pod and an expr, evaluates the body in the pod and returns the
@@ -482,9 +493,8 @@
   Note: Unlike syntax-quote, no name resolution is done on the template
   forms.
 
-  Note2: The macro returned value will be nil unless it is printable/readable.
-  For instance, returning File objects will not work as they are not printable
-  and readable by Clojure."
+  Note2: The macro returned value will be nil unless it is EDN data, a File or
+  a Path, or printable/readable by Clojure (see boot.transport)."
   [pod & body]
   `(if-not ~pod
      (eval (bt/template (do ~@body)))
@@ -575,7 +585,8 @@
   env, where env is the boot environment (see boot.core/get-env). The seq of
   dependencies includes all transitive dependencies."
   [env]
-  (with-call-worker (boot.aether/resolve-dependencies ~env)))
+  (trace/span "resolve-dependencies"
+    (with-call-worker (boot.aether/resolve-dependencies ~env))))
 
 (defn resolve-release-versions
   "Given environment map env, replaces the versions of dependencies that are
@@ -686,9 +697,20 @@
                                        .toURI .toURL .toString (str "jar:"))])))
                  (into []))))))))
 
-(def jar-entries-memoized*
-  "Memoized version of jar-entries*."
-  (memoize jar-entries*))
+(def ^:private jar-entries-cache
+  (let [max 32]
+    (proxy [java.util.LinkedHashMap] [16 0.75 true]
+      (removeEldestEntry [_] (> (.size ^java.util.Map this) max)))))
+
+(defn jar-entries-memoized*
+  "Memoized version of jar-entries*. The entries of the 32 most recently used
+  jars are kept, keyed by the jar's path, size, and modification time."
+  [path-or-jarfile]
+  (let [f   (some-> path-or-jarfile io/file)
+        key (when f [(.getPath f) (.length f) (.lastModified f)])]
+    (or (locking jar-entries-cache (.get ^java.util.Map jar-entries-cache key))
+        (util/with-let [entries (jar-entries* path-or-jarfile)]
+          (locking jar-entries-cache (.put ^java.util.Map jar-entries-cache key entries))))))
 
 (defn jar-entries
   "Given a path to a jar file, returns a list of [resource-path, resource-url]
@@ -790,55 +812,207 @@
             (io/copy in out))
           (.setLastModified out-file (.getTime entry)))))))
 
+(defn- daemon-factory
+  [prefix & [priority]]
+  (let [n (AtomicLong.)]
+    (reify ThreadFactory
+      (newThread [_ r]
+        (doto (Thread. ^Runnable r (str prefix "-" (.incrementAndGet n)))
+          (.setDaemon true)
+          (.setPriority (int (or priority Thread/NORM_PRIORITY))))))))
+
+(defn- pool-counters
+  []
+  (->> (repeatedly #(AtomicLong.))
+       (zipmap [:hits :misses :timeouts :created :destroyed :evicted :create-ms :wait-ms])))
+
+(defn- elapsed-ms
+  [start-ns]
+  (quot (- (System/nanoTime) start-ns) 1000000))
+
+(defn keyed-pool
+  "Creates a function implementing a borrow/return protocol on pools of
+  stateful objects, one pool per key. Objects for the key k are created via
+  (create k) and retired via (destroy obj).
+
+  Options:
+
+    :min          The number of idle objects to keep ready for each key that
+                  has been used (default 0). These are created in the
+                  background.
+    :max          The maximum number of objects of a key that may be borrowed
+                  at once (default unlimited). Borrowers block until an object
+                  is returned.
+    :idle         Milliseconds after which idle objects in excess of :min are
+                  destroyed (default never).
+    :timeout      Milliseconds :borrow waits when :max objects are borrowed
+                  before it throws a TimeoutException (default forever).
+    :priority     Priority of the threads that create objects.
+
+  The returned function accepts the following operations:
+
+    :borrow k [timeout]   Returns an idle object for k, the object being
+                          created for k in the background, or a new object.
+    :return k obj         Makes the borrowed obj available to other borrowers.
+    :destroy k obj        Destroys the borrowed obj.
+    :detach k obj         Removes the borrowed obj from the pool, making the
+                          caller responsible for disposing of it.
+    :warm k               Creates idle objects for k in the background.
+    :stats                Returns a map of counters (:hits, :misses, :timeouts,
+                          :created, :destroyed, :evicted, and the cumulative
+                          :create-ms and :wait-ms), in total and per key.
+    :shutdown             Destroys idle objects and stops the pool. Objects
+                          returned after shutdown are destroyed."
+  [create destroy & {:keys [min max idle timeout priority]}]
+  (let [min-idle (or min 0)
+        max-out  (or max Integer/MAX_VALUE)
+        run?     (atom true)
+        entries  (atom {})
+        totals   (pool-counters)
+        exec     (Executors/newCachedThreadPool (daemon-factory "boot-pool" priority))
+        count!   (fn [{:keys [stats]} k n]
+                   (.addAndGet ^AtomicLong (stats k) n)
+                   (.addAndGet ^AtomicLong (totals k) n))
+        entry    (fn [k]
+                   (or (@entries k)
+                       (-> (swap! entries #(if (% k) % (assoc % k {:idle    (LinkedBlockingDeque.)
+                                                                  :out     (Semaphore. (int max-out) true)
+                                                                  :filling (AtomicLong.)
+                                                                  :stats   (pool-counters)})))
+                           (get k))))
+        create!  (fn [e k]
+                   (let [start (System/nanoTime)]
+                     (util/with-let [x (create k)]
+                       (count! e :created 1)
+                       (count! e :create-ms (elapsed-ms start)))))
+        retire!  (fn [e x] (count! e :destroyed 1) (destroy x))
+        fill!    (fn [k]
+                   (let [{:keys [^LinkedBlockingDeque idle ^AtomicLong filling] :as e} (entry k)
+                         more? #(locking idle
+                                  (when (and @run? (< (+ (.size idle) (.get filling)) min-idle))
+                                    (.incrementAndGet filling)))]
+                     (while (more?)
+                       (.execute exec
+                                 ^Runnable
+                                 (fn []
+                                   (try (let [x (create! e k)]
+                                          (if @run?
+                                            (.offerFirst idle [x (System/currentTimeMillis)])
+                                            (retire! e x)))
+                                        (catch Throwable t
+                                          (util/warn "Could not create pooled object: %s\n" (.getMessage t)))
+                                        (finally (.decrementAndGet filling))))))))
+        borrow   (fn [k ms]
+                   (let [{:keys [^LinkedBlockingDeque idle ^Semaphore out ^AtomicLong filling] :as e} (entry k)
+                         start (System/nanoTime)]
+                     (when-not @run?
+                       (throw (IllegalStateException. "The pool has been shut down.")))
+                     (when-not (if ms
+                                 (.tryAcquire out (long ms) TimeUnit/MILLISECONDS)
+                                 (do (.acquire out) true))
+                       (count! e :timeouts 1)
+                       (throw (TimeoutException. (format "Timed out after %d ms waiting for a pooled object." ms))))
+                     (try (let [[x] (loop []
+                                      (or (.pollFirst idle)
+                                          (when (pos? (.get filling))
+                                            (or (.pollFirst idle 100 TimeUnit/MILLISECONDS) (recur)))))]
+                            (count! e :wait-ms (elapsed-ms start))
+                            (util/with-let [x (if x
+                                                (do (count! e :hits 1) x)
+                                                (do (count! e :misses 1) (create! e k)))]
+                              (fill! k)))
+                          (catch Throwable t (.release out) (throw t)))))
+        evict!   (fn []
+                   (let [old (- (System/currentTimeMillis) idle)]
+                     (doseq [[_ {:keys [^LinkedBlockingDeque idle] :as e}] @entries]
+                       (loop []
+                         (when (> (.size idle) min-idle)
+                           (when-let [[x t :as item] (.pollLast idle)]
+                             (if (< t old)
+                               (do (count! e :evicted 1) (retire! e x) (recur))
+                               (.offerLast idle item))))))))
+        sched    (when idle
+                   (doto (Executors/newSingleThreadScheduledExecutor (daemon-factory "boot-pool-evict"))
+                     (.scheduleWithFixedDelay ^Runnable evict! (long idle) (long idle) TimeUnit/MILLISECONDS)))
+        snapshot (fn [counters] (reduce-kv #(assoc %1 %2 (.get ^AtomicLong %3)) {} counters))]
+    (fn
+      ([op]
+       (case op
+         :stats    {:total (snapshot totals)
+                    :keys  (reduce-kv (fn [xs k {:keys [^LinkedBlockingDeque idle ^Semaphore out stats]}]
+                                        (assoc xs k (assoc (snapshot stats)
+                                                           :idle (.size idle)
+                                                           :borrowed (- max-out (.availablePermits out)))))
+                                      {} @entries)}
+         :shutdown (do (reset! run? false)
+                       (when sched (.shutdownNow ^ExecutorService sched))
+                       (.shutdown exec)
+                       (doseq [[_ {:keys [^LinkedBlockingDeque idle] :as e}] @entries]
+                         (util/while-let [item (.pollFirst idle)] (retire! e (first item)))))))
+      ([op k]
+       (case op
+         :borrow (borrow k timeout)
+         :warm   (fill! k)))
+      ([op k x]
+       (let [{:keys [^LinkedBlockingDeque idle ^Semaphore out] :as e} (entry k)]
+         (case op
+           :borrow  (borrow k x)
+           :return  (do (if @run?
+                          ;; LIFO, so the most recently used objects are
+                          ;; borrowed first and the others age out
+                          (.offerFirst idle [x (System/currentTimeMillis)])
+                          (retire! e x))
+                        (.release out))
+           :destroy (do (retire! e x) (.release out) (fill! k))
+           :detach  (do (.release out) (fill! k))))))))
+
 (defn lifecycle-pool
   "Creates a function implementing a lifecycle protocol on a pool of stateful
   objects. The pool will attempt to maintain at least size objects, creating
   new objects via the create function as needed. The objects are retired when
   no longer needed, using the given destroy function. The :priority option can
-  be given to specify the priority of the worker thread (default NORM_PRIORITY).
+  be given to specify the priority of the worker threads (default NORM_PRIORITY).
 
-  The pool maintains a queue of objects with the head of the queue being the
-  \"current\" object. The pool may be \"refreshed\": the current object is
-  destroyed and the next object in the queue is promoted to current object.
+  The pool maintains a \"current\" object and a reserve of objects that are
+  created in the background (see keyed-pool). The pool may be \"refreshed\":
+  the current object is destroyed and an object from the reserve is promoted
+  to current object.
 
   The returned function accepts one argument, which can be :shutdown, :take,
-  or :refresh, or no arguments.
+  :refresh, or :stats, or no arguments.
 
     none          Returns the current object.
 
-    :shutdown     Stop worker thread and destroy all objects in the pool.
+    :shutdown     Stop worker threads and destroy all objects in the pool.
 
     :take         Remove the current object from the pool and return it to
                   the caller without destroying it. The next object in the
                   pool will be promoted. Note that it is the responsibility
                   of the caller to properly dispose of the returned object.
 
-    :refresh      Destroy the current object and promote the next object."
+    :refresh      Destroy the current object and promote the next object.
+
+    :stats        Returns the pool's counters (see keyed-pool)."
   [size create destroy & {:keys [priority]}]
-  (let [run? (atom true)
-        pri  (or priority Thread/NORM_PRIORITY)
-        q    (LinkedBlockingQueue. (int size))
-        poll #(.poll % 1 TimeUnit/SECONDS)
-        putp #(util/with-let [p (promise)] (.put % p))
-        fill #(util/while-let [p (and @run? (putp q))]
-                (deliver p (when @run? (create))))
-        peek #(loop []
-                (when @run?
-                  (or (.peek %)
-                      (do (Thread/sleep 10) (recur)))))
-        take #(deref (or (peek q) (delay)))
-        swap #(destroy @(.take q))
-        stop #(future
-                (reset! run? false)
-                (util/while-let [p (poll q)]
-                  (destroy @p)))]
-    (doto (Thread. fill) (.setDaemon true) (.setPriority pri) .start)
+  (let [pool (keyed-pool (fn [_] (create)) destroy :min (dec size) :priority priority)
+        cur  (atom nil)
+        take #(locking cur (or @cur (reset! cur (pool :borrow ::current))))
+        drop #(locking cur (util/with-let [x @cur] (reset! cur nil)))]
+    (future (take))
     (fn
       ([] (take))
       ([op] (case op
-              :shutdown (stop)
-              :take     @(.take q)
-              :refresh  (do (swap) (take)))))))
+              :shutdown (future
+                          (when-let [x (drop)] (pool :destroy ::current x))
+                          (pool :shutdown))
+              :take     (locking cur
+                          (util/with-let [x (take)]
+                            (drop)
+                            (pool :detach ::current x)))
+              :refresh  (locking cur
+                          (when-let [x (drop)] (pool :destroy ::current x))
+                          (take))
+              :stats    (pool :stats))))))
 
 (defn- init-pod!
   [env pod]
@@ -874,6 +1048,16 @@
               second)
          (.replaceAll "/.*$" ""))))
 
+(defn- pod-classpath
+  "Returns a vector of the env make-pod initializes a pod with and the files
+  on the classpath of that pod."
+  [{:keys [directories] :as env}]
+  (let [cljname (or (boot.App/getClojureName) "org.clojure/clojure")
+        dfl     [['boot/pod (boot.App/getBootVersion)]
+                 [(symbol cljname) (clojure-version)]]
+        env     (default-dependencies dfl env)]
+    [env (vec (concat (map io/file directories) (resolve-dependency-jars env)))]))
+
 (defn make-pod
   "Returns a newly constructed pod. A boot environment configuration map, env,
   may be given to initialize the pod with dependencies, directories, etc.
@@ -885,19 +1069,14 @@
   is used to coordinate different pods, for example the data object could be
   a BlockingQueue or ConcurrentHashMap shared with other pods. Default uses
   boot.pod/data from the current pod."
-  ([] (init-pod! env (boot.App/newPod nil data)))
-  ([{:keys [directories dependencies] :as env} & {:keys [name data]}]
-     (let [dirs (map io/file directories)
-           cljname (or (boot.App/getClojureName) "org.clojure/clojure")
-           dfl  [['boot/pod (boot.App/getBootVersion)]
-                 [(symbol cljname) (clojure-version)]]
-           env  (default-dependencies dfl env)
-           jars (resolve-dependency-jars env)
-           urls (concat dirs jars)]
-       (doto (->> (into-array java.io.File urls)
-                  (boot.App/newShim nil (or data boot.pod/data))
-                  (init-pod! env))
-         (pod-name (or name (caller-namespace)))))))
+  ([] (trace/span "make-pod" (init-pod! env (boot.App/newPod nil data))))
+  ([env & {:keys [name data]}]
+     (trace/span "make-pod"
+       (let [[env files] (pod-classpath env)]
+         (doto (->> (into-array java.io.File files)
+                    (boot.App/newShim nil (or data boot.pod/data))
+                    (init-pod! env))
+           (pod-name (or name (caller-namespace))))))))
 
 (defn make-pod-cp
   "Returns a new pod with the given classpath. Classpath may be a collection
@@ -910,13 +1089,14 @@
   are needed to bootstrap the pod, have no transitive dependencies, and are
   added automatically."
   [classpath & {:keys [name data]}]
-  (doto (->> (assoc env :dependencies [['boot/pod (boot.App/getBootVersion)]])
-             (resolve-dependency-jars)
-             (into (map io/file classpath))
-             (into-array java.io.File)
-             (boot.App/newShim nil (or data boot.pod/data))
-             (init-pod! nil))
-    (pod-name (or name (caller-namespace)))))
+  (trace/span "make-pod"
+    (doto (->> (assoc env :dependencies [['boot/pod (boot.App/getBootVersion)]])
+               (resolve-dependency-jars)
+               (into (map io/file classpath))
+               (into-array java.io.File)
+               (boot.App/newShim nil (or data boot.pod/data))
+               (init-pod! nil))
+      (pod-name (or name (caller-namespace))))))
 
 (defn destroy-pod
   "Closes open resources held by the pod, making the pod eligible for GC."
@@ -963,3 +1143,71 @@
         killpod (fn [pod] (future (destroy-pod pod)))
         destroy (if-not destroy killpod #(doto % destroy killpod))]
     (lifecycle-pool size init destroy)))
+
+(def ^:private shared-pool
+  (delay
+    (util/with-let [pool (keyed-pool
+                           #(->> (into-array File %)
+                                 (boot.App/newShim nil data)
+                                 (init-pod! nil))
+                           destroy-pod
+                           :min  (or (util/guard (Integer/parseInt (boot.App/config "BOOT_POD_POOL_MIN"))) 0)
+                           :max  (util/guard (Integer/parseInt (boot.App/config "BOOT_POD_POOL_MAX")))
+                           :idle (* 1000 (or (util/guard (Long/parseLong (boot.App/config "BOOT_POD_POOL_IDLE"))) 300)))]
+      (when (or (= 1 pod-id) @shutdown-hooks)
+        (add-shutdown-hook! #(pool :shutdown))))))
+
+(def ^:private borrowed-pods (atom {}))
+
+(defn borrow-pod
+  "Returns a pod for env from the shared pod pool. Pods are pooled by their
+  classpath, i.e. the directories and resolved dependency jars make-pod would
+  use for env, so tasks whose envs resolve to the same dependencies can reuse
+  each other's warm pods. Pods are reused as they are, without resetting any
+  state, and must be given back with return-pod when no longer needed.
+
+  The pool keeps BOOT_POD_POOL_MIN idle pods ready for each classpath (default
+  0) and destroys other pods that have been idle for BOOT_POD_POOL_IDLE seconds
+  (default 300). At most BOOT_POD_POOL_MAX pods of a classpath are borrowed at
+  once (default unlimited).
+
+  The :name option is the same as for boot.pod/make-pod. The :timeout option
+  sets the number of milliseconds to wait for a pod when the maximum number of
+  pods is borrowed, after which a TimeoutException is thrown."
+  [env & {:keys [name timeout]}]
+  (let [[env files] (pod-classpath env)
+        pod         (if timeout
+                      (@shared-pool :borrow files timeout)
+                      (@shared-pool :borrow files))]
+    (swap! borrowed-pods assoc pod files)
+    (doto pod
+      (with-eval-in (alter-var-root #'boot.pod/env (constantly '~env)))
+      (pod-name (or name (caller-namespace))))))
+
+(defn return-pod
+  "Gives a pod obtained via borrow-pod back to the shared pod pool. If the
+  :destroy option is true the pod is destroyed instead, for example when its
+  state should not be reused."
+  [pod & {:keys [destroy]}]
+  (when-let [files (get @borrowed-pods pod)]
+    (swap! borrowed-pods dissoc pod)
+    (@shared-pool (if destroy :destroy :return) files pod)))
+
+(defmacro with-borrowed-pod
+  "Borrows a pod for env from the shared pod pool, binds it to sym while body
+  is evaluated, and returns it to the pool afterwards. The opts are passed to
+  borrow-pod.
+
+  For example:
+
+      (with-borrowed-pod [p (get-env) :timeout 10000]
+        (with-eval-in p (require 'my.ns) (my.ns/run)))"
+  [[sym env & opts] & body]
+  `(let [~sym (borrow-pod ~env ~@opts)]
+     (try ~@body (finally (return-pod ~sym)))))
+
+(defn pod-pool-stats
+  "Returns the counters of the shared pod pool, in total and per classpath.
+  See keyed-pool for the meaning of the counters."
+  []
+  (@shared-pool :stats))
@@ -7,18 +7,29 @@
     [boot.filesystem        :as fs]
     [boot.filesystem.patch  :as fsp]
     [boot.pod               :as pod]
+    [boot.trace             :as trace]
     [boot.file              :as file]
     [boot.from.digest       :as digest]
     [boot.util              :as util :refer [with-let]])
   (:import
-    [java.io File]
+    [java.io File IOException]
+    [java.nio ByteBuffer]
     [java.util Properties]
-    [java.nio.file Path Files SimpleFileVisitor]))
+    [java.util.concurrent ConcurrentLinkedQueue ForkJoinPool ForkJoinTask RecursiveTask]
+    [java.nio.file Path Files LinkOption SimpleFileVisitor StandardCopyOption
+                   DirectoryNotEmptyException]
+    [java.nio.file.attribute BasicFileAttributes]))
 
 (set! *warn-on-reflection* true)
 
 (def CACHE_VERSION "1.0.0")
-(def state         (atom {:prev {} :cache {}}))
+(def INDEX_VERSION "1.0.0")
+(def state         (atom {:prev {} :cache {} :index {}}))
+
+(def hash-index-stats
+  "Atom containing the total number of files whose hash was found in the hash
+  index (:hits) and the number of files that had to be hashed (:misses)."
+  (atom {:hits 0 :misses 0}))
 
 ;; records and protocols ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
@@ -63,9 +74,47 @@
 
 ;; helper functions ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
+(def ^:dynamic *hash-algorithm*
+  "The name of the digest algorithm used to compute the content hashes in
+  fileset ids: MD5, SHA-1, XXH64, etc. See boot.from.digest/digester. XXH64
+  is the 64-bit xxHash, a much faster non-cryptographic hash. The ids name the
+  files in the blob store, so the digests must be at least 64 bits long;
+  checksums like CRC32 are refused. Set via the BOOT_FILESET_HASH env var or
+  configuration option. The default is MD5."
+  (or (boot.App/config "BOOT_FILESET_HASH") "MD5"))
+
+(extend-protocol digest/Digester
+  boot.XXHash64
+  (-update-bytes  [d b off len] (.update d ^bytes b (int off) (int len)))
+  (-update-buffer [d buf]       (.update d ^ByteBuffer buf))
+  (-finish        [d]           (format "%016x" (.getValue d)))
+  (-length        [d]           8))
+
+(defmethod digest/digester "XXH64" [_] (boot.XXHash64.))
+
+;; Mapped buffers are only unmapped when they are garbage collected, and
+;; Windows won't delete a file while a region of it is mapped, so files in the
+;; blob store and target dirs are never mapped there.
+(when (boot.App/isWindows)
+  (alter-var-root #'digest/*mmap-threshold* (constantly Long/MAX_VALUE)))
+
+(def ^:private check-hash-algorithm!
+  (memoize
+    (fn [algo]
+      (when (< (digest/digest-length algo) 8)
+        (throw (ex-info (format "%s digests are too short for fileset ids (64 bits or more required)" algo)
+                        {:algorithm algo}))))))
+
+(defn- content-hash
+  [algo f]
+  (check-hash-algorithm! algo)
+  (trace/count! "files hashed" 1)
+  (trace/count! "bytes hashed" (.length ^File f))
+  (digest/digest algo f))
+
 (defn- file-stat
   [^File f]
-  (let [h (digest/md5 f)
+  (let [h (content-hash *hash-algorithm* f)
         t (.lastModified f)]
     {:id (str h "." t) :hash h :time t}))
 
@@ -75,41 +124,209 @@
 
 (def ^:dynamic *hard-link* nil)
 
+(def ^:dynamic *parallelism*
+  "The number of threads used to walk, hash, and store the files of a directory
+  that is added to the fileset. Set via the BOOT_FILESET_PARALLELISM env var or
+  configuration option. The default (1) walks the directory serially."
+  (or (util/guard (Integer/parseInt (boot.App/config "BOOT_FILESET_PARALLELISM"))) 1))
+
 (defn- add-blob!
   [^File blob ^Path src ^String id link]
   (let [blob (.toPath blob)
         out  (.resolve blob id)]
     (when-not (Files/exists out fs/link-opts)
       (if link
-        (Files/createLink out src)
+        (try (Files/createLink out src)
+             (trace/count! "links created" 1)
+             (catch java.nio.file.FileAlreadyExistsException _))
         (let [name (str (.getName out (dec (.getNameCount out))))
               tmp  (Files/createTempFile blob name nil fs/tmp-attrs)]
           (Files/copy src tmp fs/copy-opts)
+          (trace/count! "bytes copied" (Files/size src))
           (Files/move tmp out fs/copy-opts))))))
 
+(def ^:dynamic *commit-parallelism*
+  "The number of threads used to delete and link files when a fileset is
+  committed. Set via the BOOT_FILESET_COMMIT_PARALLELISM env var or
+  configuration option. The default is the number of processors, up to 8."
+  (or (util/guard (Integer/parseInt (boot.App/config "BOOT_FILESET_COMMIT_PARALLELISM")))
+      (min 8 (.availableProcessors (Runtime/getRuntime)))))
+
+;; hash index ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(def ^:private racy-ms
+  "A recorded hash is only reused when the file's mtime is at least this many
+  milliseconds older than the time the hash was computed. Otherwise the file
+  could have been rewritten within the filesystem's mtime granularity without
+  changing its stat, so it is hashed again."
+  2000)
+
+(defn- stat-key
+  [^BasicFileAttributes attr]
+  (str (.size attr) ":" (.toMillis (.lastModifiedTime attr)) ":" (.fileKey attr)))
+
+(defn- ^File hash-index-file
+  [^File dir algo]
+  (-> (boot.App/bootdir)
+      (io/file "cache" "cache" "fileset-index")
+      (io/file INDEX_VERSION algo (str (digest/md5 (.getCanonicalPath dir)) ".properties"))))
+
+(defn- persist-index?
+  "Boot's temp dirs don't outlive the process, so only the hash indexes of
+  other directories are written to disk."
+  [^File dir]
+  (let [tmp (io/file (boot.App/bootdir) "cache" "tmp")]
+    (not (.startsWith (.getCanonicalPath dir) (str (.getCanonicalPath tmp) File/separator)))))
+
+(defn- read-hash-index
+  [^File indexfile]
+  (util/guard
+    (with-open [r (io/input-stream indexfile)]
+      (let [p (doto (Properties.) (.load r))]
+        (-> #(let [[hash seen stat] (.split (.getProperty p %2) " " 3)]
+               (assoc %1 %2 {:hash hash :seen (Long/parseLong seen) :stat stat}))
+            (reduce {} (enumeration-seq (.propertyNames p))))))
+    {}))
+
+(defn- write-hash-index!
+  [^File indexfile index]
+  (let [tmp (doto (io/file (str (.getPath indexfile) "." (java.util.UUID/randomUUID)))
+              io/make-parents)]
+    (with-open [w (io/output-stream tmp)]
+      (let [p (Properties.)]
+        (doseq [[path {:keys [hash seen stat]}] index]
+          (.setProperty p path (str hash " " seen " " stat)))
+        (.store p w nil)))
+    (file/move tmp indexfile)))
+
+(defn- get-hash-index
+  [^File dir algo]
+  (let [k [algo (.getPath dir)]]
+    (or (get-in @state [:index k])
+        (if (persist-index? dir) (read-hash-index (hash-index-file dir algo)) {}))))
+
+(defn- put-hash-index!
+  [^File dir algo old-index new-index]
+  (swap! state assoc-in [:index [algo (.getPath dir)]] new-index)
+  (when (and (persist-index? dir) (not= old-index new-index))
+    (util/guard (write-hash-index! (hash-index-file dir algo) new-index))))
+
+(defn- indexed-hash
+  "Returns the hash index entry for the file at path, reusing the entry in
+  index when the file's size, mtime, and file key are unchanged."
+  [algo index p ^Path path ^BasicFileAttributes attr]
+  (let [stat  (stat-key attr)
+        mtime (.toMillis (.lastModifiedTime attr))
+        {:keys [seen] :as entry} (get index p)]
+    (if (and entry (= stat (:stat entry)) (<= racy-ms (- seen mtime)))
+      entry
+      (let [seen (System/currentTimeMillis)]
+        {:hash (content-hash algo (.toFile path)) :seen seen :stat stat}))))
+
+(defn- visit-file!
+  "Hashes the file at path and adds it to the blob store. Returns a vector of
+  the relative path, the TmpFile, and the hash index entry (when index is
+  given), or nil if the file no longer exists."
+  [m ^Path root ^File blob link algo index ^Path path ^BasicFileAttributes attr]
+  (let [p (str (.relativize root path))]
+    (try (let [e (when index (indexed-hash algo index p path attr))
+               h (if e (:hash e) (content-hash algo (.toFile path)))
+               t (.toMillis (Files/getLastModifiedTime path fs/link-opts))
+               i (str h "." t)]
+           (add-blob! blob path i link)
+           [p (map->TmpFile (assoc m :path p :id i :hash h :time t)) e])
+         (catch java.nio.file.NoSuchFileException _
+           (util/dbug* "Tmpdir: file not found: %s\n" (.toString p))))))
+
 (defn- mkvisitor
-  [^Path root ^File blob tree link]
+  [^Path root ^File blob tree link algo & [index index']]
   (let [m {:dir (.toFile root) :bdir blob}]
     (proxy [SimpleFileVisitor] []
-      (visitFile [^Path path attr]
+      (visitFile [^Path path ^BasicFileAttributes attr]
         (with-let [_ fs/continue]
-          (let [p (str (.relativize root path))]
-            (try (let [h (digest/md5 (.toFile path))
-                       t (.toMillis (Files/getLastModifiedTime path fs/link-opts))
-                       i (str h "." t)]
-                   (add-blob! blob path i link)
-                   (swap! tree assoc p (map->TmpFile (assoc m :path p :id i :hash h :time t))))
-                 (catch java.nio.file.NoSuchFileException _
-                   (util/dbug* "Tmpdir: file not found: %s\n" (.toString p)))))))
+          (when-let [[p tmpf e] (visit-file! m root blob link algo index path attr)]
+            (swap! tree assoc p tmpf)
+            (when e (swap! index' assoc p e)))))
       (visitFileFailed [^Path path ^java.io.IOException e]
         (with-let [_ fs/skip-subtree]
           (util/dbug* "Tmpdir: failed to visit: %s\n" (str (.relativize root path))))))))
 
+(defn- ^BasicFileAttributes read-attrs
+  "Like Files/walkFileTree with FOLLOW_LINKS, falls back to the attributes of
+  the link itself when the link target can't be read."
+  [^Path path]
+  (try (Files/readAttributes path BasicFileAttributes fs/link-opts)
+       (catch IOException _
+         (Files/readAttributes path BasicFileAttributes
+                               ^"[Ljava.nio.file.LinkOption;"
+                               (into-array LinkOption [LinkOption/NOFOLLOW_LINKS])))))
+
+(defn- walk-task
+  "Returns a RecursiveTask that visits the files in dir and forks a subtask
+  for each subdirectory. The task's result is a vector of the tree and hash
+  index maps for the files under dir. The ancestors set contains the file
+  keys of the directories above dir, to avoid following symlink cycles."
+  [^Path root ^Path dir ancestors visit]
+  (proxy [RecursiveTask] []
+    (compute []
+      (let [rel (str (.relativize root dir))
+            step (fn [[tree index tasks] ^Path path]
+                   (let [attr (try (read-attrs path)
+                                   (catch IOException _
+                                     (util/dbug* "Tmpdir: failed to visit: %s\n" (str (.relativize root path)))))
+                         k    (some-> ^BasicFileAttributes attr .fileKey)]
+                     (cond (not attr)
+                           [tree index tasks]
+                           (not (.isDirectory ^BasicFileAttributes attr))
+                           (if-let [[p tmpf e] (visit path attr)]
+                             [(assoc! tree p tmpf) (if e (assoc! index p e) index) tasks]
+                             [tree index tasks])
+                           (and k (contains? ancestors k))
+                           (do (util/dbug* "Tmpdir: failed to visit: %s\n" (str (.relativize root path)))
+                               [tree index tasks])
+                           :else
+                           [tree index (conj tasks (.fork ^ForkJoinTask (walk-task root path (conj ancestors k) visit)))])))
+            join (fn [[tree index] ^ForkJoinTask task]
+                   (let [[tree' index'] (.join task)]
+                     [(reduce-kv assoc! tree tree') (reduce-kv assoc! index index')]))
+            [tree index tasks]
+            (try (with-open [ds (Files/newDirectoryStream dir)]
+                   (reduce step [(transient {}) (transient {}) []] ds))
+                 (catch IOException _
+                   (util/dbug* "Tmpdir: failed to visit: %s\n" rel)
+                   [(transient {}) (transient {}) []]))]
+        (->> (reduce join [tree index] tasks)
+             (mapv persistent!))))))
+
+(defn- walk-parallel!
+  [^Path root ^File blob link algo index]
+  (let [m     {:dir (.toFile root) :bdir blob}
+        visit (partial visit-file! m root blob link algo index)
+        k     (util/guard (.fileKey (read-attrs root)))]
+    (.invoke ^ForkJoinPool (fs/fork-join-pool *parallelism*)
+             ^ForkJoinTask (walk-task root root (if k #{k} #{}) visit))))
+
+(defn- walk-serial!
+  [^Path root ^File blob link algo index]
+  (let [tree   (atom {})
+        index' (atom {})]
+    (file/walk-file-tree root (mkvisitor root blob tree link algo index index'))
+    [@tree @index']))
+
 (defn- dir->tree!
-  [^File dir ^File blob]
-  (let [root (.toPath dir)]
-    @(with-let [tree (atom {})]
-       (file/walk-file-tree root (mkvisitor root blob tree *hard-link*)))))
+  [^File dir ^File blob & {:keys [index]}]
+  (let [root       (.toPath dir)
+        algo       *hash-algorithm*
+        old        (when index (get-hash-index dir algo))
+        walk!      (if (< 1 *parallelism*) walk-parallel! walk-serial!)
+        [tree new] (walk! root blob *hard-link* algo old)]
+    (when index
+      (let [hits   (count (filter (fn [[p e]] (identical? e (get old p))) new))
+            misses (- (count new) hits)]
+        (swap! hash-index-stats #(-> % (update-in [:hits] + hits) (update-in [:misses] + misses)))
+        (util/dbug* "Tmpdir: hash index %s: %d hits, %d misses\n" (.getPath dir) hits misses)
+        (put-hash-index! dir algo old new)))
+    tree))
 
 (defn- ^File cache-dir
   [cache-key]
@@ -126,8 +343,9 @@
   (with-open [r (io/input-stream manifile)]
     (let [p (doto (Properties.) (.load r))]
       (-> #(let [id   (.getProperty p %2)
-                 hash (subs id 0 32)
-                 time (Long/parseLong (subs id 33))
+                 i    (.lastIndexOf ^String id ".")
+                 hash (subs id 0 i)
+                 time (Long/parseLong (subs id (inc i)))
                  m    {:id id :path %2 :hash hash :time time :bdir bdir}]
              (->> m map->TmpFile (assoc %1 %2)))
           (reduce {} (enumeration-seq (.propertyNames p)))))))
@@ -202,25 +420,188 @@
   [key tree]
   (reduce-kv #(assoc %1 (get %3 key) %3) {} tree))
 
-(defn- diff-tree
-  [tree props]
-  (let [->map #(select-keys % props)]
-    (reduce-kv #(assoc %1 %2 (->map %3)) {} tree)))
+;; path index ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+;; The fileset tree is a flat map of path to TmpFile, which tasks are free to
+;; modify directly. Alongside it the fileset operations maintain, in the
+;; fileset's metadata, an index of the same entries as a tree of nodes keyed
+;; by path segment. The index is updated persistently, so subtrees that an
+;; operation didn't touch are the identical objects in the old and new index,
+;; and diffing two indexed filesets only visits the subtrees that changed.
+;; The index is only used when it was built for the fileset's current tree.
+
+(deftype PathNode [leaf children])
+
+(def ^:private nothing (Object.))
+
+(defn- segments
+  [^String path]
+  (.split path "/" -1))
+
+(defn- node-assoc
+  [^PathNode node ^"[Ljava.lang.String;" segs i v]
+  (let [leaf     (if node (.-leaf node) nothing)
+        children (if node (.-children node) {})]
+    (if (= i (alength segs))
+      (PathNode. v children)
+      (let [k (aget segs i)]
+        (->> (node-assoc (get children k) segs (inc i) v)
+             (assoc children k)
+             (PathNode. leaf))))))
+
+(defn- node-dissoc
+  [^PathNode node ^"[Ljava.lang.String;" segs i]
+  (when node
+    (let [leaf     (.-leaf node)
+          children (.-children node)]
+      (if (= i (alength segs))
+        (when (seq children) (PathNode. nothing children))
+        (let [k (aget segs i)]
+          (if-not (contains? children k)
+            node
+            (let [child     (node-dissoc (get children k) segs (inc i))
+                  children' (if child (assoc children k child) (dissoc children k))]
+              (when (or (seq children') (not (identical? nothing leaf)))
+                (PathNode. leaf children')))))))))
+
+(defn- index-assoc
+  [node path v]
+  (node-assoc node (segments path) 0 v))
+
+(defn- index-dissoc
+  [node path]
+  (node-dissoc node (segments path) 0))
+
+(defn- tree->index
+  [tree]
+  (reduce-kv index-assoc nil tree))
+
+(defn- tree-index
+  "Returns the index of the fileset's tree, or nil if it has none that is
+  current. Empty trees don't need one."
+  [fileset]
+  (let [tree (:tree fileset)
+        [t idx] (::index (meta fileset))]
+    (cond (identical? t tree) (or idx ::empty)
+          (empty? tree)       ::empty)))
+
+(defn- index-root
+  "Returns the root node of the index idx (see tree-index)."
+  [idx]
+  (when-not (= ::empty idx) idx))
+
+(defn- with-index
+  "Sets the fileset's tree and the index for it."
+  [fileset tree idx]
+  (-> (assoc fileset :tree tree)
+      (vary-meta assoc ::index [tree (index-root idx)])))
+
+(defn- update-index
+  "Returns the fileset with the tree updated by (f tree), and, when the
+  fileset's index is current, the index updated for the new values at the
+  paths (and for the removal of paths not in the new tree)."
+  [fileset f paths]
+  (let [tree  (f (:tree fileset))
+        idx   (tree-index fileset)
+        idx'  (when idx
+                (reduce #(if-let [[_ v] (find tree %2)]
+                           (index-assoc %1 %2 v)
+                           (index-dissoc %1 %2))
+                        (index-root idx)
+                        paths))]
+    (if idx
+      (with-index fileset tree idx')
+      (assoc fileset :tree tree))))
+
+(defn- index-diff
+  "Reduces f over the paths whose values in the indexes a and b aren't the
+  identical object, calling (f acc path value-in-a value-in-b). Missing
+  values are the nothing sentinel. Identical subtrees are skipped."
+  [f acc prefix ^PathNode a ^PathNode b]
+  (if (identical? a b)
+    acc
+    (let [la  (if a (.-leaf a) nothing)
+          lb  (if b (.-leaf b) nothing)
+          ca  (if a (.-children a) {})
+          cb  (if b (.-children b) {})
+          acc (if (or (nil? prefix) (identical? la lb)) acc (f acc prefix la lb))
+          sub #(if prefix (str prefix "/" %) %)]
+      (if (identical? ca cb)
+        acc
+        (as-> acc acc
+          (reduce-kv #(let [na (get ca %2)]
+                        (if (identical? na %3) %1 (index-diff f %1 (sub %2) na %3)))
+                     acc cb)
+          (reduce-kv #(if (contains? cb %2) %1 (index-diff f %1 (sub %2) %3 nil)) acc ca))))))
+
+(defn- tree-diff
+  "Like index-diff, but for the flat trees a and b."
+  [f acc a b]
+  (let [[acc n] (reduce-kv (fn [[acc n] path vb]
+                             (let [[_ va :as e] (find a path)]
+                               [(if (and e (identical? va vb))
+                                  acc
+                                  (f acc path (if e va nothing) vb))
+                                (if e (inc n) n)]))
+                           [acc 0] b)]
+    (if (= n (count a))
+      acc
+      (reduce-kv #(if (contains? b %2) %1 (f %1 %2 %3 nothing)) acc a))))
+
+(defn- delta-kind
+  "Returns :added, :removed, :changed, or nil for the values va and vb at a
+  path in the before and after trees (the nothing sentinel when there is no
+  value), comparing their props the way clojure.data/diff of the trees would."
+  [props va vb]
+  (cond (identical? nothing va) :added
+        (identical? nothing vb) :removed
+        :else
+        (let [d1 (select-keys va props)
+              d2 (select-keys vb props)]
+          (cond (= d1 d2) nil
+                ;; with the same keys on both sides data/diff always finds
+                ;; differences on both sides, or on one side and in common
+                (every? #(= (contains? d1 %) (contains? d2 %)) props) :changed
+                :else
+                (let [[x y z] (data/diff d1 d2)
+                      x       (or x (not z))
+                      y       (or y (not z))]
+                  (cond (or (and x y) (and (or x y) z)) :changed
+                        x                               :removed
+                        y                               :added))))))
+
+(defn- fileset-delta
+  "Returns a map of the :added, :removed, and :changed paths from the before
+  fileset to the after fileset, each mapped to its TmpFile (in before for
+  removed paths, and in after otherwise). The :touched paths are all of the
+  paths whose TmpFiles aren't the identical object in both."
+  [before after props]
+  (let [step (fn [acc path va vb]
+               (let [acc (update-in acc [:touched] conj! path)]
+                 (if-let [k (delta-kind props va vb)]
+                   (update-in acc [k] assoc! path (if (= :removed k) va vb))
+                   acc)))
+        init {:added (transient {}) :removed (transient {}) :changed (transient {}) :touched (transient [])}
+        i1   (tree-index before)
+        i2   (tree-index after)]
+    (->> (if (and i1 i2)
+           (index-diff step init nil (index-root i1) (index-root i2))
+           (tree-diff step init (:tree before) (:tree after)))
+         (reduce-kv #(assoc %1 %2 (persistent! %3)) {}))))
+
+(defn- delta->diff
+  [after {:keys [added removed changed]}]
+  {:added   (assoc after :tree added)
+   :removed (assoc after :tree removed)
+   :changed (assoc after :tree changed)})
 
 (defn- diff*
-  [{t1 :tree :as before} {t2 :tree :as after} props]
+  [before after props]
   (if-not before
     {:added   (or after {:tree {}})
      :removed (assoc after :tree {})
      :changed (assoc after :tree {})}
-    (let [props   (or (seq props) [:id])
-          d1      (diff-tree t1 props)
-          d2      (diff-tree t2 props)
-          [x y z] (map (comp set keys) (data/diff d1 d2))
-          changed-keys (set/union (set/intersection x y) (set/intersection (set/union x y) z))]
-      {:added   (->> (set/difference y x changed-keys) (select-keys t2) (assoc after :tree))
-       :removed (->> (set/difference x y changed-keys) (select-keys t1) (assoc after :tree))
-       :changed (->> changed-keys                      (select-keys t2) (assoc after :tree))})))
+    (delta->diff after (fileset-delta before after (or (seq props) [:id])))))
 
 (defn- fatal-conflict?
   [^File dest]
@@ -231,6 +612,61 @@
     (not (let [d (.getParentFile dest)]
            (or (.isDirectory d) (.mkdirs d))))))
 
+(defn- index-dir?
+  "True if the path is a directory in the index, ie. some other path in the
+  index starts with path followed by a slash."
+  [^PathNode node path]
+  (let [^"[Ljava.lang.String;" segs (segments path)]
+    (loop [^PathNode node node i 0]
+      (cond (not node)               false
+            (= i (alength segs))     (boolean (seq (.-children node)))
+            :else                    (recur (get (.-children node) (aget segs i)) (inc i))))))
+
+(def ^:private ^"[Ljava.nio.file.CopyOption;" copy-attrs-opts
+  (into-array java.nio.file.CopyOption [StandardCopyOption/REPLACE_EXISTING
+                                        StandardCopyOption/COPY_ATTRIBUTES]))
+
+(defn- link-or-copy!
+  "Hard links dst to src, falling back to copying src when the filesystem
+  can't link them (eg. across filesystems). The JVM can't make copy-on-write
+  clones, so there is no reflink step between the two. A directory at dst
+  that contains only directories is replaced. Returns false if dst is a
+  directory that contains files, true otherwise."
+  [^File src ^File dst]
+  (try (file/hard-link src dst)
+       true
+       (catch DirectoryNotEmptyException _
+         (and (not (fatal-conflict? dst)) (link-or-copy! src dst)))
+       (catch IOException e
+         (util/dbug* "Commit: can't link %s, copying: %s\n" (.getPath dst) (str e))
+         (Files/copy (.toPath src) (.toPath dst) copy-attrs-opts)
+         (trace/count! "bytes copied" (.length src))
+         true)
+       (catch UnsupportedOperationException _
+         (Files/copy (.toPath src) (.toPath dst) copy-attrs-opts)
+         (trace/count! "bytes copied" (.length src))
+         true)))
+
+(defn- mkdirs!
+  "Creates the directory dir and its parents. Returns false if that isn't
+  possible because a file is in the way."
+  [^File dir]
+  (or (.isDirectory dir)
+      (util/guard (do (Files/createDirectories (.toPath dir) fs/tmp-attrs) true))
+      (.isDirectory dir)))
+
+(def ^:private commit-batch-size 256)
+
+(defn- commit-batches
+  "Groups the files into batches of files that are in the same directory.
+  Each batch is a vector of a delay that creates the directory (returning
+  false if it can't be created) and the TmpFiles."
+  [tmpfiles]
+  (for [[^File dir tmpfs] (group-by #(.getParentFile ^File (file %)) tmpfiles)
+        :let [mkdir (delay (mkdirs! dir))]
+        batch (partition-all commit-batch-size tmpfs)]
+    [mkdir batch]))
+
 (defn- add-tree-meta
   [tree meta]
   (if (empty? meta)
@@ -247,31 +683,46 @@
 
   (commit! [this]
     (let [{:keys [dirs tree blob]} this
-          prev (get-in @state [:prev dirs])
-          {:keys [added removed changed]} (diff* prev this [:id :dir])]
+          prev  (get-in @state [:prev dirs])
+          delta (when prev (fileset-delta prev this [:id :dir]))
+          {:keys [added removed changed]}
+          (if delta (delta->diff this delta) (diff* prev this [:id :dir]))
+          this  (cond (tree-index this) this
+                      (and prev (tree-index prev))
+                      (update-index (with-index this (:tree prev) (tree-index prev))
+                                    (constantly tree) (:touched delta))
+                      :else (with-index this tree (tree->index tree)))]
       (util/dbug* "Committing fileset...\n")
-      (doseq [tmpf (set/union (ls removed) (ls changed))
-              :let [prev (get-in prev [:tree (path tmpf)])
-                    exists? (.exists ^File (file prev))
-                    op (if exists? "removing" "no-op")]]
-        (util/trace* "Commit: %-8s %s %s...\n" op (id prev) (path prev))
-        (when exists? (file/delete-file (file prev))))
-      (let [this (loop [this this
-                        [tmpf & tmpfs]
-                        (->> (set/union (ls added) (ls changed))
-                             (sort-by (comp count path) >))]
-                   (or (and (not tmpf) this)
-                       (let [p    (path tmpf)
-                             dst  (file tmpf)
-                             src  (io/file (bdir tmpf) (id tmpf))
-                             err? (fatal-conflict? dst)
-                             this (or (and (not err?) this)
-                                      (update-in this [:tree] dissoc p))]
-                         (if err?
-                           (util/warn "Merge conflict: not adding %s\n" p)
-                           (do (util/trace* "Commit: adding   %s %s...\n" (id tmpf) p)
-                               (file/hard-link src dst)))
-                         (recur this tmpfs))))]
+      (->> (set/union (ls removed) (ls changed))
+           (map #(get-in prev [:tree (path %)]))
+           (partition-all commit-batch-size)
+           (fs/run-batches! *commit-parallelism*
+                            (fn [tmpfs]
+                              (doseq [prev tmpfs]
+                                (let [deleted? (try (Files/deleteIfExists (.toPath ^File (file prev)))
+                                                    (catch Exception err (@file/print-ex err)))]
+                                  (util/trace* "Commit: %-8s %s %s...\n"
+                                               (if deleted? "removing" "no-op") (id prev) (path prev)))))))
+      (let [idx       (index-root (tree-index this))
+            conflicts (ConcurrentLinkedQueue.)
+            conflict! #(.add conflicts (path %))
+            [in-dir files] ((juxt filter remove) #(index-dir? idx (path %))
+                            (set/union (ls added) (ls changed)))
+            _         (doseq [tmpf in-dir] (conflict! tmpf))
+            _         (->> (commit-batches files)
+                           (fs/run-batches! *commit-parallelism*
+                                            (fn [[mkdir tmpfs]]
+                                              (doseq [tmpf tmpfs]
+                                                (let [p   (path tmpf)
+                                                      dst (file tmpf)
+                                                      src (io/file (bdir tmpf) (id tmpf))]
+                                                  (if-not (and @mkdir (link-or-copy! src dst))
+                                                    (conflict! tmpf)
+                                                    (util/trace* "Commit: adding   %s %s...\n" (id tmpf) p)))))))
+            conflicts (sort-by count > conflicts)
+            this      (update-index this #(apply dissoc % conflicts) conflicts)]
+        (doseq [p conflicts]
+          (util/warn "Merge conflict: not adding %s\n" p))
         (with-let [_ this]
           (swap! state assoc-in [:prev dirs] this)
           (util/dbug* "Commit complete.\n")))))
@@ -279,57 +730,65 @@
   (rm [this tmpfiles]
     (let [{:keys [dirs tree blob]} this
           treefiles (set (vals tree))
-          remove?   (->> tmpfiles set (set/difference treefiles) complement)]
-      (assoc this :tree (reduce-kv #(if (remove? %3) %1 (assoc %1 %2 %3)) {} tree))))
+          remove?   (->> tmpfiles set (set/difference treefiles) complement)
+          removed   (reduce-kv #(if (remove? %3) (conj %1 %2) %1) [] tree)]
+      (update-index this #(apply dissoc % removed) removed)))
 
   (add [this dest-dir src-dir opts]
     (assert ((set (map file dirs)) dest-dir)
             (format "dest-dir not in dir set (%s)" dest-dir))
-    (let [{:keys [dirs tree blob scratch]} this
-          {:keys [mergers include exclude meta]} opts
-          ->tree   #(set-dir (dir->tree! % blob) dest-dir)
-          new-tree (-> (->tree src-dir)
-                       (filter-tree include exclude)
-                       (add-tree-meta meta))
-          mrg-tree (when mergers
-                     (->tree (merge-trees! tree new-tree mergers scratch)))]
-      (assoc this :tree (merge-with merge tree new-tree mrg-tree))))
+    (trace/span "add"
+      (let [{:keys [dirs tree blob scratch]} this
+            {:keys [mergers include exclude meta]} opts
+            ->tree   #(set-dir (dir->tree! % blob) dest-dir)
+            new-tree (-> (set-dir (dir->tree! src-dir blob :index true) dest-dir)
+                         (filter-tree include exclude)
+                         (add-tree-meta meta))
+            mrg-tree (when mergers
+                       (->tree (merge-trees! tree new-tree mergers scratch)))]
+        (update-index this #(merge-with merge % new-tree mrg-tree)
+                      (concat (keys new-tree) (keys mrg-tree))))))
 
   (add-cached [this dest-dir cache-key cache-fn opts]
     (assert ((set (map file dirs)) dest-dir)
             (format "dest-dir not in dir set (%s)" dest-dir))
-    (let [{:keys [dirs tree blob scratch]} this
-          {:keys [mergers include exclude meta]} opts
-          new-tree (let [cached (get-cached! cache-key cache-fn scratch)]
-                     (-> (set-dir cached dest-dir)
-                         (filter-tree include exclude)
-                         (add-tree-meta meta)))
-          mrg-tree (when mergers
-                     (let [merged (merge-trees! tree new-tree mergers scratch)]
-                       (set-dir (dir->tree! merged blob) dest-dir)))]
-      (assoc this :tree (merge tree new-tree mrg-tree))))
+    (trace/span "add-cached"
+      (let [{:keys [dirs tree blob scratch]} this
+            {:keys [mergers include exclude meta]} opts
+            new-tree (let [cached (get-cached! cache-key cache-fn scratch)]
+                       (-> (set-dir cached dest-dir)
+                           (filter-tree include exclude)
+                           (add-tree-meta meta)))
+            mrg-tree (when mergers
+                       (let [merged (merge-trees! tree new-tree mergers scratch)]
+                         (set-dir (dir->tree! merged blob) dest-dir)))]
+        (update-index this #(merge % new-tree mrg-tree)
+                      (concat (keys new-tree) (keys mrg-tree))))))
 
   (add-tmp [this dest-dir tmpfiles]
     (assert ((set (map file dirs)) dest-dir)
             (format "dest-dir not in dir set (%s)" dest-dir))
-    (reduce #(assoc-in %1 [:tree (path %2)] (assoc %2 :dir dest-dir)) this tmpfiles))
+    (update-index this
+                  #(reduce (fn [tree tmpf] (assoc tree (path tmpf) (assoc tmpf :dir dest-dir))) % tmpfiles)
+                  (map path tmpfiles)))
 
   (mv [this from-path to-path]
     (if (= from-path to-path)
       this
       (if-let [from (get-in this [:tree from-path])]
-        (update-in this [:tree] #(-> % (assoc to-path (assoc from :path to-path))
-                                     (dissoc from-path)))
+        (update-index this #(-> % (assoc to-path (assoc from :path to-path))
+                                (dissoc from-path))
+                      [from-path to-path])
         (throw (Exception. (format "not in fileset (%s)" from-path))))))
 
   (cp [this src-file dest-tmpfile]
-    (let [hash (digest/md5 src-file)
+    (let [hash (content-hash *hash-algorithm* src-file)
           p'   (path dest-tmpfile)
           d'   (dir dest-tmpfile)]
       (assert ((set (map file dirs)) d')
               (format "dest-dir not in dir set (%s)" d'))
       (add-blob! blob (.toPath src-file) hash *hard-link*)
-      (assoc this :tree (merge tree {p' (assoc dest-tmpfile :id hash)})))))
+      (update-index this #(assoc % p' (assoc dest-tmpfile :id hash)) [p']))))
 
 ;; additional api functions ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
@@ -381,9 +840,95 @@
   [before after & props]
   (:changed (diff* before after props)))
 
+(defn fileset->snapshot
+  "Returns the snapshot (see boot.filesystem/write-snapshot!) of a directory
+  that the fileset was patched to."
+  [fileset]
+  (reduce-kv #(assoc %1 %2 [(hash %3) (time %3)]) {} (:tree fileset)))
+
+(defn snapshot->fileset
+  "Returns a fileset with the paths, hashes, and times of the files in the
+  snapshot, for patching the directory it was taken of."
+  [snapshot]
+  (map->TmpFileSet
+    {:tree (reduce-kv (fn [tree path [hash time]]
+                        (assoc tree path (map->TmpFile {:path path :hash hash :time time})))
+                      {} snapshot)}))
+
+(defn fileset-changes
+  "Returns the changes from the before fileset to the after fileset, to be
+  applied to another fileset with apply-changes: a map of the :dirs of after,
+  the TmpFiles to :put at the paths where they differ from those in before,
+  and the :removed paths."
+  [before after]
+  (let [step (fn [acc path va vb]
+               (cond (identical? nothing vb) (update-in acc [:removed] conj! path)
+                     (= va vb)               acc
+                     :else                   (update-in acc [:put] assoc! path vb)))
+        init {:put (transient {}) :removed (transient [])}
+        i1   (tree-index before)
+        i2   (tree-index after)
+        ret  (if (and i1 i2)
+               (index-diff step init nil (index-root i1) (index-root i2))
+               (tree-diff step init (:tree before) (:tree after)))]
+    {:dirs    (:dirs after)
+     :put     (persistent! (:put ret))
+     :removed (persistent! (:removed ret))}))
+
+(defn apply-changes
+  "Returns the fileset with the changes returned by fileset-changes applied."
+  [fileset {:keys [dirs put removed]}]
+  (-> (assoc fileset :dirs dirs)
+      (update-index #(merge (apply dissoc % removed) put)
+                    (concat removed (keys put)))))
+
 (defn restrict-dirs
   [fileset allowed-dirs]
   (let [dirs    (set allowed-dirs)
         reducer (fn [xs k {:keys [dir] :as v}]
                   (if-not (dirs dir) xs (assoc xs k v)))]
     (update-in fileset [:tree] (partial reduce-kv reducer {}))))
+
+(defn- branch-changes
+  "Returns a map of the paths whose TmpFiles in the branch fileset differ from
+  those in the base fileset it was forked from, to the TmpFile in branch (nil
+  for paths the branch removed)."
+  [base branch]
+  (let [tree (:tree base)]
+    (reduce #(let [v (get-in branch [:tree %2])]
+               (if (= v (get tree %2)) %1 (assoc %1 %2 v)))
+            {} (:touched (fileset-delta base branch [:id])))))
+
+(defn- merge-tmpfiles
+  "Combines the contents of the TmpFiles a and b at path p with the first of
+  the mergers that matches p, returning the merged TmpFile or nil if there is
+  no such merger."
+  [{:keys [blob scratch]} mergers p a b]
+  (when (and a b mergers)
+    (let [tmp (merge-trees! {p a} {p b} mergers scratch)]
+      (when (.exists (io/file tmp p))
+        (merge a b (-> (dir->tree! tmp blob) (set-dir (dir b)) (get p)))))))
+
+(defn merge-branches
+  "Merges the changes that each of the branch filesets made to the base
+  fileset they were forked from into base, returning a new fileset. When
+  branches changed the same path to different contents they are combined by
+  the first of the mergers whose regex matches the path, the way add merges
+  duplicate entries. Otherwise the change in the later branch wins, with a
+  warning unless the :quiet option is true."
+  [base branches & {:keys [mergers quiet]}]
+  (let [merged (reduce (fn [merged changes]
+                         (reduce-kv (fn [merged p v]
+                                      (let [[_ prev :as e] (find merged p)]
+                                        (assoc merged p
+                                               (if (or (not e) (= (some-> prev hash) (some-> v hash)))
+                                                 v
+                                                 (or (merge-tmpfiles base mergers p prev v)
+                                                     (do (when-not quiet
+                                                           (util/warn "Merge conflict: %s was changed by more than one branch\n" p))
+                                                         v))))))
+                                    merged changes))
+                       {} (map (partial branch-changes base) branches))]
+    (update-index base
+                  #(reduce-kv (fn [tree p v] (if v (assoc tree p v) (dissoc tree p))) % merged)
+                  (keys merged))))
@@ -0,0 +1,169 @@
+(ns boot.trace
+  "Build tracing. Set BOOT_TRACE to a file name to record spans around tasks,
+  fileset commits and adds, patches and syncs, pod creation and dependency
+  resolution, and counters of the files hashed, bytes copied and links
+  created. At the end of each build boot prints a summary of them and writes
+  them to that file as Chrome trace events, which can be opened in
+  chrome://tracing or https://ui.perfetto.dev.
+
+  When BOOT_TRACE isn't set the span and count! macros only check a flag.
+  When it is, a span costs one small object, and a count an atomic add."
+  (:require
+   [clojure.java.io :as io]
+   [clojure.string  :as string])
+  (:import
+   [java.io Writer]
+   [java.util.concurrent ConcurrentHashMap ConcurrentLinkedQueue]
+   [java.util.concurrent.atomic AtomicInteger AtomicLong]))
+
+(set! *warn-on-reflection* true)
+
+(def trace-file
+  "The file the trace events are written to, from BOOT_TRACE, or nil when
+  tracing is off."
+  (let [f (boot.App/config "BOOT_TRACE")]
+    (when-not (or (string/blank? f) (= "no" f)) f)))
+
+(def enabled? (boolean trace-file))
+
+(def ^:private max-spans
+  "Spans recorded after this many since the last report are dropped, so a pod
+  that records spans but never reports them can't grow without bound."
+  (bit-shift-left 1 20))
+
+(deftype Span [name ^long tid ^long start ^long dur])
+
+(def ^:private ^ConcurrentLinkedQueue spans    (ConcurrentLinkedQueue.))
+(def ^:private ^AtomicInteger         nspans   (AtomicInteger.))
+(def ^:private ^ConcurrentHashMap     counters (ConcurrentHashMap.))
+(def ^:private ^ConcurrentHashMap     threads  (ConcurrentHashMap.))
+
+(defn add!
+  "Adds n to the counter with the name. Use the count! macro instead."
+  [name ^long n]
+  (let [^AtomicLong c (or (.get counters name)
+                          (let [c (AtomicLong.)] (or (.putIfAbsent counters name c) c)))]
+    (.addAndGet c n)))
+
+(defn record!
+  "Records a span with the name that started at start (System/nanoTime) and
+  ends now, on the current thread. Use the span macro instead."
+  [name ^long start]
+  (let [end (System/nanoTime)
+        t   (Thread/currentThread)
+        tid (.getId t)]
+    (if (< max-spans (.incrementAndGet nspans))
+      (add! "spans dropped" 1)
+      (.add spans (Span. name tid start (- end start))))
+    (when-not (.containsKey threads tid)
+      (.put threads tid (.getName t)))))
+
+(defmacro span
+  "Evaluates body, recording the time it took as a span with the name when
+  tracing is enabled."
+  [name & body]
+  `(if enabled?
+     (let [start# (System/nanoTime)]
+       (try ~@body (finally (record! ~name start#))))
+     (do ~@body)))
+
+(defmacro count!
+  "Adds n to the counter with the name when tracing is enabled. The n form is
+  only evaluated then."
+  [name n]
+  `(when enabled? (add! ~name ~n)))
+
+(defn wrap-task
+  "Returns the task middleware, wrapped so each call of its handler is
+  recorded as a span with the name when tracing is enabled. The span includes
+  the tasks after it in the pipeline; the summary subtracts them."
+  [name middleware]
+  (if-not (and enabled? (fn? middleware))
+    middleware
+    (fn [next-handler]
+      (let [handler (middleware next-handler)]
+        (fn [fileset] (span name (handler fileset)))))))
+
+;; reporting ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(defn- drain!
+  []
+  (.set nspans 0)
+  (loop [ret (transient [])]
+    (if-let [s (.poll spans)] (recur (conj! ret s)) (persistent! ret))))
+
+(defn- self-times
+  "Returns [span self] pairs, where self is the span's duration less the
+  durations of the spans nested directly in it on the same thread."
+  [spans]
+  (mapcat (fn [xs]
+            (let [xs    (vec (sort-by (fn [^Span s] [(.-start s) (- (.-dur s))]) xs))
+                  child (long-array (count xs))]
+              (loop [i 0 stack ()]
+                (when (< i (count xs))
+                  (let [^Span s (xs i)
+                        end     #(let [^Span p (xs %)] (+ (.-start p) (.-dur p)))
+                        stack   (drop-while #(<= (long (end %)) (.-start s)) stack)]
+                    (when-let [p (first stack)]
+                      (aset child (int p) (+ (aget child (int p)) (.-dur s))))
+                    (recur (inc i) (cons i stack)))))
+              (map-indexed (fn [i ^Span s] [s (- (.-dur s) (aget child i))]) xs)))
+          (vals (group-by #(.-tid ^Span %) spans))))
+
+(defn- summary
+  [pairs counts]
+  (let [ms   #(/ % 1e6)
+        rows (->> pairs
+                  (group-by #(.-name ^Span (first %)))
+                  (map (fn [[name xs]]
+                         [name (count xs)
+                          (ms (reduce + (map #(.-dur ^Span (first %)) xs)))
+                          (ms (reduce + (map second xs)))]))
+                  (sort-by #(- (nth % 3))))]
+    (with-out-str
+      (printf "%-36s %8s %12s %12s\n" "Span" "Count" "Total ms" "Self ms")
+      (doseq [[name n total self] rows]
+        (printf "%-36s %8d %12.1f %12.1f\n" name n total self))
+      (when (seq counts)
+        (printf "\n%-36s %8s\n" "Counter" "Value")
+        (doseq [[name n] counts]
+          (printf "%-36s %8d\n" name n))))))
+
+(defn- json-str
+  [s]
+  (str "\"" (-> (str s) (string/replace "\\" "\\\\") (string/replace "\"" "\\\"")) "\""))
+
+(defn- write-events!
+  "Writes the spans, the thread names, and the counters as a Chrome trace
+  event file. Times are in microseconds since the first span."
+  [f spans counts]
+  (let [t0  (if (seq spans) (reduce min (map #(.-start ^Span %) spans)) 0)
+        end (reduce max 0 (map #(+ (.-start ^Span %) (.-dur ^Span %)) spans))
+        us  #(/ (- % t0) 1e3)]
+    (with-open [w (io/writer (io/file f))]
+      (.write w "{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n")
+      (doseq [^Span s spans]
+        (.write w (format "{\"name\":%s,\"cat\":\"boot\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,\"ts\":%.3f,\"dur\":%.3f},\n"
+                          (json-str (.-name s)) (.-tid s) (double (us (.-start s))) (/ (.-dur s) 1e3))))
+      (doseq [[tid name] threads]
+        (.write w (format "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,\"args\":{\"name\":%s}},\n"
+                          tid (json-str name))))
+      (.write w (format "{\"name\":\"counters\",\"ph\":\"C\",\"pid\":1,\"ts\":%.3f,\"args\":{%s}}\n]}\n"
+                        (double (us (max end t0)))
+                        (string/join "," (for [[k v] counts] (str (json-str k) ":" v))))))))
+
+(defn report!
+  "Writes the spans and counters recorded since the last report to the trace
+  file, and resets them. Returns the summary table as a string, or nil when
+  tracing is off or nothing was recorded."
+  []
+  (when enabled?
+    (let [spans  (drain!)
+          counts (into (sorted-map)
+                       (for [[k ^AtomicLong v] counters
+                             :let [n (.getAndSet v 0)]
+                             :when (pos? n)]
+                         [k n]))]
+      (when (or (seq spans) (seq counts))
+        (write-events! trace-file spans counts)
+        (summary (self-times spans) counts)))))
@@ -0,0 +1,199 @@
+(ns boot.transport
+  "Binary encoding of Clojure data for passing values between pods. Values are
+  encoded to byte arrays, so only JDK types cross the pod boundary and pods
+  running different versions of Clojure can exchange data. Values of types
+  without an encoding of their own are printed and read back, like before."
+  (:import
+    [java.io ByteArrayInputStream ByteArrayOutputStream DataInputStream
+             DataOutputStream File]
+    [java.math BigDecimal BigInteger]
+    [java.net URI]
+    [java.nio.charset StandardCharsets]
+    [java.nio.file FileSystems Path Paths]
+    [java.util Date UUID]
+    [java.util.regex Pattern]
+    [clojure.lang BigInt IObj IPersistentMap IPersistentSet IPersistentVector
+                  IRecord Keyword RT Reflector Symbol]))
+
+(set! *warn-on-reflection* true)
+
+;; Tags
+;;
+;;   0  nil           8  vector         16  file
+;;   1  true          9  list/seq       17  path
+;;   2  false        10  map            18  uuid
+;;   3  long         11  set            19  date
+;;   4  double       12  bigint         20  pattern
+;;   5  string       13  bigdec         21  bytes
+;;   6  keyword      14  char           22  metadata, then the value
+;;   7  symbol       15  record         23  printed form (fallback)
+
+(def ^:dynamic *for-eval*
+  "When true, File and Path objects are decoded to forms that construct them,
+  because objects of these types can't be embedded in code passed to eval."
+  nil)
+
+(def ^:private byte-array-class (Class/forName "[B"))
+
+(defn- write-count!
+  "Writes the non-negative int n in 7-bit groups, so counts and lengths below
+  128 take a single byte."
+  [^DataOutputStream out n]
+  (loop [n (long n)]
+    (if (< n 0x80)
+      (.writeByte out (int n))
+      (do (.writeByte out (int (bit-or 0x80 (bit-and n 0x7f))))
+          (recur (bit-shift-right n 7))))))
+
+(defn- read-count
+  [^DataInputStream in]
+  (loop [n 0 shift 0]
+    (let [b (.readUnsignedByte in)
+          n (bit-or n (bit-shift-left (bit-and b 0x7f) shift))]
+      (if (< b 0x80) n (recur n (+ shift 7))))))
+
+(defn- write-string!
+  [^DataOutputStream out ^String s]
+  (let [b (.getBytes s StandardCharsets/UTF_8)]
+    (write-count! out (alength b))
+    (.write out b)))
+
+(defn- read-string*
+  [^DataInputStream in]
+  (let [b (byte-array (read-count in))]
+    (.readFully in b)
+    (String. b StandardCharsets/UTF_8)))
+
+(defn- write-name!
+  [^DataOutputStream out ns nm]
+  (.writeBoolean out (boolean ns))
+  (when ns (write-string! out ns))
+  (write-string! out nm))
+
+(defn- read-name
+  [^DataInputStream in f]
+  (let [ns (when (.readBoolean in) (read-string* in))]
+    (f ns (read-string* in))))
+
+(defn- default-path?
+  [^Path p]
+  (identical? (.getFileSystem p) (FileSystems/getDefault)))
+
+(declare encode!)
+
+(defn- encode-coll!
+  [^DataOutputStream out tag xs]
+  (.writeByte out (int tag))
+  (write-count! out (count xs))
+  (doseq [x xs] (encode! out x)))
+
+(defn- encode!
+  [^DataOutputStream out x]
+  (when (and *print-meta* (instance? IObj x) (meta x))
+    (.writeByte out 22)
+    (encode! out (meta x)))
+  (cond (nil? x)                       (.writeByte out 0)
+        (instance? Boolean x)          (.writeByte out (if x 1 2))
+        (instance? String x)           (do (.writeByte out 5) (write-string! out x))
+        (instance? Keyword x)          (do (.writeByte out 6) (write-name! out (namespace x) (name x)))
+        (instance? Symbol x)           (do (.writeByte out 7) (write-name! out (namespace x) (name x)))
+        (or (instance? Long x)
+            (instance? Integer x)
+            (instance? Short x)
+            (instance? Byte x))        (do (.writeByte out 3) (.writeLong out (long x)))
+        (or (instance? Double x)
+            (instance? Float x))       (do (.writeByte out 4) (.writeDouble out (double x)))
+        (instance? IRecord x)          (do (.writeByte out 15)
+                                           (write-string! out (.getName (class x)))
+                                           (encode! out (into {} x)))
+        (instance? IPersistentVector x) (encode-coll! out 8 x)
+        (instance? IPersistentMap x)   (do (.writeByte out 10)
+                                           (write-count! out (count x))
+                                           (doseq [[k v] x] (encode! out k) (encode! out v)))
+        (instance? IPersistentSet x)   (encode-coll! out 11 x)
+        (sequential? x)                (encode-coll! out 9 x)
+        (instance? Character x)        (do (.writeByte out 14) (.writeChar out (int (.charValue ^Character x))))
+        (or (instance? BigInt x)
+            (instance? BigInteger x))  (do (.writeByte out 12) (write-string! out (str x)))
+        (instance? BigDecimal x)       (do (.writeByte out 13) (write-string! out (str x)))
+        (instance? File x)             (do (.writeByte out 16) (write-string! out (.getPath ^File x)))
+        (and (instance? Path x)
+             (default-path? x))        (do (.writeByte out 17) (write-string! out (str x)))
+        (instance? UUID x)             (do (.writeByte out 18)
+                                           (.writeLong out (.getMostSignificantBits ^UUID x))
+                                           (.writeLong out (.getLeastSignificantBits ^UUID x)))
+        (instance? Date x)             (do (.writeByte out 19) (.writeLong out (.getTime ^Date x)))
+        (instance? Pattern x)          (do (.writeByte out 20) (write-string! out (.pattern ^Pattern x)))
+        (instance? byte-array-class x) (do (.writeByte out 21)
+                                           (write-count! out (alength ^bytes x))
+                                           (.write out ^bytes x))
+        :else                          (do (.writeByte out 23) (write-string! out (pr-str x)))))
+
+(defn- decode-record
+  [class-name m]
+  (if-let [c (try (RT/classForName class-name) (catch Throwable _))]
+    (Reflector/invokeStaticMethod ^Class c "create" (object-array [m]))
+    m))
+
+(defn- decode*
+  [^DataInputStream in]
+  (let [tag (.readByte in)]
+    (case tag
+      0  nil
+      1  true
+      2  false
+      3  (.readLong in)
+      4  (.readDouble in)
+      5  (read-string* in)
+      6  (read-name in keyword)
+      7  (read-name in symbol)
+      8  (let [n (read-count in)]
+           (loop [i 0 v (transient [])]
+             (if (< i n) (recur (inc i) (conj! v (decode* in))) (persistent! v))))
+      9  (let [n (read-count in)]
+           (loop [i 0 v (transient [])]
+             (if (< i n) (recur (inc i) (conj! v (decode* in))) (into () (rseq (persistent! v))))))
+      10 (let [n (read-count in)]
+           (loop [i 0 m (transient {})]
+             (if (< i n) (recur (inc i) (assoc! m (decode* in) (decode* in))) (persistent! m))))
+      11 (let [n (read-count in)]
+           (loop [i 0 s (transient #{})]
+             (if (< i n) (recur (inc i) (conj! s (decode* in))) (persistent! s))))
+      12 (bigint (BigInteger. ^String (read-string* in)))
+      13 (BigDecimal. ^String (read-string* in))
+      14 (.readChar in)
+      15 (let [c (read-string* in)] (decode-record c (decode* in)))
+      16 (let [p (read-string* in)]
+           (if *for-eval* (list 'java.io.File. p) (File. ^String p)))
+      17 (let [p (read-string* in)]
+           (if *for-eval*
+             (list 'java.nio.file.Paths/get p '(clojure.core/make-array java.lang.String 0))
+             (Paths/get p (make-array String 0))))
+      18 (UUID. (.readLong in) (.readLong in))
+      19 (Date. (.readLong in))
+      20 (re-pattern (read-string* in))
+      21 (let [b (byte-array (read-count in))] (.readFully in b) b)
+      22 (let [m (decode* in)] (with-meta (decode* in) m))
+      23 (read-string (read-string* in)))))
+
+(defn encode
+  "Returns a byte array encoding x. Metadata is encoded when *print-meta* is
+  bound to true."
+  [x]
+  (let [bytes (ByteArrayOutputStream. 1024)]
+    (with-open [out (DataOutputStream. bytes)]
+      (encode! out x))
+    (.toByteArray bytes)))
+
+(defn decode
+  "Returns the value encoded in the byte array b. If the :for-eval option is
+  true the value is decoded as a form to be passed to eval."
+  [b & {:keys [for-eval]}]
+  (binding [*for-eval* for-eval]
+    (with-open [in (DataInputStream. (ByteArrayInputStream. ^bytes b))]
+      (decode* in))))
+
+(defn encoded?
+  "Returns true if x is a byte array, i.e. a value produced by encode."
+  [x]
+  (instance? byte-array-class x))
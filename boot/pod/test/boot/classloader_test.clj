@@ -0,0 +1,54 @@
+(ns boot.classloader-test
+  (:require
+    [clojure.test    :refer :all]
+    [clojure.java.io :as io]
+    [boot.jar        :as jar])
+  (:import
+    [java.io File]
+    [java.net URL]))
+
+(defn- tempdir []
+  (doto (File/createTempFile "boot-classloader-test" "")
+    .delete .mkdirs))
+
+(defn- make-jar
+  [dir name paths]
+  (let [jarfile (io/file dir name)]
+    (jar/spit-jar! jarfile (for [p paths :let [f (io/file dir "src" name p)]]
+                             (do (io/make-parents f) (spit f p) [p (.getPath f)]))
+                   {} nil)
+    jarfile))
+
+(defn- url [^File f] (.toURL (.toURI f)))
+
+(deftest indexed-lookup-test
+  (let [dir   (tempdir)
+        a     (make-jar dir "a.jar" ["x/a.clj" "x/shared.txt" "y/z/b.class"])
+        b     (make-jar dir "b.jar" ["x/shared.txt" "x/b.clj" "c.txt"])
+        c     (make-jar dir "c.jar" ["later/c.clj"])
+        d     (doto (io/file dir "classes" "x" "d.clj") io/make-parents (spit "d"))
+        urls  [(url a) (url (io/file dir "classes")) (url b)]
+        names ["x/a.clj" "x/shared.txt" "x/b.clj" "x/d.clj" "c.txt" "y/z/b.class"
+               "x/" "x" "y/z/" "META-INF/MANIFEST.MF" "later/c.clj"
+               "x/missing.clj" "missing/x.clj" "missing" "y/z/b"]
+        plain (boot.AddableClassLoader. (into-array URL urls) nil false)
+        index (boot.AddableClassLoader. (into-array URL urls) nil true)
+        same? (fn [name]
+                (and (= (str (.getResource plain name)) (str (.getResource index name)))
+                     (= (map str (enumeration-seq (.getResources plain name)))
+                        (map str (enumeration-seq (.getResources index name))))))]
+    (testing "lookups agree with a linear search"
+      (doseq [name names]
+        (is (same? name) name)))
+    (testing "added jars are indexed"
+      (is (nil? (.getResource index "later/c.clj")))
+      (.addURL index (url c))
+      (.addURL plain (url c))
+      (is (= "later/c.clj" (slurp (.getResource index "later/c.clj"))))
+      (doseq [name names]
+        (is (same? name) name)))
+    (testing "directories are checked on each lookup"
+      (spit (io/file dir "classes" "x" "new.clj") "new")
+      (is (= "new" (slurp (.getResource index "x/new.clj")))))
+    (testing "missing classes"
+      (is (thrown? ClassNotFoundException (.loadClass index "missing.Foo"))))))
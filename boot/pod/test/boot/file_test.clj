@@ -41,3 +41,37 @@
       (is (match-filter? filters (io/file "META-INF" "MANIFEST.MF"))))
     (testing "Sanity check for failure"
       (is (not (match-filter? filters (io/file "META-INF" "MANIFEST.NO")))))))
+
+(deftest relative-paths-test
+  (is (= #{"a/b.txt" "c.txt" ""}
+         (relative-paths ["/foo/src" "/foo/res"]
+                         ["/foo/src/a/b.txt" "/foo/res/c.txt" "/foo/src" "/bar/d.txt"]))))
+
+(deftest watcher!-test
+  (let [tmp     (tmpdir (io/file (System/getProperty "java.io.tmpdir")) "boot-watcher")
+        a       (doto (io/file tmp "a") .mkdirs)
+        b       (doto (io/file tmp "b") .mkdirs)
+        spit*   #(spit (doto (apply io/file %1) io/make-parents) %2)
+        summary (partial map (juxt first second))
+        watcher (watcher! :time a b)]
+    (spit* [a "x" "1.txt"] "1")
+    (spit* [a "x" "2.txt"] "2")
+    (spit* [b "y.txt"] "y")
+    (testing "first scan is a full scan"
+      (is (= #{[:cp "x/1.txt"] [:cp "x/2.txt"] [:cp "y.txt"]}
+             (set (summary (watcher #{"y.txt"}))))))
+    (testing "only the given paths are rescanned"
+      (spit* [a "x" "3.txt"] "3")
+      (delete-file (io/file a "x" "1.txt"))
+      (spit* [b "z.txt"] "z")
+      (is (= #{[:cp "x/3.txt"] [:rm "x/1.txt"]}
+             (set (summary (watcher #{"x"})))))
+      (is (= [[:cp "z.txt"]] (summary (watcher #{"z.txt"})))))
+    (testing "deleted directories are removed"
+      (delete-all (io/file a "x"))
+      (.delete (io/file a "x"))
+      (is (= #{[:rm "x/2.txt"] [:rm "x/3.txt"]}
+             (set (summary (watcher #{"x"}))))))
+    (testing "no paths means a full rescan"
+      (spit* [a "w.txt"] "w")
+      (is (= [[:cp "w.txt"]] (summary (watcher)))))))
@@ -0,0 +1,88 @@
+(ns boot.filesystem-test
+  (:require
+    [clojure.test    :refer :all]
+    [clojure.java.io :as io]
+    [boot.filesystem :as fs]
+    [boot.tmpdir     :as tmpd])
+  (:import
+    [java.io File]))
+
+(defn- tempdir []
+  (doto (File/createTempFile "boot-filesystem-test" "")
+    .delete .mkdirs))
+
+(defn- files [dir]
+  (->> (file-seq (io/file dir))
+       (filter #(.isFile ^File %))
+       (map #(vector (str (.relativize (.toPath (io/file dir)) (.toPath ^File %))) (slurp %)))
+       (into {})))
+
+(defn- ops [result]
+  (::fs/ops (meta result)))
+
+(deftest patch-snapshot-test
+  (let [src  (tempdir)
+        dest (tempdir)
+        _    (doseq [i (range 600)]
+               (doto (io/file src (str "d" (mod i 7)) (str "e" (mod i 3)) (str "f" i ".txt"))
+                 io/make-parents
+                 (spit (str i))))
+        sync (fn [before]
+               (fs/patch! (fs/->path dest) before (fs/mktree (fs/->path src))
+                          :link :all :parallelism 4))]
+    (testing "files are written concurrently"
+      (let [result (sync (fs/mktree (fs/->path dest)))]
+        (is (= 600 (ops result)))
+        (is (= (files src) (files dest)))
+        (fs/write-snapshot! dest (fs/tree->snapshot result))))
+    (testing "the snapshot replaces a scan"
+      (let [saved (fs/read-snapshot dest)]
+        (is (= 600 (count saved)))
+        (is (= 0 (ops (sync (fs/snapshot->tree dest saved)))))))
+    (testing "only changes are applied"
+      (io/delete-file (io/file src "d1" "e1" "f1.txt"))
+      ;; replaced rather than rewritten, since dest has hard links to src
+      (doto (io/file src "d2" "e2" "f2.txt")
+        (io/delete-file)
+        (spit "changed")
+        (.setLastModified 1000))
+      (let [result (sync (fs/snapshot->tree dest (fs/read-snapshot dest)))]
+        (is (= 2 (ops result)))
+        (is (= (files src) (files dest)))
+        (fs/write-snapshot! dest (fs/tree->snapshot result))))
+    (testing "changes by something else invalidate the snapshot"
+      (is (fs/read-snapshot dest))
+      (doto (io/file dest "d4" "e1" "f4.txt")
+        (io/delete-file)
+        (spit "edited")
+        (.setLastModified 2000))
+      (is (nil? (fs/read-snapshot dest)))
+      (is (= 1 (ops (sync (fs/mktree (fs/->path dest))))))
+      (fs/write-snapshot! dest (fs/tree->snapshot (fs/mktree (fs/->path dest))))
+      (is (fs/read-snapshot dest))
+      (spit (io/file dest "d3" "new.txt") "new")
+      (is (nil? (fs/read-snapshot dest)))
+      (is (= 1 (ops (sync (fs/mktree (fs/->path dest))))))
+      (is (= (files src) (files dest))))))
+
+(deftest fileset-snapshot-test
+  (let [dir   (tempdir)
+        src   (tempdir)
+        dest  (tempdir)
+        make  #(tmpd/commit! (tmpd/add (tmpd/map->TmpFileSet {:dirs    [(tmpd/map->TmpDir {:dir dir :output true})]
+                                                            :tree    {}
+                                                            :blob    (tempdir)
+                                                            :scratch (tempdir)})
+                                       dir src {}))
+        _     (doseq [i (range 20)] (spit (doto (io/file src "a" (str i ".txt")) io/make-parents) (str i)))
+        fs1   (make)]
+    (testing "snapshots of filesets round trip"
+      (is (= (tmpd/fileset->snapshot fs1)
+             (tmpd/fileset->snapshot (tmpd/snapshot->fileset (tmpd/fileset->snapshot fs1))))))
+    (is (= 20 (ops (fs/patch! (fs/->path dest) nil fs1))))
+    (fs/write-snapshot! dest (tmpd/fileset->snapshot fs1))
+    (testing "a fileset is patched from the snapshot of an earlier one"
+      (spit (io/file src "a" "3.txt") "changed")
+      (let [before (tmpd/snapshot->fileset (fs/read-snapshot dest))]
+        (is (= 1 (ops (fs/patch! (fs/->path dest) before (make) :parallelism 2))))
+        (is (= (files src) (files dest)))))))
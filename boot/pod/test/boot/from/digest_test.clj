@@ -0,0 +1,42 @@
+(ns boot.from.digest-test
+  (:require
+    [clojure.test     :refer :all]
+    [clojure.java.io  :as io]
+    [boot.from.digest :as digest]))
+
+(defn- temp-file
+  [size]
+  (let [f (doto (java.io.File/createTempFile "boot-digest" ".bin") .deleteOnExit)
+        r (java.util.Random. size)]
+    (with-open [out (io/output-stream f)]
+      (.write out (doto (byte-array size) (->> (.nextBytes r)))))
+    f))
+
+(deftest file-digest-test
+  (doseq [size [0 1 1023 (* 64 1024) (inc (* 64 1024)) (* 300 1024)]]
+    (let [f (temp-file size)
+          b (java.nio.file.Files/readAllBytes (.toPath f))]
+      (testing (format "%d byte file" size)
+        (testing "buffered"
+          (is (= (digest/md5 b) (digest/md5 f)))
+          (is (= (digest/md5 b) (with-open [in (io/input-stream f)] (digest/md5 in)))))
+        (testing "memory-mapped"
+          (binding [digest/*mmap-threshold* 0]
+            (is (= (digest/sha-256 b) (digest/sha-256 f)))))
+        (testing "small buffer"
+          (binding [digest/*buffer-size* 100]
+            (is (= (digest/md5 b) (digest/md5 f)))))))))
+
+(deftest pluggable-digester-test
+  (testing "checksums"
+    (is (= "3610a686" (digest/digest "CRC32" "hello")))
+    (is (= "062c0215" (digest/digest "adler32" "hello")))
+    (let [f (temp-file 100000)]
+      (is (= (digest/digest "CRC32" (java.nio.file.Files/readAllBytes (.toPath f)))
+             (digest/digest "CRC32" f)
+             (binding [digest/*mmap-threshold* 0] (digest/digest "CRC32" f))))))
+  (testing "message digests"
+    (is (= "5d41402abc4b2a76b9719d911017c592" (digest/digest "MD5" "hello"))))
+  (testing "digest lengths"
+    (is (= 4 (digest/digest-length "CRC32")))
+    (is (= 16 (digest/digest-length "MD5")))))
@@ -0,0 +1,159 @@
+(ns boot.jar-test
+  (:require
+    [clojure.test    :refer :all]
+    [clojure.java.io :as io]
+    [boot.jar        :as jar]
+    [boot.pod        :as pod])
+  (:import
+    [java.io File]
+    [java.util.jar JarFile JarInputStream]
+    [java.util.zip ZipEntry ZipFile]))
+
+(defn- tempdir []
+  (doto (File/createTempFile "boot-jar-test" "")
+    .delete .mkdirs))
+
+(defn- spit-files
+  "Writes files under dir for the map of paths to contents, returns the
+  [path srcpath] pairs."
+  [dir m]
+  (for [[path content] m :let [f (io/file dir path)]]
+    (do (io/make-parents f)
+        (spit f content)
+        [path (.getPath f)])))
+
+(defn- entries [f]
+  (with-open [z (ZipFile. (io/file f))]
+    (->> (enumeration-seq (.entries z))
+         (mapv (fn [^ZipEntry e]
+                 {:name   (.getName e)
+                  :method (.getMethod e)
+                  :data   (when-not (.isDirectory e)
+                            (slurp (.getInputStream z e)))})))))
+
+(def ^:private contents
+  {"a/b/c.txt" (apply str (repeat 1000 "compressible "))
+   "a/d.txt"   "x"
+   "e.clj"     "(ns e)"})
+
+(deftest spit-jar-test
+  (let [dir   (tempdir)
+        files (spit-files (io/file dir "src") contents)
+        out   (io/file dir "out.jar")]
+    (jar/spit-jar! out files {"Built-By" "test"} 'foo.core-main)
+    (testing "manifest is the first entry"
+      (with-open [in (JarInputStream. (io/input-stream out))]
+        (is (= "foo.core_main" (.getValue (.getMainAttributes (.getManifest in)) "Main-Class")))
+        (is (= "test" (.getValue (.getMainAttributes (.getManifest in)) "Built-By")))))
+    (testing "entries and parent directories"
+      (let [es (entries out)]
+        (is (= ["META-INF/MANIFEST.MF" "a/" "a/b/" "a/b/c.txt" "a/d.txt" "e.clj"]
+               (map :name es)))
+        (is (= contents (into {} (for [e es :when (contains? contents (:name e))]
+                                   [(:name e) (:data e)]))))))
+    (testing "entries are deflated unless that makes them larger"
+      (let [m (into {} (map (juxt :name :method) (entries out)))]
+        (is (= ZipEntry/DEFLATED (m "a/b/c.txt")))
+        (is (= ZipEntry/STORED (m "a/d.txt")))))
+    (testing "stored"
+      (jar/spit-jar! out files {} nil :stored true)
+      (is (every? #(= ZipEntry/STORED (:method %)) (entries out)))
+      (is (= contents (into {} (for [e (entries out) :when (contains? contents (:name e))]
+                                 [(:name e) (:data e)])))))
+    (testing "single threaded with a level"
+      (binding [jar/*parallelism* 1]
+        (jar/spit-jar! out files {} nil :level 9))
+      (with-open [j (JarFile. out)]
+        (is (= (contents "e.clj") (slurp (.getInputStream j (.getEntry j "e.clj")))))))))
+
+(deftest spit-zip-test
+  (let [dir   (tempdir)
+        files (spit-files (io/file dir "src") contents)
+        out   (io/file dir "out.zip")]
+    (testing "duplicates are skipped"
+      (let [err (with-out-str
+                  (binding [*err* *out*]
+                    (jar/spit-zip! out (concat files [["e.clj" (second (first files))]]))))]
+        (is (re-find #"duplicate entry: e.clj" err))
+        (is (= (contents "e.clj")
+               (:data (first (filter #(= "e.clj" (:name %)) (entries out))))))
+        (is (= (sort (keys contents)) (sort (map :name (entries out)))))))
+    (testing "large entries"
+      (let [big (io/file dir "big")
+            s   (apply str (repeatedly (* 2 1024 1024) #(rand-nth "ab")))]
+        (spit big s)
+        (doseq [opts [[] [:stored true]]]
+          (apply jar/spit-zip! out [["big" (.getPath big)]] opts)
+          (is (= s (:data (first (entries out))))))
+        (testing "temp files are deleted when the write fails"
+          (is (thrown? Exception
+                       (jar/spit-zip! out (concat (for [i (range 8)] [(str "big" i) (.getPath big)])
+                                                  [["missing" (.getPath (io/file dir "missing"))]]))))
+          (is (empty? (filter #(re-find #"\.(deflated|tmp)$" (.getName ^File %)) (.listFiles dir)))))))))
+
+(deftest zip64-test
+  (let [dir (tempdir)
+        f   (io/file dir "x")
+        out (io/file dir "many.zip")
+        n   70000]
+    (spit f "x")
+    (jar/spit-zip! out (for [i (range n)] [(str "f" i) (.getPath f)]))
+    (with-open [z (ZipFile. out)]
+      (is (= n (.size z)))
+      (is (= "x" (slurp (.getInputStream z (.getEntry z "f69999"))))))
+    (testing "zip64 files as sources"
+      (is (= n (count (#'jar/zip-entries out))))
+      (jar/spit-zip! out [] :sources (jar/sources (jar/add-source {} out)))
+      (with-open [z (ZipFile. out)]
+        (is (= n (.size z)))))))
+
+(deftest source-test
+  (let [dir  (tempdir)
+        src  (io/file dir "src")
+        a    (io/file dir "a.jar")
+        b    (io/file dir "b.jar")
+        out  (io/file dir "out.jar")
+        data (fn [f] (into {} (for [e (entries f) :when (:data e)] [(:name e) (:data e)])))]
+    (jar/spit-jar! a (spit-files (io/file src "a")
+                                 {"x/a.clj"                  (apply str (repeat 100 "(a)"))
+                                  "data_readers.clj"         "{a/x a/x}"
+                                  "META-INF/services/foo.Svc" "a.Svc"
+                                  "META-INF/a.SF"            "sig"
+                                  "same.txt"                 "from a"})
+                   {} nil)
+    (jar/spit-jar! b (doall (for [[_ srcpath :as f] (spit-files (io/file src "b")
+                                                                {"y/b.txt"                  "b"
+                                                                 "data_readers.clj"         "{b/y b/y}"
+                                                                 "META-INF/services/foo.Svc" "b.Svc"
+                                                                 "same.txt"                 "from b"
+                                                                 "skip/me.txt"              "skipped"})]
+                              (do (.setLastModified (io/file srcpath) 1000000000000) f)))
+                   {} nil :stored true)
+    (let [fs (reduce #(jar/add-source %1 %2
+                                      :exclude (conj pod/standard-jar-exclusions #"^skip/")
+                                      :mergers pod/standard-jar-mergers)
+                     {} [a b a])]
+      (testing "jars are added once, in the order of their last addition"
+        (is (= [b a] (map :jar (jar/sources fs)))))
+      (testing "entries are copied, filtered, and merged"
+        (jar/spit-jar! out (spit-files (io/file src "p") {"same.txt" "from project"})
+                       {} nil :sources (jar/sources fs))
+        (let [m (data out)]
+          (is (= (apply str (repeat 100 "(a)")) (m "x/a.clj")))
+          (is (= "b" (m "y/b.txt")))
+          (is (= "from project" (m "same.txt")))
+          (is (= '{b/y b/y a/x a/x} (read-string (m "data_readers.clj"))))
+          (is (= "b.Svc\na.Svc" (m "META-INF/services/foo.Svc")))
+          (is (not-any? #(contains? m %) ["META-INF/a.SF" "skip/me.txt"]))
+          (is (some #{"x/" "y/"} (map :name (entries out))))))
+      (testing "merged entries keep the time of the first entry"
+        (let [time #(with-open [z (ZipFile. (io/file %1))] (.getTime (.getEntry z ^String %2)))]
+          (doseq [path ["data_readers.clj" "META-INF/services/foo.Svc"]]
+            (is (= (time b path) (time out path))))))
+      (testing "compressed data is copied as it is"
+        (let [methods #(into {} (map (juxt :name :method) (entries %)))]
+          (is (= ZipEntry/DEFLATED ((methods out) "x/a.clj")))
+          (is (= ZipEntry/STORED ((methods out) "y/b.txt")))))
+      (testing "renamed entries in a zip"
+        (jar/spit-zip! out [] :sources (jar/sources fs) :rename #(str "WEB-INF/classes/" %))
+        (is (= "b" ((data out) "WEB-INF/classes/y/b.txt")))))))
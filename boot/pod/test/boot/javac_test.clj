@@ -0,0 +1,82 @@
+(ns boot.javac-test
+  (:require
+    [clojure.test    :refer :all]
+    [clojure.java.io :as io]
+    [boot.javac      :as javac])
+  (:import
+    [java.io File]
+    [javax.tools ToolProvider]))
+
+(defn- tempdir []
+  (doto (File/createTempFile "boot-javac-test" "")
+    .delete .mkdirs))
+
+(deftest incremental-compile-test
+  (let [dir      (tempdir)
+        out      (io/file dir "classes")
+        compiler (ToolProvider/getSystemJavaCompiler)
+        file-mgr (.getStandardFileManager compiler nil nil nil)
+        files    (atom {})
+        state    (atom nil)
+        put!     (fn [path src]
+                   (let [f (io/file dir "src" path)]
+                     (io/make-parents f)
+                     (spit f src)
+                     (swap! files assoc path {:file f :hash src})))
+        compile! (fn []
+                   (let [ret (javac/compile! compiler file-mgr out @files @state
+                                             :options ["-nowarn"]
+                                             :classpath "")]
+                     (reset! state (:state ret))
+                     (:compiled ret)))
+        class?   #(.exists (io/file out (str % ".class")))]
+    (put! "a/A.java" "package a; public class A { public int f() { return 1; } }")
+    (put! "a/B.java" "package a; public class B { int g() { return new A().f(); } }")
+    (put! "c/C.java" "package c; public class C { Runnable r = new Runnable() { public void run() {} }; }")
+    (put! "k/K.java" "package k; public class K { public static final int N = 1; }")
+    (put! "k/D.java" "package k; public class D { int n() { return K.N; } }")
+    (testing "the first build compiles everything"
+      (is (= 5 (compile!)))
+      (is (every? class? ["a/A" "a/B" "c/C" "c/C$1" "k/K" "k/D"])))
+    (testing "nothing changed"
+      (is (= 0 (compile!))))
+    (testing "a change to a method body recompiles only its source"
+      (put! "a/A.java" "package a; public class A { public int f() { return 2; } }")
+      (is (= 1 (compile!))))
+    (testing "an ABI change recompiles the sources that refer to the class"
+      (put! "a/A.java" "package a; public class A { public int f() { return 2; } public void h() { } }")
+      (is (= 2 (compile!))))
+    (testing "classes of changed and removed sources are deleted"
+      (put! "c/C.java" "package c; public class C { }")
+      (is (= 1 (compile!)))
+      (is (not (class? "c/C$1")))
+      (swap! files dissoc "c/C.java")
+      (is (= 0 (compile!)))
+      (is (not (class? "c/C"))))
+    (testing "a changed constant recompiles everything"
+      (put! "k/K.java" "package k; public class K { public static final int N = 2; }")
+      (is (= 4 (compile!))))
+    (testing "the state is saved and read back"
+      (let [f (io/file dir "state.edn")]
+        (javac/write-state! f @state)
+        (reset! state (javac/read-state f))
+        (is (= 0 (compile!)))))
+    (testing "a failed build forgets the state"
+      (put! "a/B.java" "package a; public class B { int g() { return new A().x(); } }")
+      (compile!)
+      (is (nil? @state))
+      (put! "a/B.java" "package a; public class B { int g() { return new A().f(); } }")
+      (is (= 4 (compile!))))))
+
+(deftest with-lock-test
+  (let [dir    (tempdir)
+        inside (atom 0)
+        most   (atom 0)
+        run    #(javac/with-lock* dir
+                  (fn []
+                    (swap! most max (swap! inside inc))
+                    (Thread/sleep 20)
+                    (swap! inside dec)))]
+    (dorun (map deref (doall (repeatedly 4 #(future (run))))))
+    (is (= 1 @most))
+    (is (.exists (io/file dir "lock")))))
@@ -0,0 +1,78 @@
+(ns boot.memo-test
+  (:require
+    [clojure.test    :refer :all]
+    [clojure.java.io :as io]
+    [clojure.string  :as string]
+    [boot.memo       :as memo]
+    [boot.tmpdir     :as tmpd])
+  (:import
+    [java.io File]))
+
+(defn- tempdir []
+  (doto (File/createTempFile "boot-memo-test" "")
+    .delete .mkdirs))
+
+(deftest memoized-task-test
+  (let [src     (tempdir)
+        in      (tempdir)
+        out     (tempdir)
+        blob    (tempdir)
+        runs    (atom 0)
+        fileset #(tmpd/add (tmpd/map->TmpFileSet {:dirs    [(tmpd/map->TmpDir {:dir in :input true})
+                                                            (tmpd/map->TmpDir {:dir out :output true})]
+                                                  :tree    {}
+                                                  :blob    blob
+                                                  :scratch (tempdir)})
+                           in src {})
+        ;; upper-cases the .txt files into out and removes the .tmp files
+        upcase  (fn [next-handler]
+                  (fn [fs]
+                    (swap! runs inc)
+                    (let [tmp (tempdir)]
+                      (doseq [[p f] (:tree fs) :when (.endsWith ^String p ".txt")]
+                        (spit (doto (io/file tmp (string/replace p #"txt$" "TXT")) io/make-parents)
+                              (string/upper-case (slurp (tmpd/file f)))))
+                      (next-handler (-> (tmpd/add fs out tmp {})
+                                        (tmpd/rm (filter #(.endsWith ^String (tmpd/path %) ".tmp")
+                                                         (tmpd/ls fs))))))))
+        handler (fn [opts memo]
+                  (((memo/wrap-task "upcase" opts memo upcase) #(tmpd/commit! %)) (tmpd/commit! (fileset))))
+        ids     (fn [fs] (into {} (for [[p f] (:tree fs)] [p (tmpd/id f)])))
+        put!    (fn [p s] (spit (doto (io/file src p) io/make-parents) s))]
+    (put! "a/x.txt" "x")
+    (put! "a/y.txt" "y")
+    (put! "b/z.clj" "z")
+    (put! "c/w.tmp" "w")
+    (memo/report!)
+    (let [first-fs (handler {:n 1} true)]
+      (testing "the task runs the first time"
+        (is (= 1 @runs))
+        (is (= #{"a/x.txt" "a/y.txt" "a/x.TXT" "a/y.TXT" "b/z.clj"} (set (keys (:tree first-fs)))))
+        (is (= "X" (slurp (io/file out "a" "x.TXT")))))
+      (testing "the same input replays the output"
+        (io/delete-file (io/file out "a" "x.TXT"))
+        (let [fs (handler {:n 1} true)]
+          (is (= 1 @runs))
+          (is (= (ids first-fs) (ids fs)))
+          (is (= "X" (slurp (io/file out "a" "x.TXT")))))))
+    (testing "different options or inputs run the task"
+      (handler {:n 2} true)
+      (is (= 2 @runs))
+      (put! "a/x.txt" "xx")
+      (is (= "XX" (slurp (tmpd/file (get-in (handler {:n 1} true) [:tree "a/x.TXT"])))))
+      (is (= 3 @runs)))
+    (testing "only the files the task reads are part of the key"
+      (let [reads {:reads #{#"\.txt$"}}]
+        (handler {:n 1} reads)
+        (is (= 4 @runs))
+        (put! "b/z.clj" "zz")
+        (let [fs (handler {:n 1} reads)]
+          (is (= 4 @runs))
+          (is (= "zz" (slurp (tmpd/file (get-in fs [:tree "b/z.clj"]))))))))
+    (testing "tasks that aren't memoized always run"
+      (handler {:n 1} nil)
+      (handler {:n 1} nil)
+      (is (= 6 @runs)))
+    (testing "hits and misses are reported per task"
+      (is (= {"upcase" {:misses 4 :hits 2}} (memo/report!)))
+      (is (nil? (memo/report!))))))
@@ -67,3 +67,81 @@
     (is (= 'foo (pod/canonical-id 'foo)) "In case there is no group, return artifact")
     (is (= 'foo (pod/canonical-id 'foo/foo)) "In case group and artifact are the same, return only one of them")
     (is (= 'foo/bar (pod/canonical-id 'foo/bar)) "In case group and artifact are the different, return the entire symbol")))
+
+(defn- counting-pool
+  [& opts]
+  (let [n         (atom 0)
+        destroyed (atom [])]
+    {:created   n
+     :destroyed destroyed
+     :pool      (apply pod/keyed-pool
+                       (fn [k] [k (swap! n inc)])
+                       #(swap! destroyed conj %)
+                       opts)}))
+
+(defn- eventually
+  [f]
+  (loop [n 100]
+    (or (f) (when (pos? n) (Thread/sleep 20) (recur (dec n))))))
+
+(deftest keyed-pool-test
+  (testing "returned objects are reused per key"
+    (let [{:keys [pool]} (counting-pool)
+          a (pool :borrow :a)]
+      (pool :return :a a)
+      (is (= a (pool :borrow :a)))
+      (is (not= a (pool :borrow :a)))
+      (is (= [:b 3] (pool :borrow :b)))
+      (is (= {:hits 1 :misses 3 :created 3 :timeouts 0}
+             (select-keys (:total (pool :stats)) [:hits :misses :created :timeouts])))
+      (is (= 2 (get-in (pool :stats) [:keys :a :borrowed])))))
+
+  (testing "borrowers block when max objects are borrowed"
+    (let [{:keys [pool]} (counting-pool :max 1)
+          a (pool :borrow :a)]
+      (is (thrown? java.util.concurrent.TimeoutException (pool :borrow :a 50)))
+      (is (= 1 (get-in (pool :stats) [:total :timeouts])))
+      (let [b (future (pool :borrow :a))]
+        (Thread/sleep 50)
+        (is (not (realized? b)))
+        (pool :return :a a)
+        (is (= a (deref b 1000 nil))))))
+
+  (testing "idle objects are created in the background"
+    (let [{:keys [pool created]} (counting-pool :min 2)]
+      (pool :warm :a)
+      (is (eventually #(= 2 (get-in (pool :stats) [:keys :a :idle]))))
+      (pool :borrow :a)
+      (is (eventually #(= 3 @created)))
+      (is (= 1 (get-in (pool :stats) [:total :hits])))))
+
+  (testing "idle objects are evicted"
+    (let [{:keys [pool destroyed]} (counting-pool :idle 50)
+          a (pool :borrow :a)]
+      (pool :return :a a)
+      (is (eventually #(= [a] @destroyed)))
+      (is (= 1 (get-in (pool :stats) [:total :evicted])))))
+
+  (testing "shutdown destroys idle objects"
+    (let [{:keys [pool destroyed]} (counting-pool)
+          a (pool :borrow :a)
+          b (pool :borrow :a)]
+      (pool :return :a a)
+      (pool :shutdown)
+      (is (= [a] @destroyed))
+      (pool :return :a b)
+      (is (= [a b] @destroyed))
+      (is (thrown? IllegalStateException (pool :borrow :a))))))
+
+(deftest lifecycle-pool-test
+  (let [n         (atom 0)
+        destroyed (atom [])
+        pool      (pod/lifecycle-pool 2 #(swap! n inc) #(swap! destroyed conj %))]
+    (is (= 1 (pool)))
+    (is (= 1 (pool)))
+    (is (= 2 (pool :refresh)))
+    (is (= [1] @destroyed))
+    (is (= 2 (pool :take)))
+    (is (= 3 (pool)))
+    @(pool :shutdown)
+    (is (= [1 3] (take 2 @destroyed)))))
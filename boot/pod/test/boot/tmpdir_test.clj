@@ -1,8 +1,15 @@
 (ns boot.tmpdir-test
   (:refer-clojure :exclude [hash time])
+  (:import
+    [java.nio.file Files]
+    [java.nio.file.attribute FileAttribute])
   (:require
-    [clojure.test :refer :all]
-    [boot.tmpdir :as tmpd]))
+    [clojure.test     :refer :all]
+    [clojure.java.io  :as io]
+    [clojure.data     :as data]
+    [clojure.set      :as set]
+    [boot.from.digest :as digest]
+    [boot.tmpdir      :as tmpd]))
 
 (defn has-path? [fs path]
   (contains? (:tree fs) path))
@@ -77,3 +84,227 @@
       (is (= empty-fs (:added diff)))
       (is (= empty-fs (:removed diff)))
       (is (= empty-fs (:changed diff))))))
+
+(defn- tempdir []
+  (.toFile (Files/createTempDirectory "tmpdir" (into-array FileAttribute []))))
+
+(defn- make-fs [dir]
+  (tmpd/map->TmpFileSet {:dirs    [(tmpd/map->TmpDir {:dir dir})]
+                         :tree    {}
+                         :blob    (tempdir)
+                         :scratch (tempdir)}))
+
+(defn- index-stats-delta [f]
+  (let [before @tmpd/hash-index-stats]
+    (f)
+    (merge-with - @tmpd/hash-index-stats before)))
+
+(deftest hash-index-test
+  (let [index-dir (tempdir)]
+    (with-redefs [tmpd/hash-index-file (fn [dir algo]
+                                         (io/file index-dir algo (str (digest/md5 (.getCanonicalPath (io/file dir))) ".properties")))]
+      (let [dir (tempdir)
+            src (tempdir)
+            fs  (make-fs dir)
+            f   (doto (io/file src "a.txt") (spit "foo"))
+            t   (- (System/currentTimeMillis) 60000)]
+        (.setLastModified f t)
+        (testing "new files are hashed"
+          (is (= {:hits 0 :misses 1} (index-stats-delta #(tmpd/add fs dir src {})))))
+        (testing "unchanged files reuse the recorded hash"
+          (is (= {:hits 1 :misses 0} (index-stats-delta #(tmpd/add fs dir src {})))))
+        (testing "changed files are hashed again"
+          (spit f "bar")
+          (.setLastModified f (- t 1000))
+          (let [fs' (tmpd/add fs dir src {})]
+            (is (= (digest/md5 "bar") (tmpd/hash (get-in fs' [:tree "a.txt"])))))))
+      (let [dir (tempdir)
+            src (tempdir)
+            fs  (make-fs dir)
+            f   (doto (io/file src "a.txt") (spit "foo"))
+            t   (.lastModified f)]
+        (testing "rewrite within mtime granularity is detected"
+          (tmpd/add fs dir src {})
+          (spit f "bar")
+          (.setLastModified f t)
+          (let [fs' (tmpd/add fs dir src {})]
+            (is (= (digest/md5 "bar") (tmpd/hash (get-in fs' [:tree "a.txt"]))))))))))
+
+(deftest parallel-add-test
+  (let [dir (tempdir)
+        src (tempdir)
+        fs  (make-fs dir)]
+    (doseq [i (range 20) j (range 5)]
+      (spit (doto (io/file src (str "d" i) (str "e" j) (str "f" j ".txt")) io/make-parents)
+            (str i ":" j)))
+    (spit (io/file src "top.txt") "top")
+    (let [serial   (binding [tmpd/*parallelism* 1] (tmpd/add fs dir src {}))
+          parallel (binding [tmpd/*parallelism* 4] (tmpd/add fs dir src {}))]
+      (testing "parallel add visits every file"
+        (is (= 101 (count (:tree parallel)))))
+      (testing "parallel add produces the same tree as serial add"
+        (is (= (:tree serial) (:tree parallel)))))))
+
+(deftest hash-algorithm-test
+  (let [dir (tempdir)
+        src (tempdir)
+        fs  (make-fs dir)]
+    (spit (io/file src "a.txt") "hello")
+    (let [fs' (binding [tmpd/*hash-algorithm* "SHA-1"] (tmpd/add fs dir src {}))
+          tf  (get-in fs' [:tree "a.txt"])]
+      (testing "fileset ids use the configured algorithm"
+        (is (= "aaf4c61ddcc5e8a2dabede0f3b482cd9aea9434d" (tmpd/hash tf)))
+        (is (= (str "aaf4c61ddcc5e8a2dabede0f3b482cd9aea9434d." (tmpd/time tf)) (tmpd/id tf)))
+        (is (= "hello" (slurp (io/file (:blob fs) (tmpd/id tf)))))))
+    (testing "XXH64"
+      (is (= "ef46db3751d8e999" (digest/digest "XXH64" "")))
+      (is (= "fbcea83c8a378bf1" (digest/digest "XXH64" "Nobody inspects the spammish repetition")))
+      (let [big (io/file src "big.bin")
+            b   (doto (byte-array (* 300 1024)) (->> (.nextBytes (java.util.Random. 1))))]
+        (io/copy b big)
+        (is (= (digest/digest "XXH64" b)
+               (digest/digest "XXH64" big)
+               (binding [digest/*mmap-threshold* 0] (digest/digest "XXH64" big))
+               (binding [digest/*buffer-size* 100] (digest/digest "XXH64" big))))
+        (.delete big))
+      (let [tf (get-in (binding [tmpd/*hash-algorithm* "XXH64"] (tmpd/add fs dir src {}))
+                       [:tree "a.txt"])]
+        (is (= "26c7827d889f6da3" (tmpd/hash tf)))
+        (is (= "hello" (slurp (io/file (:blob fs) (tmpd/id tf)))))))
+    (testing "digests shorter than 64 bits are refused"
+      (is (thrown-with-msg? clojure.lang.ExceptionInfo #"too short"
+                            (binding [tmpd/*hash-algorithm* "CRC32"] (tmpd/add fs dir src {})))))))
+
+(defn- legacy-diff
+  "The diff* implementation based on clojure.data/diff of the whole trees."
+  [{t1 :tree} {t2 :tree} props]
+  (let [->map   #(reduce-kv (fn [m k v] (assoc m k (select-keys v props))) {} %)
+        [x y z] (map (comp set keys) (data/diff (->map t1) (->map t2)))
+        chg     (set/union (set/intersection x y)
+                                   (set/intersection (set/union x y) z))]
+    {:added   (select-keys t2 (set/difference y x chg))
+     :removed (select-keys t1 (set/difference x y chg))
+     :changed (select-keys t2 chg)}))
+
+(defn- tree-diffs [before after props]
+  (->> (#'tmpd/diff* before after props)
+       (reduce-kv #(assoc %1 %2 (:tree %3)) {})))
+
+(defn- index-entries
+  "The path to TmpFile map in the fileset's index."
+  [fs]
+  (let [idx (#'tmpd/tree-index fs)]
+    (when idx
+      (#'tmpd/index-diff #(assoc %1 %2 %4) {} nil nil (when-not (= ::tmpd/empty idx) idx)))))
+
+(deftest indexed-diff-test
+  (let [dir   (tempdir)
+        fs    (make-fs dir)
+        tmpf  #(tmpd/map->TmpFile {:path %1 :id (str "id-" %2) :hash (str %2) :time 0})
+        paths (for [a (range 5) b (range 5) c (range 4)] (str "a" a "/b" b "/c" c ".txt"))
+        fs1   (tmpd/add-tmp fs dir (map #(tmpf % 0) paths))
+        fs2   (-> fs1
+                  (tmpd/add-tmp dir [(tmpf "a1/b1/c1.txt" 1) (tmpf "a9/new.txt" 0)
+                                     (tmpf "a2" 0) (tmpf "a3/b3/c3.txt" 0)])
+                  (tmpd/rm [(get-in fs1 [:tree "a4/b4/c0.txt"])])
+                  (tmpd/mv "a0/b0/c0.txt" "a0/moved.txt"))
+        stale (update-in fs2 [:tree] #(into {} %))
+        bare  (vary-meta fs2 dissoc ::tmpd/index)]
+    (testing "operations keep the index current"
+      (is (= (:tree fs2) (index-entries fs2)))
+      (is (not (#'tmpd/tree-index bare)))
+      (is (not (#'tmpd/tree-index stale))))
+    (doseq [props [[:id] [:hash :time] [:id :dir]]]
+      (testing (str "diff with props " props)
+        (let [expected (legacy-diff fs1 fs2 props)]
+          (is (= expected (tree-diffs fs1 fs2 props)))
+          (is (= expected (tree-diffs fs1 bare props)))
+          (is (= expected (tree-diffs fs1 stale props)))
+          (is (= #{"a1/b1/c1.txt"} (set (keys (:changed expected)))))
+          (is (= #{"a9/new.txt" "a2" "a0/moved.txt"} (set (keys (:added expected)))))
+          (is (= #{"a4/b4/c0.txt" "a0/b0/c0.txt"} (set (keys (:removed expected))))))))))
+
+(deftest indexed-commit-test
+  (let [dir (tempdir)
+        src (tempdir)
+        fs  (make-fs dir)]
+    (spit (doto (io/file src "x" "a.txt") io/make-parents) "a")
+    (spit (io/file src "x" "b.txt") "b")
+    (let [fs1 (tmpd/commit! (tmpd/add fs dir src {}))]
+      (testing "commit writes the files"
+        (is (= "a" (slurp (io/file dir "x" "a.txt"))))
+        (is (= (:tree fs1) (index-entries fs1))))
+      (let [fs2 (tmpd/commit! (-> fs1
+                                  (tmpd/rm [(get-in fs1 [:tree "x/a.txt"])])
+                                  (tmpd/mv "x/b.txt" "y/b.txt")))]
+        (testing "commit applies the changes"
+          (is (not (.exists (io/file dir "x" "a.txt"))))
+          (is (not (.exists (io/file dir "x" "b.txt"))))
+          (is (= "b" (slurp (io/file dir "y" "b.txt")))))
+        (testing "commit indexes filesets whose tree was modified directly"
+          (let [fs3 (tmpd/commit! (update-in fs2 [:tree] dissoc "y/b.txt"))]
+            (is (not (.exists (io/file dir "y" "b.txt"))))
+            (is (= (:tree fs3) (index-entries fs3)))))))))
+
+(deftest parallel-commit-test
+  (let [dir  (tempdir)
+        src  (tempdir)
+        fs   (make-fs dir)
+        ps   (for [i (range 10) j (range 300)] (str "d" i "/f" j ".txt"))]
+    (doseq [p ps] (spit (doto (io/file src p) io/make-parents) p))
+    (binding [tmpd/*commit-parallelism* 4]
+      (let [fs1 (tmpd/commit! (tmpd/add fs dir src {}))]
+        (testing "every file is committed"
+          (is (every? #(= % (slurp (io/file dir %))) ps)))
+        (let [fs2 (tmpd/commit! (tmpd/rm fs1 (map #(get-in fs1 [:tree %]) (take-nth 2 ps))))]
+          (testing "removed files are deleted"
+            (is (not-any? #(.exists (io/file dir %)) (take-nth 2 ps)))
+            (is (every? #(.exists (io/file dir %)) (take-nth 2 (rest ps))))
+            (is (= (count (:tree fs2)) (/ (count ps) 2)))))))))
+
+(deftest commit-conflict-test
+  (let [dir (tempdir)
+        src (tempdir)
+        fs  (make-fs dir)]
+    (spit (doto (io/file src "a" "b.txt") io/make-parents) "b")
+    (.mkdirs (io/file dir "c" "empty"))
+    (let [fs1  (tmpd/add fs dir src {})
+          tmpf (get-in fs1 [:tree "a/b.txt"])
+          fs2  (tmpd/commit! (tmpd/add-tmp fs1 dir [(assoc tmpf :path "a") (assoc tmpf :path "c")]))]
+      (testing "a file at the path of a directory in the fileset is not added"
+        (is (nil? (get-in fs2 [:tree "a"])))
+        (is (= "b" (slurp (io/file dir "a" "b.txt")))))
+      (testing "a directory without files is replaced"
+        (is (= "b" (slurp (io/file dir "c"))))))))
+
+(deftest merge-branches-test
+  (let [dir  (tempdir)
+        src  (tempdir)
+        fs   (make-fs dir)
+        add  (fn [fs files]
+               (let [src (tempdir)]
+                 (doseq [[p s] files] (spit (doto (io/file src p) io/make-parents) s))
+                 (tmpd/add fs dir src {})))
+        text #(slurp (tmpd/file (get-in %1 [:tree %2])))
+        base (add fs {"a.txt" "a" "b.txt" "b"})
+        b1   (add base {"a.txt" "a1" "c/c.txt" "c"})
+        b2   (-> (tmpd/rm base [(get-in base [:tree "b.txt"])]) (add {"d.txt" "d"}))
+        b3   (add base {"a.txt" "a3" "c/c.txt" "c"})]
+    (doseq [f [base b1 b2 b3]] (tmpd/commit! f))
+    (testing "changes from each branch are merged"
+      (let [m (tmpd/merge-branches base [b1 b2] :quiet true)]
+        (is (= #{"a.txt" "c/c.txt" "d.txt"} (set (keys (:tree m)))))
+        (is (= (get-in b1 [:tree "a.txt"]) (get-in m [:tree "a.txt"])))
+        (is (= (get-in b2 [:tree "d.txt"]) (get-in m [:tree "d.txt"])))))
+    (testing "the same change in two branches is not a conflict"
+      (let [warnings (with-out-str (binding [*err* *out*] (tmpd/merge-branches base [b1 b3])))]
+        (is (re-find #"a.txt" warnings))
+        (is (not (re-find #"c/c.txt" warnings)))))
+    (testing "the later branch wins a conflict without a merger"
+      (is (= (get-in b3 [:tree "a.txt"])
+             (get-in (tmpd/merge-branches base [b1 b3] :quiet true) [:tree "a.txt"]))))
+    (testing "conflicts are merged with the matching merger"
+      (let [concat! (fn [a b out] (io/copy a out) (io/copy b out))
+            m       (tmpd/commit! (tmpd/merge-branches base [b1 b2 b3] :mergers [[#"\.txt$" concat!]]))]
+        (is (= "a1a3" (slurp (io/file dir "a.txt"))))
+        (is (= #{"a.txt" "c/c.txt" "d.txt"} (set (keys (:tree m)))))))))
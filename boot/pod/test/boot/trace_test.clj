@@ -0,0 +1,38 @@
+(ns boot.trace-test
+  (:require
+    [clojure.test    :refer :all]
+    [clojure.string  :as string]
+    [boot.trace      :as trace])
+  (:import
+    [java.io File]))
+
+(deftest report-test
+  (let [f (File/createTempFile "boot-trace-test" ".json")]
+    (with-redefs [trace/enabled?   true
+                  trace/trace-file (.getPath f)]
+      (let [handler ((trace/wrap-task "outer" (fn [next] (fn [fs] (Thread/sleep 20) (next fs))))
+                     (fn [fs] (trace/span "inner" (Thread/sleep 30) (inc fs))))]
+        (is (= 2 (handler 1)))
+        (trace/count! "files hashed" 3)
+        (trace/count! "files hashed" 2)
+        (let [summary (trace/report! )
+              rows    (into {} (for [line (string/split-lines summary)
+                                     :let [[name & cols] (string/split line #"\s{2,}")]]
+                                 [name cols]))
+              json    (slurp f)]
+          (testing "the summary subtracts nested spans"
+            (let [[n total self] (rows "outer")]
+              (is (= "1" n))
+              (is (<= 50 (Double/parseDouble total)))
+              (is (< (Double/parseDouble self) 45))))
+          (testing "counters"
+            (is (= ["5"] (rows "files hashed"))))
+          (testing "the trace file has complete events and counters"
+            (is (re-find #"\{\"name\":\"outer\",\"cat\":\"boot\",\"ph\":\"X\"" json))
+            (is (re-find #"\{\"name\":\"inner\"" json))
+            (is (re-find #"\"args\":\{\"files hashed\":5\}" json))))
+        (testing "reports are reset"
+          (is (nil? (trace/report!))))))
+    (testing "nothing is recorded when tracing is off"
+      (is (= 1 (trace/span "off" 1)))
+      (is (identical? identity (trace/wrap-task "off" identity))))))
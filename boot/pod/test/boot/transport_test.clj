@@ -0,0 +1,56 @@
+(ns boot.transport-test
+  (:require
+    [clojure.test   :refer :all]
+    [boot.pod       :as pod]
+    [boot.transport :as transport])
+  (:import
+    [java.io File]
+    [java.nio.file Paths]))
+
+(defrecord Rec [a b])
+
+(defn- round-trip [x] (transport/decode (transport/encode x)))
+
+(deftest round-trip-test
+  (testing "edn data"
+    (doseq [x [nil true false 0 -1 Long/MAX_VALUE 1.5 "" "héllo" \x :k :a/b 'sym 'a/b
+               [] [1 [2 "x"]] () '(1 (2)) {} {:a 1 "b" [2 3]} #{} #{1 :b}
+               123456789012345678901234567890N 1.25M #uuid "0f4a5d82-6fe7-4f8a-b5d8-8d1c3b7a2c11"
+               #inst "2017-01-01T00:00:00.000-00:00" (apply str (repeat 70000 \x))
+               (vec (range 100000)) (set (map str (range 1000))) (zipmap (range 300) (range 300))]]
+      (is (= x (round-trip x)))))
+
+  (testing "types"
+    (is (instance? Long (round-trip (int 1))))
+    (is (instance? Double (round-trip (float 1.5))))
+    (is (list? (round-trip (map inc [1 2]))))
+    (is (vector? (round-trip (first {:a 1}))))
+    (is (instance? Rec (round-trip (->Rec 1 2))))
+    (is (= "a.b" (str (round-trip #"a.b")))))
+
+  (testing "files and paths"
+    (is (= (File. "/tmp/x") (round-trip (File. "/tmp/x"))))
+    (is (= (Paths/get "/tmp" (into-array String ["y"]))
+           (round-trip (Paths/get "/tmp" (into-array String ["y"]))))))
+
+  (testing "other objects are printed"
+    (is (= 1/3 (round-trip 1/3))))
+
+  (testing "metadata"
+    (is (nil? (meta (round-trip (with-meta [1] {:x 1})))))
+    (is (= {:x 1} (binding [*print-meta* true]
+                    (meta (round-trip (with-meta [1] {:x 1})))))))
+
+  (testing "printed exprs are still accepted"
+    (is (= "3" (pod/call-in* (pr-str {:expr '(clojure.core/+ 1 2)}))))
+    (is (= 3 (transport/decode (pod/call-in* (transport/encode {:expr '(clojure.core/+ 1 2)}))))))
+
+  (testing "files in evaluated forms"
+    (let [dir (File. "/tmp")
+          req #(transport/encode {:expr %})]
+      (is (= [dir (.toPath dir)]
+             (transport/decode (pod/call-in* (req (list 'clojure.core/vector dir (.toPath dir)))))))
+      (is (= (File. dir "x")
+             (transport/decode (pod/eval-in* (req (list 'java.io.File. dir "x"))))))
+      (is (= (.toPath dir)
+             (transport/decode (pod/eval-in* (req (list 'identity (.toPath dir))))))))))
@@ -3,7 +3,8 @@
    [clojure.java.io               :as io]
    [clojure.tools.namespace.track :as tntrack]
    [clojure.tools.namespace.file  :as tnfile]
-   [clojure.tools.namespace.find  :as tnfind]))
+   [clojure.tools.namespace.find  :as tnfind]
+   [clojure.tools.namespace.parse :as tnparse]))
 
 (defn dependents [src-dirs]
   (->> src-dirs
@@ -16,3 +17,74 @@
 
 (defn find-namespaces-in-dirs [dirs]
   (mapcat #(tnfind/find-namespaces-in-dir (io/file %)) dirs))
+
+;; incremental aot ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(defn dependency-graph
+  "Returns a map of the namespaces defined in the Clojure source files in the
+  dirs to maps of the :path of the file, relative to its dir, and the :deps,
+  the set of namespaces it requires."
+  [dirs]
+  (into {} (for [dir  (map io/file dirs)
+                 f    (tnfind/find-clojure-sources-in-dir dir)
+                 :let [decl (tnfile/read-file-ns-decl f)]
+                 :when decl]
+             [(second decl) {:path (.getPath (.relativize (.toURI dir) (.toURI f)))
+                             :deps (tnparse/deps-from-ns-decl decl)}])))
+
+(defn affected
+  "Returns the set of namespaces in the graph that are defined in the files
+  with the paths, and their transitive dependents in the graph."
+  [graph paths]
+  (let [paths      (set paths)
+        dependents (reduce-kv (fn [m ns {:keys [deps]}]
+                                (reduce #(update-in %1 [%2] (fnil conj #{}) ns) m deps))
+                              {} graph)]
+    (loop [seen #{} [ns & more :as todo] (for [[ns {:keys [path]}] graph
+                                               :when (paths path)] ns)]
+      (cond (empty? todo) seen
+            (seen ns)     (recur seen more)
+            :else         (recur (conj seen ns) (concat more (dependents ns)))))))
+
+(defn- topo-sort
+  "Sorts the namespaces so that each comes after the namespaces it requires,
+  or in name order where that doesn't matter."
+  [graph nses]
+  (let [nses (set nses)
+        out  (java.util.LinkedHashSet.)]
+    (letfn [(visit [seen ns]
+              (when-not (or (.contains out ns) (seen ns))
+                (doseq [dep (sort (get-in graph [ns :deps]))]
+                  (visit (conj seen ns) dep))
+                (when (nses ns) (.add out ns))))]
+      (doseq [ns (sort nses)] (visit #{} ns)))
+    (vec out)))
+
+(defn- components
+  "Partitions the namespaces into the groups connected by dependencies in the
+  graph, directly or through other namespaces in the graph."
+  [graph nses]
+  (let [parent (java.util.HashMap.)
+        root   (fn root [x] (let [p (.get parent x)] (if (or (nil? p) (= p x)) x (root p))))
+        union  (fn [a b] (let [ra (root a) rb (root b)] (when-not (= ra rb) (.put parent ra rb))))]
+    (doseq [[ns {:keys [deps]}] graph
+            dep deps :when (contains? graph dep)]
+      (union ns dep))
+    (vals (group-by root nses))))
+
+(defn compile-plan
+  "Returns the namespaces to compile in n groups, as a vector of vectors of
+  namespaces in the order in which they must be compiled. Namespaces that
+  depend on each other, directly or through other namespaces in the graph,
+  are in the same group. Groups are balanced by their number of namespaces
+  and empty groups are removed."
+  [graph nses n]
+  (let [groups (->> (components graph nses)
+                    (map (partial topo-sort graph))
+                    (sort-by (juxt (comp - count) first)))
+        bins   (reduce (fn [bins group]
+                         (let [i (first (sort-by #(count (bins %)) (range (count bins))))]
+                           (update-in bins [i] into group)))
+                       (vec (repeat (max 1 n) []))
+                       groups)]
+    (filterv seq bins)))
@@ -38,7 +38,8 @@
   (enum->kw [this x]
     (-> {StandardWatchEventKinds/ENTRY_CREATE :create
          StandardWatchEventKinds/ENTRY_MODIFY :modify
-         StandardWatchEventKinds/ENTRY_DELETE :delete}
+         StandardWatchEventKinds/ENTRY_DELETE :delete
+         StandardWatchEventKinds/OVERFLOW     :overflow}
       (get x))))
 
 (extend-type com.barbarysoftware.watchservice.WatchService
@@ -53,7 +54,8 @@
   (enum->kw [this x]
     (-> {StandardWatchEventKind/ENTRY_CREATE :create
          StandardWatchEventKind/ENTRY_MODIFY :modify
-         StandardWatchEventKind/ENTRY_DELETE :delete}
+         StandardWatchEventKind/ENTRY_DELETE :delete
+         StandardWatchEventKind/OVERFLOW     :overflow}
       (get x))))
 
 (defn- register-recursive
@@ -83,11 +85,15 @@
       (util/dbug* "watch service closed\n"))))
 
 (defn- send-it!
-  [queue]
-  ;; It doesn't matter what we send because the information in the watch keys
-  ;; is completely unreliable and useless, so we send the sentinel "changed!".
-  (util/dbug* "sending change event\n")
-  (.offer queue "changed!"))
+  "Sends a change event to the queue. The queue is shared with other pods, so
+  events are JDK types: a [kind path] array of strings for a change to the
+  file or directory at the absolute path, or the sentinel \"changed!\" when
+  the events were lost and everything needs to be rescanned."
+  ([queue]
+   (util/dbug* "sending change event\n")
+   (.offer queue "changed!"))
+  ([queue etype ^java.io.File changed]
+   (.offer queue (into-array String [(name etype) (.getAbsolutePath changed)]))))
 
 (defn- service
   [queue paths ignore-patterns]
@@ -97,20 +103,25 @@
     (-> #(let [watch-key (take-watch-key service)]
            (when-let [path (and watch-key (or (.watchable watch-key) ""))]
              (if-not (.isValid watch-key)
-               (util/dbug* "invalid watch key %s\n" (.watchable watch-key))
+               (do (util/dbug* "invalid watch key %s\n" (.watchable watch-key))
+                   (send-it! queue :delete (.toFile path)))
                (do (doseq [event (.pollEvents watch-key)]
                      (let [dir     (.toFile path)
-                           changed (io/file dir (str (.context event)))
+                           context (io/file (str (.context event)))
+                           changed (if (.isAbsolute context) context (io/file dir context))
                            etype   (enum->kw service (.kind event))
                            dir?    (.isDirectory changed)]
                        (util/dbug* "event: %s %s %s\n" etype dir? path)
-                       (when (and dir? (= :create etype))
-                         (try (doreg service changed)
-                              (catch Throwable t
-                                (util/dbug* "error registering %s: %s\n" path t))))))
+                       (if (or (nil? etype) (= :overflow etype))
+                         (send-it! queue)
+                         (do (when (and dir? (= :create etype))
+                               (try (doreg service changed)
+                                    (catch Throwable t
+                                      (util/dbug* "error registering %s: %s\n" path t)
+                                      (send-it! queue))))
+                             (send-it! queue etype changed)))))
                    (when-not (.reset watch-key)
                      (util/dbug* "failed to reset watch key %s\n" path))))
-             (send-it! queue)
              (recur)))
         Thread. .start)
     service))
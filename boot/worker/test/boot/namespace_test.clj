@@ -0,0 +1,44 @@
+(ns boot.namespace-test
+  (:require
+    [clojure.test    :refer :all]
+    [clojure.java.io :as io]
+    [boot.namespace  :as ns])
+  (:import
+    [java.io File]))
+
+(def graph
+  '{a.core {:path "a/core.clj"  :deps #{a.util clojure.string}}
+    a.util {:path "a/util.cljc" :deps #{}}
+    a.main {:path "a/main.clj"  :deps #{a.core}}
+    b.core {:path "b/core.clj"  :deps #{b.util}}
+    b.util {:path "b/util.clj"  :deps #{}}
+    c.core {:path "c/core.clj"  :deps #{clojure.set}}})
+
+(deftest dependency-graph-test
+  (let [dir (doto (File/createTempFile "boot-namespace-test" "") .delete .mkdirs)]
+    (doseq [[path src] {"a/core.clj"  "(ns a.core (:require [a.util :as u] clojure.string))"
+                        "a/util.cljc" "(ns a.util)"
+                        "notes.txt"   "(ns not.clojure)"}]
+      (doto (io/file dir path) io/make-parents (spit src)))
+    (is (= '{a.core {:path "a/core.clj" :deps #{a.util clojure.string}}
+             a.util {:path "a/util.cljc" :deps #{}}}
+           (ns/dependency-graph [(.getPath dir)])))))
+
+(deftest affected-test
+  (is (= '#{a.util a.core a.main} (ns/affected graph ["a/util.cljc"])))
+  (is (= '#{a.main} (ns/affected graph ["a/main.clj"])))
+  (is (= '#{b.util b.core c.core} (ns/affected graph ["b/util.clj" "c/core.clj" "x.clj"])))
+  (is (= #{} (ns/affected graph []))))
+
+(deftest compile-plan-test
+  (testing "namespaces come after their dependencies"
+    (is (= '[[a.util a.core a.main b.util b.core c.core]]
+           (ns/compile-plan graph (keys graph) 1))))
+  (testing "independent groups are spread over the bins"
+    (is (= '[[a.util a.core a.main] [b.util b.core] [c.core]]
+           (ns/compile-plan graph (keys graph) 3)))
+    (is (= '[[a.util a.core a.main] [b.util b.core c.core]]
+           (ns/compile-plan graph (keys graph) 2))))
+  (testing "only the given namespaces are compiled"
+    (is (= '[[a.core] [b.core]]
+           (ns/compile-plan graph '[b.core a.core] 4)))))